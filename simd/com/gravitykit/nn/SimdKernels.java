@@ -0,0 +1,246 @@
+package com.gravitykit.nn;
+
+import java.nio.ByteBuffer;
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SimdKernels implements Kernels with the JDK Vector API, so the inner
+ * loops use the widest SIMD registers the CPU has (AVX2, AVX-512, NEON).
+ * Each loop processes full vectors and finishes the remainder with the
+ * scalar code.
+ *
+ * This class lives in its own source root because it needs the
+ * jdk.incubator.vector module at compile and run time:
+ *
+ *     javac --add-modules jdk.incubator.vector -d out $(find src simd -name '*.java')
+ *     java  --add-modules jdk.incubator.vector -cp out com.gravitykit.nn.Main
+ *
+ * Kernels.INSTANCE falls back to the scalar loops when it is missing.
+ */
+
+class SimdKernels extends Kernels {
+
+    private static final VectorSpecies<Double> SPECIES       = DoubleVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Float> FLOAT_SPECIES  = FloatVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> INT_SPECIES  = IntVector.SPECIES_PREFERRED;
+
+    // DROPPED[pattern * lanes + lane] is true when bit lane of pattern is
+    // clear, for each pattern of as many bits as a double vector has lanes.
+    // Null above 8 lanes, where the table would be too large.
+    private static final boolean[] DROPPED = droppedLanes(SPECIES.length());
+
+    // Bytes are widened to ints, so load as many bytes as there are int lanes.
+    private static final VectorSpecies<Byte> BYTE_SPECIES =
+            VectorSpecies.of(byte.class, VectorShape.forBitSize(INT_SPECIES.length() * Byte.SIZE));
+
+    SimdKernels() {
+        // Fail here, inside Kernels.load(), if the vector support is unusable.
+        DoubleVector.zero(SPECIES);
+    }
+
+    @Override
+    String getName() {
+        return "simd-" + SPECIES.vectorBitSize();
+    }
+
+    @Override
+    double dot(double[] left, int leftOffset, double[] right, int rightOffset, int length) {
+        var sum   = DoubleVector.zero(SPECIES);
+        int bound = SPECIES.loopBound(length);
+        int idx   = 0;
+
+        for (; idx < bound; idx += SPECIES.length()) {
+            var l = DoubleVector.fromArray(SPECIES, left, leftOffset + idx);
+            var r = DoubleVector.fromArray(SPECIES, right, rightOffset + idx);
+            sum = l.fma(r, sum);
+        }
+
+        double result = sum.reduceLanes(VectorOperators.ADD);
+        for (; idx < length; idx++)
+            result += left[leftOffset + idx] * right[rightOffset + idx];
+
+        return result;
+    }
+
+    @Override
+    float dot(float[] left, int leftOffset, float[] right, int rightOffset, int length) {
+        var sum   = FloatVector.zero(FLOAT_SPECIES);
+        int bound = FLOAT_SPECIES.loopBound(length);
+        int idx   = 0;
+
+        for (; idx < bound; idx += FLOAT_SPECIES.length()) {
+            var l = FloatVector.fromArray(FLOAT_SPECIES, left, leftOffset + idx);
+            var r = FloatVector.fromArray(FLOAT_SPECIES, right, rightOffset + idx);
+            sum = l.fma(r, sum);
+        }
+
+        float result = sum.reduceLanes(VectorOperators.ADD);
+        for (; idx < length; idx++)
+            result += left[leftOffset + idx] * right[rightOffset + idx];
+
+        return result;
+    }
+
+    @Override
+    int dot(byte[] left, int leftOffset, byte[] right, int rightOffset, int length) {
+        var sum   = IntVector.zero(INT_SPECIES);
+        int bound = BYTE_SPECIES.loopBound(length);
+        int idx   = 0;
+
+        for (; idx < bound; idx += BYTE_SPECIES.length()) {
+            var l = (IntVector) ByteVector.fromArray(BYTE_SPECIES, left, leftOffset + idx).castShape(INT_SPECIES, 0);
+            var r = (IntVector) ByteVector.fromArray(BYTE_SPECIES, right, rightOffset + idx).castShape(INT_SPECIES, 0);
+            sum = sum.add(l.mul(r));
+        }
+
+        int result = sum.reduceLanes(VectorOperators.ADD);
+        for (; idx < length; idx++)
+            result += left[leftOffset + idx] * right[rightOffset + idx];
+
+        return result;
+    }
+
+    @Override
+    double dot(ByteBuffer left, int leftOffset, double[] right, int rightOffset, int length) {
+        var sum   = DoubleVector.zero(SPECIES);
+        var order = left.order();
+        int bound = SPECIES.loopBound(length);
+        int idx   = 0;
+
+        for (; idx < bound; idx += SPECIES.length()) {
+            var l = DoubleVector.fromByteBuffer(SPECIES, left, (leftOffset + idx) * Double.BYTES, order);
+            var r = DoubleVector.fromArray(SPECIES, right, rightOffset + idx);
+            sum = l.fma(r, sum);
+        }
+
+        double result = sum.reduceLanes(VectorOperators.ADD);
+        for (; idx < length; idx++)
+            result += left.getDouble((leftOffset + idx) * Double.BYTES) * right[rightOffset + idx];
+
+        return result;
+    }
+
+    @Override
+    void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length) {
+        var scale = DoubleVector.broadcast(SPECIES, alpha);
+        int bound = SPECIES.loopBound(length);
+        int idx   = 0;
+
+        for (; idx < bound; idx += SPECIES.length()) {
+            var xv = DoubleVector.fromArray(SPECIES, x, xOffset + idx);
+            var yv = DoubleVector.fromArray(SPECIES, y, yOffset + idx);
+            xv.fma(scale, yv).intoArray(y, yOffset + idx);
+        }
+
+        for (; idx < length; idx++)
+            y[yOffset + idx] += alpha * x[xOffset + idx];
+    }
+
+    @Override
+    void scale(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length) {
+        int bound = SPECIES.loopBound(length);
+        int idx   = 0;
+
+        for (; idx < bound; idx += SPECIES.length())
+            DoubleVector.fromArray(SPECIES, x, xOffset + idx).mul(alpha).intoArray(y, yOffset + idx);
+
+        for (; idx < length; idx++)
+            y[yOffset + idx] = alpha * x[xOffset + idx];
+    }
+
+    @Override
+    void transfer(ITransferFunction func, double[] in, double[] out, int length) {
+        // Only the built-in functions have a lanewise form, anything else
+        // goes through its own array calculate(...).
+        if (func.getClass() == TanHTransfer.class) {
+            int bound = SPECIES.loopBound(length);
+            int idx   = 0;
+            for (; idx < bound; idx += SPECIES.length())
+                DoubleVector.fromArray(SPECIES, in, idx).lanewise(VectorOperators.TANH).intoArray(out, idx);
+            for (; idx < length; idx++)
+                out[idx] = func.calculate(in[idx]);
+        } else if (func.getClass() == SigmoidTransfer.class) {
+            int bound = SPECIES.loopBound(length);
+            int idx   = 0;
+            var one   = DoubleVector.broadcast(SPECIES, 1.0);
+            for (; idx < bound; idx += SPECIES.length()) {
+                var denominator = DoubleVector.fromArray(SPECIES, in, idx)
+                        .neg()
+                        .lanewise(VectorOperators.EXP)
+                        .add(1.0);
+                one.div(denominator).intoArray(out, idx);
+            }
+            for (; idx < length; idx++)
+                out[idx] = func.calculate(in[idx]);
+        } else if (func.getClass() == ReLUTransfer.class) {
+            int bound = SPECIES.loopBound(length);
+            int idx   = 0;
+            for (; idx < bound; idx += SPECIES.length())
+                DoubleVector.fromArray(SPECIES, in, idx).max(0.0).intoArray(out, idx);
+            for (; idx < length; idx++)
+                out[idx] = func.calculate(in[idx]);
+        } else {
+            super.transfer(func, in, out, length);
+        }
+    }
+
+    @Override
+    void transfer(ITransferFunction func, double[] in, double[] out, int length, long[] mask, double keep) {
+        // The built-in functions of transfer(...) above, anything else goes
+        // through its own array calculate(...).
+        if (!isLanewise(func) || DROPPED == null) {
+            super.transfer(func, in, out, length, mask, keep);
+            return;
+        }
+
+        // A vector never straddles two mask words: the lane count divides
+        // 64. Its lane mask is looked up rather than made with
+        // VectorMask.fromLong, which is not intrinsic on JDK 17 and allocates.
+        double scale = 1.0 / keep;
+        int lanes    = SPECIES.length();
+        int bound    = SPECIES.loopBound(length);
+        int idx      = 0;
+        for (; idx < bound; idx += lanes) {
+            int pattern = (int) (mask[idx >>> 6] >>> (idx & 63)) & ((1 << lanes) - 1);
+            var dropped = VectorMask.fromArray(SPECIES, DROPPED, pattern * lanes);
+            lanewise(func, DoubleVector.fromArray(SPECIES, in, idx))
+                    .mul(scale)
+                    .blend(0.0, dropped)
+                    .intoArray(out, idx);
+        }
+        for (; idx < length; idx++)
+            out[idx] = Dropout.isKept(mask, idx) ? scale * func.calculate(in[idx]) : 0.0;
+    }
+
+    private static boolean[] droppedLanes(int lanes) {
+        if (lanes > 8)
+            return null;
+
+        var dropped = new boolean[(1 << lanes) * lanes];
+        for (int pattern = 0; pattern < 1 << lanes; pattern++)
+            for (int lane = 0; lane < lanes; lane++)
+                dropped[pattern * lanes + lane] = (pattern >>> lane & 1) == 0;
+        return dropped;
+    }
+
+    private static boolean isLanewise(ITransferFunction func) {
+        var type = func.getClass();
+        return type == TanHTransfer.class || type == SigmoidTransfer.class || type == ReLUTransfer.class;
+    }
+
+    private static DoubleVector lanewise(ITransferFunction func, DoubleVector input) {
+        if (func.getClass() == TanHTransfer.class)
+            return input.lanewise(VectorOperators.TANH);
+        if (func.getClass() == SigmoidTransfer.class)
+            return DoubleVector.broadcast(SPECIES, 1.0).div(input.neg().lanewise(VectorOperators.EXP).add(1.0));
+        return input.max(0.0);
+    }
+
+}
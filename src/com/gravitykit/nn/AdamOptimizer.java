@@ -0,0 +1,114 @@
+package com.gravitykit.nn;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Adam keeps running averages of the gradient (m) and of its square (v)
+ * and steps along their bias-corrected ratio:
+ *
+ *     m = beta1 * m + (1 - beta1) * g
+ *     v = beta2 * v + (1 - beta2) * g^2
+ *     p -= rate * (m / (1 - beta1^t)) / (sqrt(v / (1 - beta2^t)) + epsilon)
+ *
+ * With weight decay, g includes weightDecay * p for the weights (L2
+ * regularization, not the decoupled decay of AdamW).
+ */
+
+public class AdamOptimizer implements IOptimizer {
+
+    private double rate;
+    private final double beta1;
+    private final double beta2;
+    private final double epsilon;
+
+    private double[][] firstMoment;
+    private double[][] secondMoment;
+    private long step;
+    private double weightDecay = 0.0;
+
+    // Bias corrections for the current step, set by beginStep().
+    private double firstCorrection;
+    private double secondCorrection;
+
+    public AdamOptimizer(double rate, double beta1, double beta2, double epsilon) {
+        this.rate    = rate;
+        this.beta1   = beta1;
+        this.beta2   = beta2;
+        this.epsilon = epsilon;
+    }
+
+    public AdamOptimizer(double rate) {
+        this(rate, 0.9, 0.999, 1e-8);
+    }
+
+    @Override
+    public double getRate() {
+        return rate;
+    }
+
+    @Override
+    public void setRate(double rate) {
+        this.rate = rate;
+    }
+
+    @Override
+    public double getWeightDecay() {
+        return weightDecay;
+    }
+
+    @Override
+    public void setWeightDecay(double weightDecay) {
+        if (weightDecay < 0)
+            throw new IllegalArgumentException("Weight decay must not be negative");
+        this.weightDecay = weightDecay;
+    }
+
+    @Override
+    public void allocate(int[] slotSizes) {
+        firstMoment  = new double[slotSizes.length][];
+        secondMoment = new double[slotSizes.length][];
+        for (int slot = 0; slot < slotSizes.length; slot++) {
+            firstMoment[slot]  = new double[slotSizes[slot]];
+            secondMoment[slot] = new double[slotSizes[slot]];
+        }
+        step = 0;
+    }
+
+    @Override
+    public void beginStep() {
+        step++;
+        firstCorrection  = 1 - Math.pow(beta1, step);
+        secondCorrection = 1 - Math.pow(beta2, step);
+    }
+
+    @Override
+    public List<double[]> getState() {
+        var state = new ArrayList<double[]>(List.of(firstMoment));
+        state.addAll(List.of(secondMoment));
+        return state;
+    }
+
+    @Override
+    public long getStepCount() {
+        return step;
+    }
+
+    @Override
+    public void setStepCount(long steps) {
+        this.step = steps;
+    }
+
+    @Override
+    public void update(int slot, double[] parameters, double[] gradient, double scale, int offset, int length) {
+        double[] m   = firstMoment[slot];
+        double[] v   = secondMoment[slot];
+        double decay = NeuralNet.isWeightSlot(slot) ? weightDecay : 0.0;
+        for (int idx = offset; idx < offset + length; idx++) {
+            double g = scale * gradient[idx] + decay * parameters[idx];
+            m[idx] = beta1 * m[idx] + (1 - beta1) * g;
+            v[idx] = beta2 * v[idx] + (1 - beta2) * g * g;
+            parameters[idx] -= rate * (m[idx] / firstCorrection) / (Math.sqrt(v[idx] / secondCorrection) + epsilon);
+        }
+    }
+}
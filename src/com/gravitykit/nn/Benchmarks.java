@@ -0,0 +1,663 @@
+package com.gravitykit.nn;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Benchmarks contains simple wall-clock benchmarks for the numeric kernels
+ * and for full training steps. Each measurement is preceded by warmup
+ * iterations so the JIT has compiled the code under test before it is timed.
+ *
+ * Run it with
+ *
+ *     java com.gravitykit.nn.Main bench [suite] [baseline.csv]
+ *
+ * where suite is kernels, training, matrix, parallel, quantized, server,
+ * sparse, conv, cache, pipeline, dropout or all (the default runs kernels
+ * and training). The kernels, training and quantized suites finish with a
+ * CSV block of name,ns_per_op,bytes_per_op lines. Saving that block and
+ * passing it back as the baseline prints each result relative to it.
+ */
+
+public class Benchmarks {
+
+    private static final int[] LAYER_WIDTHS = {64, 512, 2048};
+
+    private static final int[] NET_WIDTHS = {64, 256, 1024};
+    private static final int[] NET_DEPTHS = {2, 4};
+
+    private static final long WARMUP_NANOS  = 300_000_000L;
+    private static final long MEASURE_NANOS = 700_000_000L;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // Name -> {ns/op, bytes/op} of every measure() call, in run order.
+    private static final LinkedHashMap<String, double[]> results  = new LinkedHashMap<>();
+    private static final LinkedHashMap<String, double[]> baseline = new LinkedHashMap<>();
+
+    // Written by benchmarks that produce a value, so the JIT can't drop the work.
+    private static double sink;
+
+    public static void run(String[] args) throws IOException {
+        String suite = args.length > 1 ? args[1] : "default";
+        if (args.length > 2)
+            loadBaseline(Path.of(args[2]));
+
+        switch (suite) {
+            case "kernels"   -> benchKernels();
+            case "training"  -> benchTraining();
+            case "matrix"    -> benchMatrixMultiply();
+            case "parallel"  -> benchParallelTraining();
+            case "quantized" -> benchQuantized();
+            case "server"    -> benchInferenceServer();
+            case "sparse"    -> benchSparse();
+            case "conv"      -> benchConvolution();
+            case "cache"     -> benchCachingPredictor();
+            case "pipeline"  -> benchPipeline();
+            case "dropout"   -> benchRegularization();
+            case "all"       -> {
+                benchKernels();
+                benchTraining();
+                benchMatrixMultiply();
+                benchParallelTraining();
+                benchQuantized();
+                benchInferenceServer();
+                benchSparse();
+                benchConvolution();
+                benchCachingPredictor();
+                benchPipeline();
+                benchRegularization();
+            }
+            default -> {
+                benchKernels();
+                benchTraining();
+            }
+        }
+
+        if (!results.isEmpty()) {
+            System.out.println("name,ns_per_op,bytes_per_op");
+            for (Map.Entry<String, double[]> entry : results.entrySet())
+                System.out.printf("%s,%.1f,%.1f%n", entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+        }
+    }
+
+    private static void loadBaseline(Path path) throws IOException {
+        for (String line : Files.readAllLines(path)) {
+            String[] fields = line.split(",");
+            if (fields.length != 3 || fields[0].equals("name"))
+                continue;
+            baseline.put(fields[0], new double[] {Double.parseDouble(fields[1]), Double.parseDouble(fields[2])});
+        }
+    }
+
+    /**
+     * Runs body repeatedly for the warmup period, then for the measurement
+     * period, and reports the mean time and the bytes allocated per call.
+     */
+    private static void measure(String name, Runnable body) {
+        long warmupEnd = System.nanoTime() + WARMUP_NANOS;
+        long calls     = 0;
+        while (System.nanoTime() < warmupEnd) {
+            body.run();
+            calls++;
+        }
+
+        // Time in chunks sized from the warmup so the clock isn't read per call.
+        long chunk      = Math.max(1, calls / 10);
+        long threadId   = Thread.currentThread().getId();
+        long operations = 0;
+        long allocated  = THREADS.getThreadAllocatedBytes(threadId);
+        long start      = System.nanoTime();
+        long elapsed;
+        do {
+            for (long call = 0; call < chunk; call++)
+                body.run();
+            operations += chunk;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < MEASURE_NANOS);
+        allocated = THREADS.getThreadAllocatedBytes(threadId) - allocated;
+
+        double nsPerOp    = (double) elapsed / operations;
+        double bytesPerOp = (double) allocated / operations;
+        results.put(name, new double[] {nsPerOp, bytesPerOp});
+
+        String relative = "";
+        if (baseline.containsKey(name))
+            relative = String.format("  (%+.1f%% vs baseline)", 100.0 * (nsPerOp / baseline.get(name)[0] - 1.0));
+
+        System.out.printf("%-44s %14.1f ns/op %12.1f B/op%s%n", name, nsPerOp, bytesPerOp, relative);
+    }
+
+    private static double timeMillis(int warmup, int iterations, Supplier<?> body) {
+        Object sink = null;
+        for (int iteration = 0; iteration < warmup; iteration++)
+            sink = body.get();
+
+        long start = System.nanoTime();
+        for (int iteration = 0; iteration < iterations; iteration++)
+            sink = body.get();
+        long elapsed = System.nanoTime() - start;
+
+        if (sink == null)
+            throw new IllegalStateException();
+        return elapsed / 1e6 / iterations;
+    }
+
+    // Reference implementation: the naive i-j-k product over double[][]
+    // that Matrix.multiply(Matrix) used before the blocked kernel.
+    private static double[][] naiveMultiply(double[][] left, double[][] right) {
+        int rows = left.length, columns = right[0].length, elements = right.length;
+        double[][] result = new double[rows][columns];
+
+        for (int rowIdx = 0; rowIdx < rows; rowIdx++)
+            for (int colIdx = 0; colIdx < columns; colIdx++) {
+                double sum = 0;
+                for (int elementIdx = 0; elementIdx < elements; elementIdx++)
+                    sum += left[rowIdx][elementIdx] * right[elementIdx][colIdx];
+                result[rowIdx][colIdx] = sum;
+            }
+
+        return result;
+    }
+
+    // ====================================================================================
+    // == benchKernels ====================================================================
+    // ====================================================================================
+
+    public static void benchKernels() {
+        System.out.println("benchKernels (" + Kernels.INSTANCE.getName() + ")");
+
+        for (int width : NET_WIDTHS) {
+            Matrix left    = new Matrix(width, width, () -> Math.random());
+            Matrix right   = new Matrix(width, width, () -> Math.random());
+            Matrix product = new Matrix(width, width);
+            Vector vecLeft  = new Vector(width, () -> Math.random());
+            Vector vecRight = new Vector(width, () -> Math.random());
+            Vector result   = new Vector(width);
+
+            measure("Matrix.multiply(Matrix)/" + width, () -> left.multiply(right, product));
+            measure("Matrix.multiply(Vector)/" + width, () -> left.multiply(vecRight, result));
+            measure("Matrix.transposeMultiply(Vector)/" + width, () -> left.transposeMultiply(vecRight, result));
+            measure("Matrix.addOuter/" + width, () -> product.addOuter(1e-9, vecLeft, vecRight));
+            measure("Vector.dot/" + width, () -> sink += Vector.dot(vecLeft, vecRight));
+            measure("Vector.map/" + width, () -> result.map(e -> e * 0.5));
+            measure("Vector.copy/" + width, () -> sink += vecLeft.copy().size());
+        }
+
+        System.out.println();
+    }
+
+    // ====================================================================================
+    // == benchTraining ===================================================================
+    // ====================================================================================
+
+    public static void benchTraining() {
+        System.out.println("benchTraining");
+
+        var transferFunctions = new LinkedHashMap<String, ITransferFunction>();
+        transferFunctions.put("tanh", new TanHTransfer());
+        transferFunctions.put("sigmoid", new SigmoidTransfer());
+        transferFunctions.put("relu", new ReLUTransfer());
+        transferFunctions.put("fast-tanh", new FastTanHTransfer());
+
+        var error = new DiffSquareError();
+
+        for (var transfer : transferFunctions.entrySet())
+            for (int depth : NET_DEPTHS)
+                for (int width : NET_WIDTHS) {
+                    NeuralNetBuilder builder = new NeuralNetBuilder()
+                            .setRate(0.001)
+                            .setTransferFunction(transfer.getValue());
+                    for (int layer = 0; layer <= depth; layer++)
+                        builder.addLayer(width);
+
+                    NeuralNet nn   = builder.build();
+                    Vector input   = new Vector(width, () -> Math.random());
+                    Vector desired = new Vector(width, () -> Math.random());
+                    Vector output  = new Vector(width);
+                    String suffix  = "/" + transfer.getKey() + "/d" + depth + "/w" + width;
+
+                    measure("simulate" + suffix, () -> nn.simulate(input, output));
+                    measure("simulate+train" + suffix, () -> {
+                        nn.simulate(input, output);
+                        nn.train(error, desired);
+                    });
+                }
+
+        System.out.println();
+    }
+
+    // ====================================================================================
+    // == benchMatrixMultiply =============================================================
+    // ====================================================================================
+
+    public static void benchMatrixMultiply() {
+        System.out.println("benchMatrixMultiply (ms per multiply)");
+
+        for (int width : LAYER_WIDTHS) {
+            // Roughly the same number of multiply-adds per size so a run stays short.
+            int iterations = (int) Math.max(1, 2_000_000_000L / ((long) width * width * width));
+
+            Matrix left   = new Matrix(width, width, () -> Math.random());
+            Matrix right  = new Matrix(width, width, () -> Math.random());
+            Matrix result = new Matrix(width, width);
+            double[][] leftArray  = left.getMatrix();
+            double[][] rightArray = right.getMatrix();
+
+            double naive      = timeMillis(iterations, iterations, () -> naiveMultiply(leftArray, rightArray));
+            double blocked    = timeMillis(iterations, iterations, () -> left.multiply(right, result));
+            double transposed = timeMillis(iterations, iterations, () -> left.transposeMultiply(right, result));
+            double transposeR = timeMillis(iterations, iterations, () -> left.multiplyTranspose(right, result));
+
+            System.out.printf("%5d: naive %10.3f  blocked %10.3f  transposeMultiply %10.3f  multiplyTranspose %10.3f%n",
+                    width, naive, blocked, transposed, transposeR);
+        }
+
+        System.out.println();
+    }
+
+    // ====================================================================================
+    // == benchParallelTraining ===========================================================
+    // ====================================================================================
+
+    public static void benchParallelTraining() {
+        System.out.println("benchParallelTraining (samples/sec)");
+
+        int batchSize = 256;
+        ArrayList<Sample> samples = new ArrayList<>();
+        for (int idx = 0; idx < batchSize * 4; idx++)
+            samples.add(new Sample(new Vector(256, () -> Math.random()), new Vector(16, () -> Math.random())));
+
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            NeuralNet nn = new NeuralNetBuilder()
+                    .setRate(0.01)
+                    .setTransferFunction(new TanHTransfer())
+                    .addLayer(256)
+                    .addLayer(512)
+                    .addLayer(512)
+                    .addLayer(16)
+                    .build();
+
+            try (var trainer = new ParallelTrainer(nn, threads)) {
+                double millis = timeMillis(2, 5, () -> {
+                    trainer.train(new DiffSquareError(), 1, batchSize, samples);
+                    return nn;
+                });
+                System.out.printf("%3d threads: %10.0f%n", threads, samples.size() / (millis / 1000.0));
+            }
+        }
+
+        System.out.println();
+    }
+
+    // ====================================================================================
+    // == benchQuantized ==================================================================
+    // ====================================================================================
+
+    public static void benchQuantized() {
+        System.out.println("benchQuantized");
+
+        NeuralNet nn = new NeuralNetBuilder()
+                .setRate(0.01)
+                .setTransferFunction(new TanHTransfer())
+                .addLayer(512)
+                .addLayer(1024)
+                .addLayer(1024)
+                .addLayer(16)
+                .build();
+
+        // Zero-mean weights scaled by fan-in, so the tanh units don't all saturate.
+        for (var weightMatrix : nn.getWeights()) {
+            double range = 1.0 / Math.sqrt(weightMatrix.getCols());
+            for (int idx = 0; idx < weightMatrix.data.length; idx++)
+                weightMatrix.data[idx] = (Math.random() * 2 - 1) * range;
+        }
+
+        var exact     = nn.freeze();
+        var float32   = nn.freezeFloat32();
+        var quantized = nn.freezeInt8();
+
+        // Accuracy against the double-precision network.
+        double floatMax = 0, floatSum = 0, int8Max = 0, int8Sum = 0;
+        int samples = 200;
+        for (int sampleIdx = 0; sampleIdx < samples; sampleIdx++) {
+            Vector input    = new Vector(512, () -> Math.random() * 2 - 1);
+            Vector expected = nn.simulate(input);
+            Vector floatOut = float32.predict(input);
+            Vector int8Out  = quantized.predict(input);
+            for (int idx = 0; idx < expected.size(); idx++) {
+                double floatDelta = Math.abs(floatOut.get(idx) - expected.get(idx));
+                double int8Delta  = Math.abs(int8Out.get(idx) - expected.get(idx));
+                floatMax = Math.max(floatMax, floatDelta);
+                int8Max  = Math.max(int8Max, int8Delta);
+                floatSum += floatDelta;
+                int8Sum  += int8Delta;
+            }
+        }
+        int outputs = samples * 16;
+        System.out.printf("float32: max |delta| %.2e, mean %.2e%n", floatMax, floatSum / outputs);
+        System.out.printf("int8:    max |delta| %.2e, mean %.2e%n", int8Max, int8Sum / outputs);
+        System.out.printf("model bytes: double %d, float32 %d, int8 %d%n",
+                8L * (512 * 1024 + 1024 * 1024 + 1024 * 16 + 1024 + 1024 + 16),
+                float32.getModelBytes(), quantized.getModelBytes());
+
+        Vector input          = new Vector(512, () -> Math.random() * 2 - 1);
+        Vector result         = new Vector(16);
+        var scratch           = exact.newScratch();
+        float[] floatInput    = new float[512];
+        float[] floatResult   = new float[16];
+        var floatScratch      = float32.newScratch();
+        var quantizedScratch  = quantized.newScratch();
+        for (int idx = 0; idx < 512; idx++)
+            floatInput[idx] = (float) input.get(idx);
+
+        measure("predict/double", () -> exact.predict(input, result, scratch));
+        measure("predict/float32", () -> float32.predict(floatInput, floatResult, floatScratch));
+        measure("predict/int8", () -> quantized.predict(floatInput, floatResult, quantizedScratch));
+
+        double doubleNs = results.get("predict/double")[0];
+        System.out.printf("speedup vs double: float32 %.2fx, int8 %.2fx%n",
+                doubleNs / results.get("predict/float32")[0], doubleNs / results.get("predict/int8")[0]);
+
+        System.out.println();
+    }
+
+    // ====================================================================================
+    // == benchInferenceServer ============================================================
+    // ====================================================================================
+
+    public static void benchInferenceServer() {
+        System.out.println("benchInferenceServer (closed-loop clients, latency in microseconds)");
+
+        NeuralNet nn = new NeuralNetBuilder()
+                .setRate(0.01)
+                .setTransferFunction(new TanHTransfer())
+                .addLayer(256)
+                .addLayer(512)
+                .addLayer(512)
+                .addLayer(16)
+                .build();
+        var predictor = nn.freeze();
+
+        for (int maxBatch : new int[] {1, 32}) {
+            for (int clients = 1; clients <= 64; clients *= 4) {
+                try (var server = new InferenceServer(predictor, maxBatch, 200)) {
+                    runLoad(server, clients, 200);
+                    long[] latencies = runLoad(server, clients, 1000);
+                    Arrays.sort(latencies, 1, latencies.length);
+
+                    double seconds = latencies[0] / 1e9;
+                    int requests   = latencies.length - 1;
+                    System.out.printf("maxBatch %2d, %2d clients: %8.0f req/s  p50 %8.1f  p99 %8.1f  mean batch %5.1f%n",
+                            maxBatch, clients, requests / seconds,
+                            latencies[1 + requests / 2] / 1e3, latencies[1 + requests * 99 / 100] / 1e3,
+                            server.getMeanBatchSize());
+                }
+            }
+        }
+
+        System.out.println();
+    }
+
+    // Each client sends `perClient` requests back to back. Returns the wall time
+    // in element 0 followed by the latency of every request, in nanoseconds.
+    private static long[] runLoad(InferenceServer server, int clients, int perClient) {
+        long[] latencies = new long[1 + clients * perClient];
+        var threads      = new Thread[clients];
+
+        long start = System.nanoTime();
+        for (int clientIdx = 0; clientIdx < clients; clientIdx++) {
+            int first = 1 + clientIdx * perClient;
+            threads[clientIdx] = new Thread(() -> {
+                Vector input = new Vector(256, () -> Math.random() * 2 - 1);
+                for (int idx = 0; idx < perClient; idx++) {
+                    long sent = System.nanoTime();
+                    server.predict(input);
+                    latencies[first + idx] = System.nanoTime() - sent;
+                }
+            });
+            threads[clientIdx].start();
+        }
+
+        for (var thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+
+        latencies[0] = System.nanoTime() - start;
+        return latencies;
+    }
+
+    // ====================================================================================
+    // == benchSparse =====================================================================
+    // ====================================================================================
+
+    public static void benchSparse() {
+        System.out.println("benchSparse (100 000 inputs, 1% nonzero)");
+
+        NeuralNet nn = new NeuralNetBuilder()
+                .setRate(0.01)
+                .setTransferFunction(new TanHTransfer())
+                .addLayer(100_000)
+                .addLayer(64)
+                .addLayer(1)
+                .build();
+
+        var error  = new DiffSquareError();
+        var dense  = new Vector(100_000, () -> Math.random() < 0.01 ? Math.random() : 0.0);
+        var sparse = SparseVector.fromDense(dense);
+        var target = new Vector(1, () -> 0.5);
+        var output = new Vector(1);
+
+        measure("sparse/simulate-dense", () -> nn.simulate(dense, output));
+        measure("sparse/simulate-sparse", () -> nn.simulate(sparse, output));
+        measure("sparse/train-dense", () -> {
+            nn.simulate(dense, output);
+            nn.train(error, target);
+        });
+        measure("sparse/train-sparse", () -> {
+            nn.simulate(sparse, output);
+            nn.train(error, target);
+        });
+
+        System.out.printf("speedup: simulate %.1fx, train %.1fx%n",
+                results.get("sparse/simulate-dense")[0] / results.get("sparse/simulate-sparse")[0],
+                results.get("sparse/train-dense")[0] / results.get("sparse/train-sparse")[0]);
+
+        System.out.println();
+    }
+
+    // ====================================================================================
+    // == benchConvolution ================================================================
+    // ====================================================================================
+
+    public static void benchConvolution() {
+        System.out.println("benchConvolution (1 x 28 x 28 input, 10 outputs)");
+
+        // 8 3x3 filters and 2x2 max pooling against a fully connected
+        // hidden layer as wide as the pooled feature maps. ReLU keeps the
+        // transfer function, which runs on every activation, out of the
+        // comparison.
+        NeuralNet conv = new NeuralNetBuilder()
+                .setRate(0.01)
+                .setTransferFunction(new ReLUTransfer())
+                .addInput(1, 28, 28)
+                .addConvolution(8, 3, 1, 1)
+                .addMaxPooling(2)
+                .addLayer(10)
+                .build();
+        NeuralNet dense = new NeuralNetBuilder()
+                .setRate(0.01)
+                .setTransferFunction(new ReLUTransfer())
+                .addLayer(784)
+                .addLayer(8 * 14 * 14)
+                .addLayer(10)
+                .build();
+
+        var error  = new DiffSquareError();
+        var input  = new Vector(784, () -> Math.random());
+        var target = new Vector(10, () -> Math.random() - 0.5);
+
+        System.out.printf("parameters: conv %,d, dense %,d%n", parameterCount(conv), parameterCount(dense));
+
+        measure("conv/simulate-conv", () -> conv.simulate(input));
+        measure("conv/simulate-dense", () -> dense.simulate(input));
+        measure("conv/train-conv", () -> {
+            conv.simulate(input);
+            conv.train(error, target);
+        });
+        measure("conv/train-dense", () -> {
+            dense.simulate(input);
+            dense.train(error, target);
+        });
+
+        System.out.printf("conv vs dense: simulate %.1fx, train %.1fx faster%n",
+                results.get("conv/simulate-dense")[0] / results.get("conv/simulate-conv")[0],
+                results.get("conv/train-dense")[0] / results.get("conv/train-conv")[0]);
+
+        System.out.println();
+    }
+
+    // ====================================================================================
+    // == benchCachingPredictor ===========================================================
+    // ====================================================================================
+
+    public static void benchCachingPredictor() {
+        System.out.println("benchCachingPredictor (256-256-256-10, 10 000 inputs, skewed, 1 000 cached)");
+
+        NeuralNet nn = new NeuralNetBuilder()
+                .setRate(0.01)
+                .setTransferFunction(new TanHTransfer())
+                .setInitializer(new XavierInitializer())
+                .addLayer(256)
+                .addLayer(256)
+                .addLayer(256)
+                .addLayer(10)
+                .build();
+
+        // A few inputs make up most of the requests: input r^4 * 10 000 for
+        // r uniform in [0, 1) puts half of them on the first 625 inputs.
+        var inputs = new ArrayList<Vector>();
+        for (int inputIdx = 0; inputIdx < 10_000; inputIdx++)
+            inputs.add(new Vector(256, () -> Math.random() - 0.5));
+        var requests = new Vector[1 << 16];
+        for (int idx = 0; idx < requests.length; idx++)
+            requests[idx] = inputs.get((int) (Math.pow(Math.random(), 4) * inputs.size()));
+
+        var predictor = nn.freeze();
+        var cached    = new CachingPredictor(nn, 1_000);
+        int[] next    = {0};
+
+        measure("cache/predict-uncached", () -> sink += predictor.predict(requests[next[0]++ & 0xFFFF]).get(0));
+        measure("cache/predict-cached", () -> sink += cached.predict(requests[next[0]++ & 0xFFFF]).get(0));
+
+        System.out.printf("hit rate %.1f%%, %.1fx faster%n", 100 * cached.getHitRate(),
+                results.get("cache/predict-uncached")[0] / results.get("cache/predict-cached")[0]);
+
+        System.out.println();
+    }
+
+    // ====================================================================================
+    // == benchPipeline ===================================================================
+    // ====================================================================================
+
+    public static void benchPipeline() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.println("benchPipeline (128 wide, batches of 256, micro-batches of 32, " + cores + " cores)");
+
+        for (int depth : new int[] {12, 24}) {
+            var builder = new NeuralNetBuilder()
+                    .setRate(0.01)
+                    .setTransferFunction(new TanHTransfer())
+                    .setInitializer(new XavierInitializer());
+            for (int layer = 0; layer <= depth; layer++)
+                builder.addLayer(128);
+            NeuralNet nn = builder.build();
+
+            var inputs    = new Matrix(256, 128);
+            var result    = new Matrix(256, 128);
+            var predictor = nn.freeze();
+            var scratch   = predictor.newBatchScratch(256);
+            for (int idx = 0; idx < inputs.data.length; idx++)
+                inputs.data[idx] = Math.random() - 0.5;
+
+            String serial = "pipeline/" + depth + "-layers-serial";
+            measure(serial, () -> predictor.predictBatch(inputs, result, scratch));
+            for (int stages : new int[] {2, 4}) {
+                try (var pipeline = nn.freezePipelined(stages, 32)) {
+                    String name = "pipeline/" + depth + "-layers-" + stages + "-stages";
+                    measure(name, () -> pipeline.predictBatch(inputs, result));
+                    System.out.printf("%d stages: %.2fx the serial throughput%n", stages,
+                            results.get(serial)[0] / results.get(name)[0]);
+                }
+            }
+        }
+
+        System.out.println();
+    }
+
+    // ====================================================================================
+    // == benchRegularization =============================================================
+    // ====================================================================================
+
+    public static void benchRegularization() {
+        System.out.println("benchRegularization (256-256-256-10, dropout 0.5 and L2 decay 1e-4)");
+
+        var error   = new DiffSquareError();
+        var samples = new ArrayList<Sample>();
+        for (int sampleIdx = 0; sampleIdx < 32; sampleIdx++)
+            samples.add(new Sample(new Vector(256, () -> Math.random()), new Vector(10, () -> Math.random() - 0.5)));
+
+        for (boolean regularized : new boolean[] {false, true}) {
+            var builder = new NeuralNetBuilder()
+                    .setRate(0.01)
+                    .setTransferFunction(new TanHTransfer())
+                    .setInitializer(new XavierInitializer())
+                    .addLayer(256)
+                    .addLayer(256);
+            if (regularized)
+                builder.addDropout(0.5).setWeightDecay(1e-4);
+            builder.addLayer(256);
+            if (regularized)
+                builder.addDropout(0.5);
+            NeuralNet nn = builder.addLayer(10).build();
+
+            String suffix = regularized ? "-regularized" : "-plain";
+            var sample    = samples.get(0);
+            var output    = new Vector(10);
+            measure("dropout/train" + suffix, () -> {
+                nn.simulate(sample, output);
+                nn.train(error, sample.getDesired());
+            });
+            measure("dropout/train-batch-32" + suffix, () -> nn.trainBatch(error, samples));
+        }
+
+        double single = results.get("dropout/train-regularized")[0] / results.get("dropout/train-plain")[0];
+        double batch  = results.get("dropout/train-batch-32-regularized")[0]
+                / results.get("dropout/train-batch-32-plain")[0];
+        System.out.printf("overhead: train %+.1f%%, train-batch %+.1f%%%n", 100 * (single - 1), 100 * (batch - 1));
+
+        System.out.println();
+    }
+
+    private static int parameterCount(NeuralNet nn) {
+        int parameters = 0;
+        for (var layer : nn.getLayers())
+            parameters += layer.getParameterCount();
+        return parameters;
+    }
+
+}
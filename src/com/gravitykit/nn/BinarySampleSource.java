@@ -0,0 +1,156 @@
+package com.gravitykit.nn;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/*
+
+    BinarySampleSource reads samples from a packed binary dataset file.
+    All values are little-endian.
+
+        int     magic           'GKDS'
+        int     version         1
+        int     input size
+        int     output size
+        then per sample:
+            double[input size]  input
+            double[output size] desired
+
+    The file is read sequentially through a fixed-size buffer, so memory
+    use doesn't depend on the dataset size. write(...) converts any other
+    source, a CsvSampleSource for example, into this format.
+
+ */
+
+public class BinarySampleSource implements ISampleSource {
+
+    static final int MAGIC       = 0x53444B47; // "GKDS" read little-endian
+    static final int VERSION     = 1;
+    static final int HEADER_SIZE = 16;
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final int inputSize;
+    private final int outputSize;
+
+    public BinarySampleSource(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.buffer  = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        var header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining())
+            if (channel.read(header) < 0)
+                throw new IOException("Not a dataset file: " + path);
+        header.flip();
+
+        if (header.getInt() != MAGIC)
+            throw new IOException("Not a dataset file: " + path);
+        if (header.getInt() != VERSION)
+            throw new IOException("Unsupported dataset version");
+
+        this.inputSize  = header.getInt();
+        this.outputSize = header.getInt();
+        if (Double.BYTES * (inputSize + outputSize) > BUFFER_SIZE)
+            throw new IOException("Samples larger than the read buffer are not supported");
+
+        reset();
+    }
+
+    public int getInputSize() {
+        return inputSize;
+    }
+
+    public int getOutputSize() {
+        return outputSize;
+    }
+
+    @Override
+    public Sample next() throws IOException {
+        int recordSize = Double.BYTES * (inputSize + outputSize);
+
+        if (buffer.remaining() < recordSize) {
+            buffer.compact();
+            while (buffer.position() < recordSize && channel.read(buffer) >= 0)
+                ;
+            buffer.flip();
+
+            if (buffer.remaining() == 0)
+                return null;
+            if (buffer.remaining() < recordSize)
+                throw new EOFException("Dataset file ends in the middle of a sample");
+        }
+
+        var input   = new Vector(inputSize);
+        var desired = new Vector(outputSize);
+        var doubles = buffer.asDoubleBuffer();
+        doubles.get(input.data);
+        doubles.get(desired.data);
+        buffer.position(buffer.position() + recordSize);
+
+        return new Sample(input, desired);
+    }
+
+    @Override
+    public void reset() throws IOException {
+        channel.position(HEADER_SIZE);
+        buffer.clear().flip();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Writes every remaining sample of the source to a packed dataset file.
+     * Returns the number of samples written.
+     */
+    public static long write(ISampleSource source, Path path) throws IOException {
+        try (var out = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            var buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            long count = 0;
+
+            Sample sample = source.next();
+            if (sample == null)
+                throw new IOException("Cannot write an empty dataset");
+
+            int inputSize  = sample.getInput().size();
+            int outputSize = sample.getDesired().size();
+            int recordSize = Double.BYTES * (inputSize + outputSize);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(inputSize).putInt(outputSize);
+
+            for (; sample != null; sample = source.next()) {
+                if (sample.getInput().size() != inputSize || sample.getDesired().size() != outputSize)
+                    throw new IOException("Sample " + count + " has a different size than the first");
+
+                if (buffer.remaining() < recordSize) {
+                    buffer.flip();
+                    while (buffer.hasRemaining())
+                        out.write(buffer);
+                    buffer.clear();
+                }
+
+                var doubles = buffer.asDoubleBuffer();
+                doubles.put(sample.getInput().data, 0, sample.getInput().size());
+                doubles.put(sample.getDesired().data, 0, sample.getDesired().size());
+                buffer.position(buffer.position() + recordSize);
+                count++;
+            }
+
+            buffer.flip();
+            while (buffer.hasRemaining())
+                out.write(buffer);
+
+            return count;
+        }
+    }
+
+}
@@ -0,0 +1,297 @@
+package com.gravitykit.nn;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * CachingPredictor memoizes the predictions of a NeuralNet, for workloads
+ * where the same inputs come back again and again (categorical features,
+ * hot keys). A repeated input is answered from the cache without running
+ * the forward pass.
+ *
+ * Entries are keyed by the contents of the input, compared exactly, and
+ * the cache holds at most `capacity` of them, evicting the least recently
+ * used. It is split into segments with a lock each, so threads looking up
+ * different inputs rarely wait for one another; with 64 entries or more
+ * the LRU order is kept per segment.
+ *
+ * Predictions come from a Predictor frozen from the network. Every call
+ * compares the network's getWeightVersion() with that of the snapshot and,
+ * after addLayer, train, trainBatch, a parallel trainer or a checkpoint
+ * restore, freezes it again and starts over with an empty cache. Weights
+ * written directly need a NeuralNet.markWeightsChanged(). The new snapshot
+ * is taken on the predicting thread, so like freeze() it should not race
+ * with training.
+ *
+ *     var cached = new CachingPredictor(nn, 100_000);
+ *     var output = cached.predict(input);
+ *     System.out.println(cached.getHitRate());
+ */
+
+public final class CachingPredictor {
+
+    private static final int SEGMENTS = 16;
+
+    // A copy of an input, or a view of the caller's input while looking
+    // one up. Sparse inputs keep their indices too, so they never equal a
+    // dense input.
+    private static final class Key {
+        final double[] values;
+        final int[] indices;
+        final int length;
+        final int hash;
+
+        Key(double[] values, int[] indices, int length) {
+            this.values  = values;
+            this.indices = indices;
+            this.length  = length;
+
+            int hash = indices == null ? 0 : 1;
+            for (int idx = 0; idx < length; idx++) {
+                long bits = Double.doubleToLongBits(values[idx]);
+                hash = 31 * hash + (int) (bits ^ (bits >>> 32));
+                if (indices != null)
+                    hash = 31 * hash + indices[idx];
+            }
+            this.hash = hash ^ (hash >>> 16);
+        }
+
+        Key copy() {
+            return new Key(Arrays.copyOf(values, length), indices == null ? null : Arrays.copyOf(indices, length),
+                    length);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key))
+                return false;
+
+            var key = (Key) other;
+            return hash == key.hash && length == key.length
+                    && (indices == null) == (key.indices == null)
+                    && (indices == null || Arrays.equals(indices, 0, length, key.indices, 0, length))
+                    && Arrays.equals(values, 0, length, key.values, 0, length);
+        }
+    }
+
+    // An access-ordered map that drops its least recently used entry once
+    // it holds more than capacity. Guarded by its own monitor.
+    private static final class Segment extends LinkedHashMap<Key, double[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+        private final LongAdder evictions;
+
+        Segment(int capacity, LongAdder evictions) {
+            super(16, 0.75f, true);
+            this.capacity  = capacity;
+            this.evictions = evictions;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, double[]> eldest) {
+            if (size() <= capacity)
+                return false;
+
+            evictions.increment();
+            return true;
+        }
+    }
+
+    // The snapshot of one weight version and the outputs cached for it.
+    private static final class Generation {
+        final Predictor predictor;
+        final long version;
+        final Segment[] segments;
+
+        Generation(Predictor predictor, long version, Segment[] segments) {
+            this.predictor = predictor;
+            this.version   = version;
+            this.segments  = segments;
+        }
+    }
+
+    private final NeuralNet nn;
+    private final int capacity;
+    private final int segmentCount;
+    private volatile Generation generation;
+
+    private final LongAdder hits          = new LongAdder();
+    private final LongAdder misses        = new LongAdder();
+    private final LongAdder evictions     = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    public CachingPredictor(NeuralNet nn, int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Cache capacity must be positive");
+
+        this.nn           = nn;
+        this.capacity     = capacity;
+        this.segmentCount = capacity >= 4 * SEGMENTS ? SEGMENTS : 1;
+        long version      = nn.getWeightVersion();
+        this.generation   = new Generation(nn.freeze(), version, newSegments());
+    }
+
+    private Segment[] newSegments() {
+        var segments = new Segment[segmentCount];
+        for (int idx = 0; idx < segmentCount; idx++)
+            segments[idx] = new Segment((capacity + idx) / segmentCount, evictions);
+        return segments;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getInputSize() {
+        return generation.predictor.getInputSize();
+    }
+
+    public int getOutputSize() {
+        return generation.predictor.getOutputSize();
+    }
+
+    /**
+     * Returns the prediction for input, from the cache when the same input
+     * was seen since the weights last changed. The result is the caller's.
+     */
+    public Vector predict(Vector input) {
+        var current = current();
+        if (input.size() != current.predictor.getInputSize())
+            throw new ArithmeticException("Vector size mismatch");
+
+        var key    = new Key(input.data, null, input.size());
+        var output = lookup(current, key);
+        if (output != null)
+            return new Vector(output);
+
+        var result = current.predictor.predict(input);
+        store(current, key, result);
+        return result;
+    }
+
+    /**
+     * Like predict(Vector). Sparse and dense inputs are cached apart, even
+     * when they hold the same values.
+     */
+    public Vector predict(SparseVector input) {
+        var current = current();
+        if (input.size() != current.predictor.getInputSize())
+            throw new ArithmeticException("Vector size mismatch");
+
+        var key    = new Key(input.values, input.indices, input.nonZeros);
+        var output = lookup(current, key);
+        if (output != null)
+            return new Vector(output);
+
+        var result = current.predictor.predict(input);
+        store(current, key, result);
+        return result;
+    }
+
+    // The generation for the current weights, frozen again if they changed.
+    private Generation current() {
+        var current  = generation;
+        long version = nn.getWeightVersion();
+        if (current.version == version)
+            return current;
+
+        synchronized (this) {
+            current = generation;
+            if (current.version != version) {
+                current    = new Generation(nn.freeze(), version, newSegments());
+                generation = current;
+                invalidations.increment();
+            }
+            return current;
+        }
+    }
+
+    private Segment segmentFor(Generation current, Key key) {
+        return current.segments[(key.hash & Integer.MAX_VALUE) % segmentCount];
+    }
+
+    private double[] lookup(Generation current, Key key) {
+        var segment = segmentFor(current, key);
+        double[] output;
+        synchronized (segment) {
+            output = segment.get(key);
+        }
+
+        if (output != null)
+            hits.increment();
+        else
+            misses.increment();
+        return output;
+    }
+
+    private void store(Generation current, Key key, Vector result) {
+        var segment = segmentFor(current, key);
+        var copy    = key.copy();
+        var output  = result.toArray();
+        synchronized (segment) {
+            segment.put(copy, output);
+        }
+    }
+
+    /**
+     * Empties the cache without freezing the network again.
+     */
+    public void clear() {
+        for (var segment : generation.segments)
+            synchronized (segment) {
+                segment.clear();
+            }
+    }
+
+    /**
+     * Entries currently cached.
+     */
+    public int size() {
+        int size = 0;
+        for (var segment : generation.segments)
+            synchronized (segment) {
+                size += segment.size();
+            }
+        return size;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Entries dropped to stay within the capacity.
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Times the cache was emptied because the weights changed.
+     */
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    /**
+     * Hits over all lookups, 0 before the first one.
+     */
+    public double getHitRate() {
+        long hits  = getHits();
+        long total = hits + getMisses();
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+}
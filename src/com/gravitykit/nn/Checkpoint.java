@@ -0,0 +1,256 @@
+package com.gravitykit.nn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+
+    Checkpoint is the complete state of a training run: the weights and
+    biases, the optimizer state, the dropout generator, and where Trainer
+    was in its sample order. Checkpointer writes them; load(...) reads one back, restore(nn)
+    puts the weights and optimizer state into a network built with the
+    same layout and optimizer, and Trainer.resume(...) continues the run
+    with the next sample it would have trained on.
+
+    File format, all values little-endian:
+
+        int     magic               'GKCP'
+        int     version             2
+        long    optimizer step count
+        long    dropout state       the SplitMix64 state of the masks, absent in version 1
+        long    epoch               the epoch in progress
+        long    next sample         position in that epoch's order
+        long    shuffle seed
+        long    best epoch
+        long    epochs since best
+        double  loss summed over the epoch so far
+        double  best monitored loss
+        int     n, byte[n]          optimizer class name, UTF-8
+        int     n, int[n]           sample order of the epoch (n = 0 without a Trainer)
+        int[4]  array counts        parameters, optimizer state, best parameters, loss history
+        for every array, in that order:
+            int     length
+            double[length]
+
+    Parameters alternate weights (row-major) and bias, layer by layer;
+    both are empty for layers without parameters, such as pooling.
+    The best parameters are only kept with early stopping, and the loss
+    history holds the training losses, validation losses and rates of the
+    finished epochs.
+
+ */
+
+public final class Checkpoint {
+
+    static final int MAGIC   = 0x50434B47; // "GKCP" read little-endian
+    static final int VERSION = 2;
+
+    // Training position, filled in by Trainer. Zero for a bare network.
+    long epoch;
+    long nextSample;
+    long seed;
+    long bestEpoch;
+    long sinceBest;
+    double lossSum;
+    double best = Double.POSITIVE_INFINITY;
+    int[] order = new int[0];
+
+    long stepCount;
+    long dropoutState;
+    String optimizer = "";
+
+    final ArrayList<double[]> parameters     = new ArrayList<>();
+    final ArrayList<double[]> optimizerState = new ArrayList<>();
+    final ArrayList<double[]> bestParameters = new ArrayList<>();
+    final ArrayList<double[]> history        = new ArrayList<>();
+
+    Checkpoint() {}
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * The position of the next sample in the epoch's order.
+     */
+    public long getNextSample() {
+        return nextSample;
+    }
+
+    public long getStepCount() {
+        return stepCount;
+    }
+
+    /**
+     * Copies the weights, biases and optimizer state of nn into this
+     * checkpoint. The arrays are allocated on the first capture and reused
+     * after that, so a Checkpointer doesn't allocate per snapshot.
+     */
+    void capture(NeuralNet nn) {
+        var layers = nn.getLayers();
+        for (int layer = 0; layer < layers.size(); layer++) {
+            var weights = layers.get(layer).weights;
+            var bias    = layers.get(layer).bias;
+            copy(parameters, 2 * layer, weights.data, weights.data.length);
+            copy(parameters, 2 * layer + 1, bias.data, bias.size);
+        }
+        trim(parameters, 2 * layers.size());
+
+        var state = nn.getOptimizer().getState();
+        for (int idx = 0; idx < state.size(); idx++)
+            copy(optimizerState, idx, state.get(idx), state.get(idx).length);
+        trim(optimizerState, state.size());
+
+        stepCount    = nn.getOptimizer().getStepCount();
+        dropoutState = nn.getDropoutState();
+        optimizer    = nn.getOptimizer().getClass().getName();
+    }
+
+    // Copies values into arrays[slot], reallocating it only if the length changed.
+    static void copy(List<double[]> arrays, int slot, double[] values, int length) {
+        if (arrays.size() == slot)
+            arrays.add(new double[length]);
+        else if (arrays.get(slot).length != length)
+            arrays.set(slot, new double[length]);
+        System.arraycopy(values, 0, arrays.get(slot), 0, length);
+    }
+
+    static void trim(List<double[]> arrays, int size) {
+        while (arrays.size() > size)
+            arrays.remove(arrays.size() - 1);
+    }
+
+    /**
+     * Puts the saved weights, biases and optimizer state into nn, which
+     * must have the layout and optimizer type of the network the
+     * checkpoint was taken from.
+     */
+    public void restore(NeuralNet nn) {
+        var layers = nn.getLayers();
+        if (parameters.size() != 2 * layers.size())
+            throw new IllegalArgumentException("Checkpoint has " + parameters.size() / 2 + " layers, network "
+                    + layers.size());
+
+        for (int layer = 0; layer < layers.size(); layer++) {
+            var weights = layers.get(layer).weights;
+            var bias    = layers.get(layer).bias;
+            restore(parameters.get(2 * layer), weights.data, weights.data.length);
+            restore(parameters.get(2 * layer + 1), bias.data, bias.size);
+        }
+        nn.markWeightsChanged();
+        nn.setDropoutState(dropoutState);
+
+        var optimizer = nn.getOptimizer();
+        var state     = optimizer.getState();
+        if (!optimizer.getClass().getName().equals(this.optimizer) || state.size() != optimizerState.size())
+            throw new IllegalArgumentException("Checkpoint was taken with " + this.optimizer + ", network uses "
+                    + optimizer.getClass().getName());
+        for (int idx = 0; idx < state.size(); idx++)
+            restore(optimizerState.get(idx), state.get(idx), state.get(idx).length);
+        optimizer.setStepCount(stepCount);
+    }
+
+    private static void restore(double[] saved, double[] target, int length) {
+        if (saved.length != length)
+            throw new IllegalArgumentException("Checkpoint array of " + saved.length + " values, network has " + length);
+        System.arraycopy(saved, 0, target, 0, length);
+    }
+
+    // ====================================================================================
+    // == File format =====================================================================
+    // ====================================================================================
+
+    void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        byte[] name = optimizer.getBytes(StandardCharsets.UTF_8);
+
+        var header = ByteBuffer.allocate(104 + name.length + 4 * order.length).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION);
+        header.putLong(stepCount).putLong(dropoutState).putLong(epoch).putLong(nextSample).putLong(seed).putLong(bestEpoch).putLong(sinceBest);
+        header.putDouble(lossSum).putDouble(best);
+        header.putInt(name.length).put(name);
+        header.putInt(order.length);
+        for (int position : order)
+            header.putInt(position);
+        header.putInt(parameters.size()).putInt(optimizerState.size()).putInt(bestParameters.size()).putInt(history.size());
+        header.flip();
+        ModelIO.writeFully(channel, header);
+
+        buffer.clear();
+        for (var group : List.of(parameters, optimizerState, bestParameters, history))
+            for (double[] values : group) {
+                if (buffer.remaining() < Integer.BYTES) {
+                    buffer.flip();
+                    ModelIO.writeFully(channel, buffer);
+                    buffer.clear();
+                }
+                buffer.putInt(values.length);
+                ModelIO.writeDoubles(channel, buffer, values, values.length);
+            }
+        buffer.flip();
+        ModelIO.writeFully(channel, buffer);
+    }
+
+    /**
+     * Reads a checkpoint written by a Checkpointer.
+     */
+    public static Checkpoint load(Path path) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                    .order(ByteOrder.LITTLE_ENDIAN);
+
+            if (buffer.remaining() < 8 || buffer.getInt() != MAGIC)
+                throw new IOException("Not a checkpoint file: " + path);
+            int version = buffer.getInt();
+            if (version < 1 || version > VERSION)
+                throw new IOException("Unsupported checkpoint version " + version);
+
+            try {
+                var checkpoint        = new Checkpoint();
+                checkpoint.stepCount  = buffer.getLong();
+                if (version >= 2)
+                    checkpoint.dropoutState = buffer.getLong();
+                checkpoint.epoch      = buffer.getLong();
+                checkpoint.nextSample = buffer.getLong();
+                checkpoint.seed       = buffer.getLong();
+                checkpoint.bestEpoch  = buffer.getLong();
+                checkpoint.sinceBest  = buffer.getLong();
+                checkpoint.lossSum    = buffer.getDouble();
+                checkpoint.best       = buffer.getDouble();
+
+                byte[] name = new byte[buffer.getInt()];
+                buffer.get(name);
+                checkpoint.optimizer = new String(name, StandardCharsets.UTF_8);
+
+                checkpoint.order = new int[buffer.getInt()];
+                buffer.asIntBuffer().get(checkpoint.order);
+                buffer.position(buffer.position() + 4 * checkpoint.order.length);
+
+                int[] counts = new int[4];
+                for (int idx = 0; idx < counts.length; idx++)
+                    counts[idx] = buffer.getInt();
+
+                var groups = List.of(checkpoint.parameters, checkpoint.optimizerState, checkpoint.bestParameters,
+                        checkpoint.history);
+                for (int group = 0; group < groups.size(); group++)
+                    for (int idx = 0; idx < counts[group]; idx++) {
+                        double[] values = new double[buffer.getInt()];
+                        buffer.asDoubleBuffer().get(values);
+                        buffer.position(buffer.position() + 8 * values.length);
+                        groups.get(group).add(values);
+                    }
+
+                return checkpoint;
+            } catch (RuntimeException e) {
+                throw new IOException("Corrupt checkpoint " + path, e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,167 @@
+package com.gravitykit.nn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Checkpointer writes Checkpoints to a file without stalling training.
+ *
+ * Taking a checkpoint copies the network state into a snapshot buffer
+ * that is reused from one checkpoint to the next. The only work done on
+ * the training thread is that copy. A background thread then writes the
+ * snapshot to a temporary file, forces it to disk and atomically renames
+ * it over the previous checkpoint, so a crash at any point leaves the
+ * last complete one in place.
+ *
+ * If the previous snapshot is still being written, a new checkpoint is
+ * skipped rather than waited for; getSkipped() counts those. Snapshots
+ * must be taken from one thread at a time.
+ *
+ *     try (var checkpointer = new Checkpointer(Path.of("run.ckpt"))) {
+ *         new Trainer(nn, error).setCheckpointing(checkpointer, 1000).train(samples);
+ *     }
+ *
+ *     // after a crash, on a network built the same way:
+ *     new Trainer(nn, error).resume(Checkpoint.load(Path.of("run.ckpt"))).train(samples);
+ */
+
+public class Checkpointer implements AutoCloseable {
+
+    private final Path path;
+    private final Path temporary;
+    private final ExecutorService writer;
+    private final Checkpoint snapshot = new Checkpoint();
+    private final ByteBuffer buffer   = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+
+    private Future<?> pending            = null;
+    private long skipped                 = 0;
+    private volatile long written        = 0;
+    private volatile IOException failure = null;
+
+    public Checkpointer(Path path) {
+        this.path      = path;
+        this.temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        this.writer    = Executors.newSingleThreadExecutor(runnable -> {
+            var thread = new Thread(runnable, "checkpoint-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Checkpoints written to disk so far.
+     */
+    public long getWritten() {
+        return written;
+    }
+
+    /**
+     * Checkpoints dropped because the previous one was still being written.
+     */
+    public long getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * Snapshots the weights, biases and optimizer state of nn, without a
+     * training position, and writes them in the background. Returns false
+     * if the checkpoint was skipped.
+     */
+    public boolean checkpoint(NeuralNet nn) throws IOException {
+        var snapshot = begin(nn);
+        if (snapshot == null)
+            return false;
+
+        snapshot.order = new int[0];
+        snapshot.history.clear();
+        snapshot.bestParameters.clear();
+        commit();
+        return true;
+    }
+
+    // Returns the snapshot buffer with the network state already copied
+    // in, for the caller to add its training position before commit(), or
+    // null if the previous write is still running.
+    Checkpoint begin(NeuralNet nn) throws IOException {
+        if (pending != null) {
+            if (!pending.isDone()) {
+                skipped++;
+                return null;
+            }
+            pending = null;
+        }
+        throwFailure();
+
+        snapshot.capture(nn);
+        return snapshot;
+    }
+
+    void commit() {
+        pending = writer.submit(this::write);
+    }
+
+    private void write() {
+        try {
+            try (var channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                snapshot.write(channel, buffer);
+                channel.force(true);
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            written++;
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    /**
+     * Waits for the checkpoint being written, if any, and reports a failed
+     * write.
+     */
+    public void flush() throws IOException {
+        if (pending != null) {
+            try {
+                pending.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while writing a checkpoint", e);
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+            pending = null;
+        }
+        throwFailure();
+    }
+
+    private void throwFailure() throws IOException {
+        var failed = failure;
+        if (failed != null) {
+            failure = null;
+            throw failed;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            writer.shutdown();
+        }
+    }
+
+}
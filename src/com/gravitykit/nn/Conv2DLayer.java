@@ -0,0 +1,223 @@
+package com.gravitykit.nn;
+
+import java.util.Arrays;
+
+/*
+
+    Conv2DLayer is a 2D convolution over an input of channels x height x
+    width values, producing filters x outputHeight x outputWidth, where
+
+        outputHeight = (height + 2 * padding - kernelSize) / stride + 1
+
+    and the same for the width. Both are stored channel-major, element
+    (channel, y, x) at (channel * height + y) * width + x.
+
+    Each filter has one kernelSize x kernelSize weight window per input
+    channel, stored as a row of the filters x (channels * kernelSize^2)
+    weight matrix, and one bias. The parameter count depends only on the
+    kernel and channel counts, not on the size of the image.
+
+    The layer runs on the Matrix GEMM kernels by way of im2col: every
+    input window is copied into a column of a
+    (channels * kernelSize^2) x (outputHeight * outputWidth) matrix, so
+
+        forward     output         = weights * columns
+        gradient    weightGradient = deltas * transpose(columns)
+        backward    inputDeltas    = col2im(transpose(weights) * deltas)
+
+    The columns matrix is the layer's per-thread scratch buffer. Positions
+    outside the input (padding) read as zero.
+
+ */
+
+public class Conv2DLayer extends Layer {
+
+    private final int channels;
+    private final int height;
+    private final int width;
+    private final int kernelSize;
+    private final int stride;
+    private final int padding;
+    private final int outputHeight;
+    private final int outputWidth;
+
+    /**
+     * filters holds one row of channels * kernelSize * kernelSize weights
+     * per output channel, bias one value per output channel.
+     */
+    public Conv2DLayer(int channels, int height, int width, int kernelSize, int stride, int padding,
+            Matrix filters, Vector bias, ITransferFunction transfer) {
+        super(filters, bias, transfer);
+        if (channels < 1 || height < 1 || width < 1 || kernelSize < 1 || stride < 1 || padding < 0)
+            throw new IllegalArgumentException("Invalid convolution shape");
+        if (filters.getCols() != channels * kernelSize * kernelSize || bias.size != filters.getRows())
+            throw new ArithmeticException("Filters must be " + bias.size + " x " + channels * kernelSize * kernelSize);
+
+        this.channels     = channels;
+        this.height       = height;
+        this.width        = width;
+        this.kernelSize   = kernelSize;
+        this.stride       = stride;
+        this.padding      = padding;
+        this.outputHeight = (height + 2 * padding - kernelSize) / stride + 1;
+        this.outputWidth  = (width + 2 * padding - kernelSize) / stride + 1;
+
+        if (height + 2 * padding < kernelSize || width + 2 * padding < kernelSize)
+            throw new IllegalArgumentException("Kernel of " + kernelSize + " larger than the padded "
+                    + height + " x " + width + " input");
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getFilters() {
+        return weights.getRows();
+    }
+
+    public int getKernelSize() {
+        return kernelSize;
+    }
+
+    public int getStride() {
+        return stride;
+    }
+
+    public int getPadding() {
+        return padding;
+    }
+
+    public int getOutputHeight() {
+        return outputHeight;
+    }
+
+    public int getOutputWidth() {
+        return outputWidth;
+    }
+
+    @Override
+    public int getInputSize() {
+        return channels * height * width;
+    }
+
+    @Override
+    public int getOutputSize() {
+        return getFilters() * outputHeight * outputWidth;
+    }
+
+    @Override
+    public Conv2DLayer copy() {
+        return new Conv2DLayer(channels, height, width, kernelSize, stride, padding, weights.copy(), bias.copy(),
+                transfer);
+    }
+
+    @Override
+    int getFanOut() {
+        return getFilters() * kernelSize * kernelSize;
+    }
+
+    @Override
+    int getScratchSize() {
+        return weights.getCols() * outputHeight * outputWidth;
+    }
+
+    @Override
+    void forward(double[] input, double[] output, double[] scratch) {
+        int area = outputHeight * outputWidth;
+        im2col(input, scratch);
+        Matrix.multiply(weights.data, scratch, output, weights.getRows(), weights.getCols(), area);
+
+        for (int filter = 0; filter < weights.getRows(); filter++) {
+            double value = bias.data[filter];
+            int offset   = filter * area;
+            for (int idx = offset; idx < offset + area; idx++)
+                output[idx] += value;
+        }
+    }
+
+    @Override
+    void backward(double[] input, double[] deltas, double[] inputDeltas, double[] scratch) {
+        Matrix.transposeMultiply(weights.data, deltas, scratch, weights.getRows(), weights.getCols(),
+                outputHeight * outputWidth);
+        col2im(scratch, inputDeltas);
+    }
+
+    @Override
+    void gradient(double[] input, double[] deltas, double[] weightGradient, double[] biasGradient,
+            boolean accumulate, double[] scratch) {
+        int area = outputHeight * outputWidth;
+        im2col(input, scratch);
+        Matrix.multiplyTranspose(deltas, scratch, weightGradient, weights.getRows(), area, weights.getCols(),
+                accumulate);
+
+        for (int filter = 0; filter < weights.getRows(); filter++) {
+            double deltaSum = 0;
+            for (int idx = filter * area; idx < (filter + 1) * area; idx++)
+                deltaSum += deltas[idx];
+            biasGradient[filter] = accumulate ? biasGradient[filter] + deltaSum : deltaSum;
+        }
+    }
+
+    // columns[(channel * k + ky) * k + kx][outY * outputWidth + outX]
+    //     = input[channel][outY * stride + ky - padding][outX * stride + kx - padding]
+    private void im2col(double[] input, double[] columns) {
+        int area = outputHeight * outputWidth;
+        int row  = 0;
+
+        for (int channel = 0; channel < channels; channel++)
+            for (int ky = 0; ky < kernelSize; ky++)
+                for (int kx = 0; kx < kernelSize; kx++, row++) {
+                    int offset = row * area;
+                    for (int outY = 0; outY < outputHeight; outY++) {
+                        int y         = outY * stride + ky - padding;
+                        int rowOffset = offset + outY * outputWidth;
+                        if (y < 0 || y >= height) {
+                            Arrays.fill(columns, rowOffset, rowOffset + outputWidth, 0.0);
+                            continue;
+                        }
+
+                        int inputOffset = (channel * height + y) * width;
+                        for (int outX = 0; outX < outputWidth; outX++) {
+                            int x = outX * stride + kx - padding;
+                            columns[rowOffset + outX] = x >= 0 && x < width ? input[inputOffset + x] : 0.0;
+                        }
+                    }
+                }
+    }
+
+    // The adjoint of im2col: every column entry is added back to the input
+    // position it was copied from. Overlapping windows add up.
+    private void col2im(double[] columns, double[] input) {
+        int area = outputHeight * outputWidth;
+        int row  = 0;
+        Arrays.fill(input, 0, getInputSize(), 0.0);
+
+        for (int channel = 0; channel < channels; channel++)
+            for (int ky = 0; ky < kernelSize; ky++)
+                for (int kx = 0; kx < kernelSize; kx++, row++) {
+                    int offset = row * area;
+                    for (int outY = 0; outY < outputHeight; outY++) {
+                        int y = outY * stride + ky - padding;
+                        if (y < 0 || y >= height)
+                            continue;
+
+                        int rowOffset   = offset + outY * outputWidth;
+                        int inputOffset = (channel * height + y) * width;
+                        for (int outX = 0; outX < outputWidth; outX++) {
+                            int x = outX * stride + kx - padding;
+                            if (x >= 0 && x < width)
+                                input[inputOffset + x] += columns[rowOffset + outX];
+                        }
+                    }
+                }
+    }
+
+}
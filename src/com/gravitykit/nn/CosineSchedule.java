@@ -0,0 +1,28 @@
+package com.gravitykit.nn;
+
+/**
+ * Anneals the rate from the base rate down to minRate along half a
+ * cosine over the given number of epochs, then holds minRate.
+ */
+
+public class CosineSchedule implements ILearningRateSchedule {
+
+    private final int epochs;
+    private final double minRate;
+
+    public CosineSchedule(int epochs, double minRate) {
+        if (epochs < 1)
+            throw new IllegalArgumentException("epochs must be positive");
+
+        this.epochs  = epochs;
+        this.minRate = minRate;
+    }
+
+    @Override
+    public double getRate(int epoch, double baseRate) {
+        if (epoch >= epochs)
+            return minRate;
+
+        return minRate + 0.5 * (baseRate - minRate) * (1 + Math.cos(Math.PI * epoch / epochs));
+    }
+}
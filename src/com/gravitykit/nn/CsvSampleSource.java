@@ -0,0 +1,82 @@
+package com.gravitykit.nn;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * CsvSampleSource reads samples from a comma-separated text file, one
+ * sample per line: inputSize input values followed by outputSize desired
+ * values. Blank lines and lines starting with '#' are skipped.
+ */
+
+public class CsvSampleSource implements ISampleSource {
+
+    private final Path path;
+    private final int inputSize;
+    private final int outputSize;
+    private BufferedReader reader;
+    private long lineNumber;
+
+    public CsvSampleSource(Path path, int inputSize, int outputSize) throws IOException {
+        this.path       = path;
+        this.inputSize  = inputSize;
+        this.outputSize = outputSize;
+        reset();
+    }
+
+    @Override
+    public Sample next() throws IOException {
+        String line;
+        do {
+            line = reader.readLine();
+            lineNumber++;
+            if (line == null)
+                return null;
+            line = line.strip();
+        } while (line.isEmpty() || line.startsWith("#"));
+
+        var input   = new Vector(inputSize);
+        var desired = new Vector(outputSize);
+
+        int start = 0;
+        for (int field = 0; field < inputSize + outputSize; field++) {
+            int end = line.indexOf(',', start);
+            if (end < 0)
+                end = line.length();
+            if (start > line.length())
+                throw new IOException(path + ":" + lineNumber + ": expected " + (inputSize + outputSize) + " values");
+
+            double value;
+            try {
+                value = Double.parseDouble(line.substring(start, end).strip());
+            } catch (NumberFormatException e) {
+                throw new IOException(path + ":" + lineNumber + ": " + e.getMessage(), e);
+            }
+
+            if (field < inputSize)
+                input.data[field] = value;
+            else
+                desired.data[field - inputSize] = value;
+            start = end + 1;
+        }
+
+        return new Sample(input, desired);
+    }
+
+    @Override
+    public void reset() throws IOException {
+        close();
+        reader     = Files.newBufferedReader(path);
+        lineNumber = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (reader != null)
+            reader.close();
+        reader = null;
+    }
+
+}
@@ -0,0 +1,99 @@
+package com.gravitykit.nn;
+
+import java.util.Arrays;
+
+/**
+ * A fully connected layer: output = weights * input + bias, with one
+ * weight row per output node.
+ */
+
+public class DenseLayer extends Layer {
+
+    public DenseLayer(Matrix weights, Vector bias, ITransferFunction transfer) {
+        super(weights, bias, transfer);
+        if (bias.size != weights.getRows())
+            throw new ArithmeticException("Bias size " + bias.size + " for " + weights.getRows() + " rows");
+    }
+
+    @Override
+    public int getInputSize() {
+        return weights.getCols();
+    }
+
+    @Override
+    public int getOutputSize() {
+        return weights.getRows();
+    }
+
+    @Override
+    public DenseLayer copy() {
+        return new DenseLayer(weights.copy(), bias.copy(), transfer);
+    }
+
+    @Override
+    void forward(double[] input, double[] output, double[] scratch) {
+        int rows    = weights.getRows();
+        int columns = weights.getCols();
+        for (int row = 0; row < rows; row++)
+            output[row] = Kernels.INSTANCE.dot(weights.data, row * columns, input, 0, columns);
+        Kernels.INSTANCE.axpy(1.0, bias.data, 0, output, 0, rows);
+    }
+
+    @Override
+    void backward(double[] input, double[] deltas, double[] inputDeltas, double[] scratch) {
+        int columns = weights.getCols();
+        Arrays.fill(inputDeltas, 0, columns, 0.0);
+        for (int row = 0; row < weights.getRows(); row++)
+            Kernels.INSTANCE.axpy(deltas[row], weights.data, row * columns, inputDeltas, 0, columns);
+    }
+
+    @Override
+    void gradient(double[] input, double[] deltas, double[] weightGradient, double[] biasGradient,
+            boolean accumulate, double[] scratch) {
+        int rows    = weights.getRows();
+        int columns = weights.getCols();
+
+        if (accumulate) {
+            for (int rowIdx = 0; rowIdx < rows; rowIdx++)
+                Kernels.INSTANCE.axpy(deltas[rowIdx], input, 0, weightGradient, rowIdx * columns, columns);
+            Kernels.INSTANCE.axpy(1.0, deltas, 0, biasGradient, 0, rows);
+        } else {
+            for (int rowIdx = 0; rowIdx < rows; rowIdx++)
+                Kernels.INSTANCE.scale(deltas[rowIdx], input, 0, weightGradient, rowIdx * columns, columns);
+            System.arraycopy(deltas, 0, biasGradient, 0, rows);
+        }
+    }
+
+    @Override
+    void forwardBatch(Matrix inputs, Matrix outputs, Workspace workspace, int layer) {
+        weights.multiply(inputs, outputs);
+
+        int batchSize = outputs.getCols();
+        for (int rowIdx = 0; rowIdx < outputs.getRows(); rowIdx++) {
+            double value = bias.data[rowIdx];
+            int offset   = rowIdx * batchSize;
+            for (int idx = offset; idx < offset + batchSize; idx++)
+                outputs.data[idx] += value;
+        }
+    }
+
+    @Override
+    void backwardBatch(Matrix inputs, Matrix deltas, Matrix inputDeltas, Workspace workspace, int layer) {
+        weights.transposeMultiply(deltas, inputDeltas);
+    }
+
+    @Override
+    void gradientBatch(Matrix inputs, Matrix deltas, Workspace workspace, int layer) {
+        deltas.multiplyTranspose(inputs, workspace.gradient.get(layer));
+
+        var biasGradient = workspace.biasGradient.get(layer);
+        int batchSize    = deltas.getCols();
+        for (int rowIdx = 0; rowIdx < biasGradient.size; rowIdx++) {
+            double deltaSum = 0;
+            for (int sampleIdx = 0; sampleIdx < batchSize; sampleIdx++)
+                deltaSum += deltas.data[rowIdx * batchSize + sampleIdx];
+            biasGradient.data[rowIdx] = deltaSum;
+        }
+    }
+
+}
@@ -0,0 +1,63 @@
+package com.gravitykit.nn;
+
+/**
+ * Inverted dropout kernels. During training each activation of a layer
+ * with a dropout rate is kept with probability 1 - rate and scaled by
+ * 1 / (1 - rate), so the expected activation matches inference, which
+ * doesn't drop anything. Which ones were kept is recorded one bit per
+ * activation in a mask that lives in the workspace and is reused. The
+ * mask is applied inside the transfer kernels, to the activations as
+ * they are written and to the deltas in the derivative, so dropout adds
+ * no pass over the layer of its own.
+ *
+ * The bits are drawn from the SplitMix64 state of the workspace, so each
+ * training thread has a generator of its own and a checkpoint can save
+ * and restore it.
+ */
+
+final class Dropout {
+
+    private static final long GAMMA = 0x9E3779B97F4A7C15L;
+
+    private Dropout() {}
+
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Draws the mask of values[0, length): bit i is set when value i is
+     * kept. The transfer kernels apply it as they write their output, see
+     * ITransferFunction.calculate(in, out, length, mask, keep).
+     */
+    static void mask(Workspace workspace, double rate, long[] mask, int length) {
+        // Keep a value when the top 53 bits of its draw reach the threshold.
+        long threshold = (long) (rate * 0x1p53);
+        long state     = workspace.random;
+
+        for (int word = 0; word * 64 < length; word++) {
+            int offset = word * 64;
+            int end    = Math.min(offset + 64, length);
+            long bits  = 0;
+            for (int idx = offset; idx < end; idx++) {
+                state += GAMMA;
+                if (mix(state) >>> 11 >= threshold)
+                    bits |= 1L << idx;
+            }
+            mask[word] = bits;
+        }
+
+        workspace.random = state;
+    }
+
+    static boolean isKept(long[] mask, int idx) {
+        return (mask[idx >>> 6] >>> idx & 1) != 0;
+    }
+
+    static int maskLength(int values) {
+        return (values + 63) / 64;
+    }
+
+}
@@ -0,0 +1,19 @@
+package com.gravitykit.nn;
+
+/**
+ * Multiplies the rate by factor every epoch.
+ */
+
+public class ExponentialDecaySchedule implements ILearningRateSchedule {
+
+    private final double factor;
+
+    public ExponentialDecaySchedule(double factor) {
+        this.factor = factor;
+    }
+
+    @Override
+    public double getRate(int epoch, double baseRate) {
+        return baseRate * Math.pow(factor, epoch);
+    }
+}
@@ -0,0 +1,35 @@
+package com.gravitykit.nn;
+
+/**
+ * Sigmoid computed as 0.5 + 0.5 * tanh(x / 2) with the FastTanHTransfer
+ * approximation, avoiding Math.exp.
+ */
+
+public class FastSigmoidTransfer implements ITransferFunction {
+
+    @Override
+    public double calculate(double input) {
+        return 0.5 + 0.5 * FastTanHTransfer.approximate(0.5 * input);
+    }
+
+    @Override
+    public double derivative(double atValue) {
+        double value = calculate(atValue);
+        return value * (1 - value);
+    }
+
+    @Override
+    public void derivative(double[] in, double[] out, double[] gradient, int length) {
+        for (int idx = 0; idx < length; idx++)
+            gradient[idx] *= out[idx] * (1 - out[idx]);
+    }
+
+    @Override
+    public void derivative(double[] in, double[] out, double[] gradient, int length, long[] mask, double keep) {
+        double scale = 1.0 / keep;
+        for (int idx = 0; idx < length; idx++) {
+            double value  = out[idx] * keep;
+            gradient[idx] = Dropout.isKept(mask, idx) ? gradient[idx] * scale * (value * (1 - value)) : 0.0;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.gravitykit.nn;
+
+/**
+ * Rational approximation of tanh, accurate to about 1e-4 and several
+ * times cheaper than Math.tanh. Inputs beyond +-4.97 saturate to +-1.
+ */
+
+public class FastTanHTransfer implements ITransferFunction {
+
+    private static final double SATURATION = 4.97;
+
+    // Pade approximant of tanh around 0, degree 7 over degree 6.
+    static double approximate(double input) {
+        if (input > SATURATION)
+            return 1.0;
+        if (input < -SATURATION)
+            return -1.0;
+
+        double squared   = input * input;
+        double numerator = input * (135135 + squared * (17325 + squared * (378 + squared)));
+        double divisor   = 135135 + squared * (62370 + squared * (3150 + squared * 28));
+        return numerator / divisor;
+    }
+
+    @Override
+    public double calculate(double input) {
+        return approximate(input);
+    }
+
+    @Override
+    public double derivative(double atValue) {
+        double value = approximate(atValue);
+        return 1 - value * value;
+    }
+
+    @Override
+    public void derivative(double[] in, double[] out, double[] gradient, int length) {
+        for (int idx = 0; idx < length; idx++)
+            gradient[idx] *= 1 - out[idx] * out[idx];
+    }
+
+    @Override
+    public void derivative(double[] in, double[] out, double[] gradient, int length, long[] mask, double keep) {
+        double scale = 1.0 / keep;
+        for (int idx = 0; idx < length; idx++) {
+            double value  = out[idx] * keep;
+            gradient[idx] = Dropout.isKept(mask, idx) ? gradient[idx] * scale * (1 - value * value) : 0.0;
+        }
+    }
+}
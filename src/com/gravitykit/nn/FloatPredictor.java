@@ -0,0 +1,144 @@
+package com.gravitykit.nn;
+
+import java.util.List;
+
+/**
+ * FloatPredictor is a float32 inference engine for a trained NeuralNet,
+ * created with NeuralNet.freezeFloat32(). The weights are stored as
+ * float, half the footprint and memory traffic of the double weights,
+ * and the dot products accumulate in float (with twice the SIMD lanes
+ * when the SimdKernels backend is in use).
+ *
+ * Like Predictor it is immutable and safe to share between threads.
+ * Transfer functions are evaluated in double on a per-layer scratch row
+ * and rounded back to float.
+ */
+
+public final class FloatPredictor {
+
+    /**
+     * Buffers wide enough for the widest layer. A Scratch must not be
+     * shared between threads that predict at the same time.
+     */
+    public static final class Scratch {
+        private final float[] front;
+        private final float[] back;
+        private final double[] wide;
+
+        private Scratch(int width) {
+            this.front = new float[width];
+            this.back  = new float[width];
+            this.wide  = new double[width];
+        }
+    }
+
+    private final float[][] weights;
+    private final float[][] bias;
+    private final int[] layerSizes;
+    private final List<ITransferFunction> transferFunctions;
+    private final int maxWidth;
+    private final ThreadLocal<Scratch> threadScratch;
+
+    FloatPredictor(List<Matrix> weights, List<Vector> bias, List<ITransferFunction> transferFunctions) {
+        this.weights    = new float[weights.size()][];
+        this.bias       = new float[weights.size()][];
+        this.layerSizes = new int[weights.size() + 1];
+
+        layerSizes[0] = weights.get(0).getCols();
+        int width     = layerSizes[0];
+        for (int layer = 0; layer < weights.size(); layer++) {
+            this.weights[layer]   = toFloat(weights.get(layer).data, weights.get(layer).data.length);
+            this.bias[layer]      = toFloat(bias.get(layer).data, bias.get(layer).size());
+            layerSizes[layer + 1] = weights.get(layer).getRows();
+            width = Math.max(width, layerSizes[layer + 1]);
+        }
+
+        this.transferFunctions = List.copyOf(transferFunctions);
+        this.maxWidth          = width;
+        this.threadScratch     = ThreadLocal.withInitial(this::newScratch);
+    }
+
+    private static float[] toFloat(double[] values, int length) {
+        float[] result = new float[length];
+        for (int idx = 0; idx < length; idx++)
+            result[idx] = (float) values[idx];
+        return result;
+    }
+
+    public Scratch newScratch() {
+        return new Scratch(maxWidth);
+    }
+
+    public int getInputSize() {
+        return layerSizes[0];
+    }
+
+    public int getOutputSize() {
+        return layerSizes[layerSizes.length - 1];
+    }
+
+    /**
+     * Bytes held by the weights and biases.
+     */
+    public long getModelBytes() {
+        long bytes = 0;
+        for (int layer = 0; layer < weights.length; layer++)
+            bytes += Float.BYTES * ((long) weights[layer].length + bias[layer].length);
+        return bytes;
+    }
+
+    public Vector predict(Vector input) {
+        if (input.size() != getInputSize())
+            throw new ArithmeticException("Vector size mismatch");
+
+        var scratch = threadScratch.get();
+        float[] in  = scratch.front;
+        for (int idx = 0; idx < input.size(); idx++)
+            in[idx] = (float) input.data[idx];
+
+        float[] out = predict(in, scratch);
+        var result  = new Vector(getOutputSize());
+        for (int idx = 0; idx < result.size(); idx++)
+            result.data[idx] = out[idx];
+        return result;
+    }
+
+    /**
+     * Runs the input through the network and writes the output into result.
+     */
+    public void predict(float[] input, float[] result, Scratch scratch) {
+        if (input.length < getInputSize() || result.length < getOutputSize())
+            throw new ArithmeticException("Vector size mismatch");
+
+        System.arraycopy(input, 0, scratch.front, 0, getInputSize());
+        System.arraycopy(predict(scratch.front, scratch), 0, result, 0, getOutputSize());
+    }
+
+    // Expects the input in scratch.front and returns the buffer holding the output.
+    private float[] predict(float[] input, Scratch scratch) {
+        var kernels         = Kernels.INSTANCE;
+        float[] layerOutput = input;
+        float[] layerInput  = scratch.back;
+
+        for (int layer = 0; layer < weights.length; layer++) {
+            float[] weightData = weights[layer];
+            float[] biasData   = bias[layer];
+            int rows           = layerSizes[layer + 1];
+            int cols           = layerSizes[layer];
+
+            for (int row = 0; row < rows; row++)
+                scratch.wide[row] = kernels.dot(weightData, row * cols, layerOutput, 0, cols) + biasData[row];
+            kernels.transfer(transferFunctions.get(layer), scratch.wide, scratch.wide, rows);
+            for (int row = 0; row < rows; row++)
+                layerInput[row] = (float) scratch.wide[row];
+
+            // This layer's output is the next layer's input.
+            float[] swap = layerOutput;
+            layerOutput  = layerInput;
+            layerInput   = swap;
+        }
+
+        return layerOutput;
+    }
+
+}
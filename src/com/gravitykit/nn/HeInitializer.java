@@ -0,0 +1,19 @@
+package com.gravitykit.nn;
+
+import java.util.SplittableRandom;
+
+/**
+ * He initialization for ReLU and leaky ReLU layers: weights normal with
+ * mean 0 and variance 2 / fanIn, making up for ReLU zeroing half of its
+ * inputs. Biases start at zero.
+ */
+
+public class HeInitializer implements IWeightInitializer {
+
+    @Override
+    public void initialize(double[] weights, int offset, int length, int fanIn, int fanOut, SplittableRandom random) {
+        double deviation = Math.sqrt(2.0 / fanIn);
+        for (int idx = offset; idx < offset + length; idx++)
+            weights[idx] = random.nextGaussian() * deviation;
+    }
+}
@@ -0,0 +1,70 @@
+package com.gravitykit.nn;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram is a lock-free histogram of non-negative long values with
+ * power-of-two buckets: bucket k counts values in [2^(k-1), 2^k).
+ * Recording is a few atomic adds. Percentiles are reported as the upper
+ * bound of their bucket, so they are accurate to within a factor of 2.
+ */
+
+public final class Histogram {
+
+    private final AtomicLongArray buckets = new AtomicLongArray(Long.SIZE);
+    private final LongAdder count         = new LongAdder();
+    private final LongAdder sum           = new LongAdder();
+    private final AtomicLong max          = new AtomicLong();
+
+    public void record(long value) {
+        value = Math.max(0, value);
+        buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(value));
+        count.increment();
+        sum.add(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public double getMean() {
+        long samples = count.sum();
+        return samples == 0 ? 0 : (double) sum.sum() / samples;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * The smallest bucket bound at or below which the given fraction of
+     * the values fall, for a fraction in [0, 1].
+     */
+    public long getPercentile(double fraction) {
+        long samples = count.sum();
+        if (samples == 0)
+            return 0;
+
+        long rank = (long) Math.ceil(fraction * samples);
+        long seen = 0;
+        for (int bucket = 0; bucket < buckets.length(); bucket++) {
+            seen += buckets.get(bucket);
+            if (seen >= Math.max(1, rank))
+                return Math.min(max.get(), (1L << bucket) - 1);
+        }
+
+        return max.get();
+    }
+
+    public void reset() {
+        for (int bucket = 0; bucket < buckets.length(); bucket++)
+            buckets.set(bucket, 0);
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+}
@@ -0,0 +1,148 @@
+package com.gravitykit.nn;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * HogwildTrainer runs asynchronous, lock-free SGD on a NeuralNet.
+ *
+ * Every worker thread runs forward and backward passes in its own
+ * Workspace and writes its update straight into the shared weights and
+ * biases, without locks or a reduction step. Two threads updating the
+ * same element at the same time can lose one of the updates; for wide,
+ * sparse-ish networks that is rare and costs less than synchronizing.
+ *
+ * Only the update path uses opaque VarHandle access, which guarantees
+ * each double it updates is read and written whole and that the update
+ * becomes visible to the other workers, without fences or CAS. The
+ * forward and backward passes read the shared weights with plain loads,
+ * so a pass may see a mix of old and new values (on a 32-bit JVM even a
+ * torn double), which Hogwild tolerates as noise in the gradient.
+ *
+ * The updates are always plain SGD at the network's rate. The network's
+ * optimizer is not used, since its per-parameter state can't be shared
+ * between lock-free writers.
+ */
+
+public class HogwildTrainer implements AutoCloseable {
+
+    private static final VarHandle DOUBLES = MethodHandles.arrayElementVarHandle(double[].class);
+
+    private final NeuralNet nn;
+    private final ForkJoinPool pool;
+    private final ArrayList<Workspace> workspaces = new ArrayList<>();
+
+    public HogwildTrainer(NeuralNet nn, int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads must be positive");
+
+        nn.requireDense("HogwildTrainer");
+        this.nn   = nn;
+        this.pool = new ForkJoinPool(threads);
+
+        for (int worker = 0; worker < threads; worker++)
+            workspaces.add(nn.newWorkspace(worker + 1));
+    }
+
+    public HogwildTrainer(NeuralNet nn) {
+        this(nn, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Runs the given number of single-sample updates in total, spread over
+     * all workers, and returns the achieved throughput in samples/sec.
+     * Each worker cycles through the whole sample list, starting at a
+     * different position.
+     */
+    public double train(IErrorFunction errorFunc, int iterations, List<Sample> samples) {
+        int workers = workspaces.size();
+        var tasks   = new ArrayList<Callable<Void>>(workers);
+
+        for (int worker = 0; worker < workers; worker++) {
+            var workspace = workspaces.get(worker);
+            int start     = (int) ((long) worker * iterations / workers);
+            int end       = (int) ((long) (worker + 1) * iterations / workers);
+
+            tasks.add(() -> {
+                for (int iteration = start; iteration < end; iteration++) {
+                    var sample = samples.get(iteration % samples.size());
+                    nn.forward(workspace, sample);
+                    nn.backPropagate(workspace, errorFunc, sample.getDesired());
+                    applyUpdate(workspace);
+                }
+                return null;
+            });
+        }
+
+        long started = System.nanoTime();
+        invokeAll(tasks);
+        long elapsed = System.nanoTime() - started;
+        nn.markWeightsChanged();
+
+        return iterations / (elapsed / 1e9);
+    }
+
+    // w -= rate * delta * transpose(a), b -= rate * delta, written in place.
+    private void applyUpdate(Workspace workspace) {
+        var layers  = nn.getLayers();
+        double rate = nn.getRate();
+
+        for (int layer = 0; layer < layers.size(); layer++) {
+            var deltas      = workspace.layerDeltas.get(layer);
+            var layerOutput = workspace.layerOutputs.get(layer);
+            double[] weightData = layers.get(layer).weights.data;
+            double[] biasData   = layers.get(layer).bias.data;
+
+            // A sparse input only has gradient in the columns of its nonzeros.
+            var sparse = layer == 0 ? workspace.sparseInput : null;
+
+            for (int row = 0; row < deltas.size; row++) {
+                double scaled = -rate * deltas.data[row];
+                if (scaled == 0.0)
+                    continue;
+
+                int offset = row * layerOutput.size;
+                if (sparse != null) {
+                    for (int idx = 0; idx < sparse.nonZeros; idx++) {
+                        int col        = sparse.indices[idx];
+                        double updated = (double) DOUBLES.getOpaque(weightData, offset + col) + scaled * sparse.values[idx];
+                        DOUBLES.setOpaque(weightData, offset + col, updated);
+                    }
+                } else {
+                    for (int col = 0; col < layerOutput.size; col++) {
+                        double updated = (double) DOUBLES.getOpaque(weightData, offset + col) + scaled * layerOutput.data[col];
+                        DOUBLES.setOpaque(weightData, offset + col, updated);
+                    }
+                }
+
+                DOUBLES.setOpaque(biasData, row, (double) DOUBLES.getOpaque(biasData, row) + scaled);
+            }
+        }
+    }
+
+    private void invokeAll(List<Callable<Void>> tasks) {
+        for (var future : pool.invokeAll(tasks)) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+
+}
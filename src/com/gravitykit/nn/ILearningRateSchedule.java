@@ -0,0 +1,12 @@
+package com.gravitykit.nn;
+
+/**
+ * ILearningRateSchedule gives the optimizer rate to use for an epoch,
+ * counted from 0, given the rate the optimizer started with.
+ */
+
+public interface ILearningRateSchedule {
+
+    public double getRate(int epoch, double baseRate);
+
+}
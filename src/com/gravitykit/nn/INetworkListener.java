@@ -0,0 +1,42 @@
+package com.gravitykit.nn;
+
+/**
+ * INetworkListener receives instrumentation callbacks from a NeuralNet
+ * set with NeuralNet.setListener(...). Without a listener the network
+ * takes no timestamps and makes no calls, so instrumentation costs
+ * nothing unless it is switched on.
+ *
+ * Forward and backward callbacks come from every thread that runs the
+ * network, including ParallelTrainer and HogwildTrainer workers, so
+ * implementations must be thread-safe.
+ */
+
+public interface INetworkListener {
+
+    /**
+     * A layer's forward pass (GEMV or GEMM, bias and transfer function) took nanos.
+     */
+    public default void onForward(int layer, long nanos) {}
+
+    /**
+     * A layer's delta computation took nanos.
+     */
+    public default void onBackward(int layer, long nanos) {}
+
+    /**
+     * The L2 norm of a layer's weight gradient in the step that just ran.
+     */
+    public default void onGradient(int layer, double norm) {}
+
+    /**
+     * A train or trainBatch call on `samples` samples took nanos and
+     * allocated the given number of bytes on the calling thread.
+     */
+    public default void onStep(int samples, long nanos, long allocatedBytes) {}
+
+    /**
+     * Trainer finished an epoch. validationLoss is NaN without a validation set.
+     */
+    public default void onEpoch(int epoch, double trainingLoss, double validationLoss, double rate) {}
+
+}
@@ -0,0 +1,87 @@
+package com.gravitykit.nn;
+
+import java.util.List;
+
+/**
+ * IOptimizer turns loss gradients into parameter updates. The network
+ * computes the gradient, the optimizer decides the step.
+ *
+ * Parameters are grouped into slots, each a flat double array with its
+ * own optimizer state. NeuralNet uses slot 2 * layer for the weights of
+ * a layer and 2 * layer + 1 for its bias. An optimizer instance keeps
+ * state for one network and must not be shared.
+ */
+
+public interface IOptimizer {
+
+    /**
+     * Preallocates the state for parameter arrays of the given sizes,
+     * one per slot, and resets any previous state.
+     */
+    public void allocate(int[] slotSizes);
+
+    /**
+     * The base step size, which learning-rate schedules adjust between epochs.
+     */
+    public double getRate();
+    public void setRate(double rate);
+
+    /**
+     * L2 weight decay: the weight slots (the even ones) are updated as if
+     * weightDecay * parameters had been added to their gradient, in the
+     * same pass as the update. Biases don't decay. 0 turns it off.
+     */
+    public default double getWeightDecay() {
+        return 0;
+    }
+
+    public default void setWeightDecay(double weightDecay) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " has no weight decay");
+    }
+
+    /**
+     * Called once per update, before any of its slots are applied.
+     */
+    public default void beginStep() {}
+
+    /**
+     * The per-parameter state, for checkpoints: the live arrays in a fixed
+     * order, so a restore can copy saved values back into them. Stateless
+     * optimizers have none.
+     */
+    public default List<double[]> getState() {
+        return List.of();
+    }
+
+    /**
+     * The number of steps taken, for optimizers whose update depends on it.
+     */
+    public default long getStepCount() {
+        return 0;
+    }
+
+    public default void setStepCount(long steps) {}
+
+    /**
+     * Updates parameters[offset, offset + length) of a slot from the
+     * gradient, scaled by scale, over the same range. The ranges of one
+     * step don't overlap and may be applied concurrently.
+     */
+    public void update(int slot, double[] parameters, double[] gradient, double scale, int offset, int length);
+
+    /**
+     * Updates only the given columns of a slot holding a row-major rows x
+     * columns matrix, for a gradient that is zero in every other column
+     * (the first layer of a network fed a SparseVector). The other
+     * parameters and their state are not touched, so stateful optimizers
+     * update lazily: their moving averages only advance for parameters
+     * that receive a gradient.
+     */
+    public default void updateColumns(int slot, double[] parameters, double[] gradient, double scale, int rows,
+            int columns, int[] columnIndices, int count) {
+        for (int row = 0; row < rows; row++)
+            for (int idx = 0; idx < count; idx++)
+                update(slot, parameters, gradient, scale, row * columns + columnIndices[idx], 1);
+    }
+
+}
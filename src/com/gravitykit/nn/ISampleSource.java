@@ -0,0 +1,25 @@
+package com.gravitykit.nn;
+
+import java.io.IOException;
+
+/**
+ * ISampleSource streams training samples one at a time, so a dataset
+ * never has to be held in memory as a whole.
+ */
+
+public interface ISampleSource extends AutoCloseable {
+
+    /**
+     * Returns the next sample, or null once the source is exhausted.
+     */
+    public Sample next() throws IOException;
+
+    /**
+     * Rewinds the source to its first sample, for the next epoch.
+     */
+    public void reset() throws IOException;
+
+    @Override
+    public void close() throws IOException;
+
+}
@@ -5,4 +5,56 @@ public interface ITransferFunction {
     public double calculate(double input);
     public double derivative(double atValue);
 
+    /**
+     * out[i] = calculate(in[i]) for i in [0, length). in and out may be
+     * the same array.
+     */
+    public default void calculate(double[] in, double[] out, int length) {
+        for (int idx = 0; idx < length; idx++)
+            out[idx] = calculate(in[idx]);
+    }
+
+    /**
+     * Turns the error gradient with respect to the layer outputs into the
+     * gradient with respect to the layer inputs, in place. out holds what
+     * calculate(in, out, length) produced, so implementations can take the
+     * derivative from the output instead of evaluating the function again.
+     */
+    public default void derivative(double[] in, double[] out, double[] gradient, int length) {
+        for (int idx = 0; idx < length; idx++)
+            gradient[idx] *= derivative(in[idx]);
+    }
+
+    /**
+     * calculate(in, out, length) under inverted dropout: out[i] is
+     * calculate(in[i]) / keep where bit i of mask is set and 0 elsewhere.
+     * in and out may be the same array.
+     */
+    public default void calculate(double[] in, double[] out, int length, long[] mask, double keep) {
+        double scale = 1.0 / keep;
+        for (int idx = 0; idx < length; idx++)
+            out[idx] = Dropout.isKept(mask, idx) ? scale * calculate(in[idx]) : 0.0;
+    }
+
+    /**
+     * derivative(in, out, gradient, length) for outputs written by the
+     * dropout calculate(...) above: the gradient of a dropped output is 0,
+     * that of a kept one is scaled by 1 / keep. The output before dropout
+     * is out[i] * keep.
+     */
+    public default void derivative(double[] in, double[] out, double[] gradient, int length, long[] mask,
+            double keep) {
+        double scale = 1.0 / keep;
+        for (int idx = 0; idx < length; idx++)
+            gradient[idx] = Dropout.isKept(mask, idx) ? gradient[idx] * scale * derivative(in[idx]) : 0.0;
+    }
+
+    /**
+     * True if every output depends on the matching input only. Batched
+     * code may then apply the function to a whole matrix at once.
+     */
+    public default boolean isElementwise() {
+        return true;
+    }
+
 }
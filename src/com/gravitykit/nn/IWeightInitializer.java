@@ -0,0 +1,30 @@
+package com.gravitykit.nn;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * IWeightInitializer draws the starting weights of a layer. fanIn is the
+ * number of inputs summed into each output, fanOut the number of outputs
+ * each input feeds; for a convolution both include the kernel area.
+ *
+ * NeuralNetBuilder hands every call its own SplittableRandom, so an
+ * initializer must draw only from that stream to keep seeded builds
+ * reproducible.
+ */
+
+public interface IWeightInitializer {
+
+    /**
+     * Fills weights[offset, offset + length), a part of one layer's weights.
+     */
+    public void initialize(double[] weights, int offset, int length, int fanIn, int fanOut, SplittableRandom random);
+
+    /**
+     * Fills the bias of a layer. Zero unless overridden.
+     */
+    public default void initializeBias(double[] bias, int length, SplittableRandom random) {
+        Arrays.fill(bias, 0, length, 0.0);
+    }
+
+}
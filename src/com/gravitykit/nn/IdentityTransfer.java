@@ -0,0 +1,34 @@
+package com.gravitykit.nn;
+
+/**
+ * Passes its input through unchanged. Used by layers that have no
+ * nonlinearity of their own, such as pooling, and for linear outputs.
+ */
+public class IdentityTransfer implements ITransferFunction {
+
+    @Override
+    public double calculate(double input) {
+        return input;
+    }
+
+    @Override
+    public double derivative(double atValue) {
+        return 1.0;
+    }
+
+    @Override
+    public void calculate(double[] in, double[] out, int length) {
+        if (in != out)
+            System.arraycopy(in, 0, out, 0, length);
+    }
+
+    @Override
+    public void derivative(double[] in, double[] out, double[] gradient, int length) {}
+
+    @Override
+    public void derivative(double[] in, double[] out, double[] gradient, int length, long[] mask, double keep) {
+        double scale = 1.0 / keep;
+        for (int idx = 0; idx < length; idx++)
+            gradient[idx] = Dropout.isKept(mask, idx) ? gradient[idx] * scale : 0.0;
+    }
+}
@@ -0,0 +1,293 @@
+package com.gravitykit.nn;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * InferenceServer serves a frozen network to many concurrent callers and
+ * coalesces their requests into micro-batches.
+ *
+ * submit() queues a request and returns a future. A single dispatcher
+ * thread takes the oldest request, then keeps collecting until it has
+ * maxBatchSize requests or maxWaitMicros have passed since the first one
+ * arrived, runs the whole batch as one Predictor.predictBatch (a GEMM per
+ * layer instead of a GEMV per request) and completes the futures.
+ *
+ * start(port) also exposes it over HTTP on the loopback interface:
+ *
+ *     POST /predict    body "0.5,1.0,..."    response "0.73,..."
+ *
+ * Callers mostly wait, so each HTTP request gets its own thread: a
+ * virtual thread where the JDK has them (21+), a cached platform thread
+ * otherwise.
+ */
+
+public class InferenceServer implements AutoCloseable {
+
+    private static final class Request {
+        final Vector input;
+        final CompletableFuture<Vector> result = new CompletableFuture<>();
+
+        Request(Vector input) {
+            this.input = input;
+        }
+    }
+
+    private final Predictor predictor;
+    private final int maxBatchSize;
+    private final long maxWaitNanos;
+
+    private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final Thread dispatcher;
+    private volatile boolean running = true;
+
+    private HttpServer httpServer       = null;
+    private ExecutorService httpExecutor = null;
+
+    private final LongAdder batches  = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+
+    public InferenceServer(Predictor predictor, int maxBatchSize, long maxWaitMicros) {
+        if (maxBatchSize < 1)
+            throw new IllegalArgumentException("maxBatchSize must be positive");
+        if (maxWaitMicros < 0)
+            throw new IllegalArgumentException("maxWaitMicros must not be negative");
+
+        this.predictor    = predictor;
+        this.maxBatchSize = maxBatchSize;
+        this.maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(maxWaitMicros);
+
+        this.dispatcher = new Thread(this::dispatch, "inference-dispatcher");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    public InferenceServer(NeuralNet nn, int maxBatchSize, long maxWaitMicros) {
+        this(nn.freeze(), maxBatchSize, maxWaitMicros);
+    }
+
+    /**
+     * Queues one input. The future completes with the network output, or
+     * exceptionally if the server is closed first.
+     */
+    public CompletableFuture<Vector> submit(Vector input) {
+        if (input.size() != predictor.getInputSize())
+            throw new ArithmeticException("Vector size mismatch");
+
+        var request = new Request(input.copy());
+        if (!running) {
+            request.result.completeExceptionally(new IllegalStateException("InferenceServer is closed"));
+            return request.result;
+        }
+
+        // close() may have drained the queue between the check and the add;
+        // if the request is still there, nobody else will complete it.
+        queue.add(request);
+        if (!running && queue.remove(request))
+            request.result.completeExceptionally(new IllegalStateException("InferenceServer is closed"));
+        return request.result;
+    }
+
+    /**
+     * Blocking form of submit().
+     */
+    public Vector predict(Vector input) {
+        try {
+            return submit(input).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    public double getMeanBatchSize() {
+        long count = batches.sum();
+        return count == 0 ? 0 : (double) requests.sum() / count;
+    }
+
+    /**
+     * Requests submitted but not yet taken by the dispatcher.
+     */
+    public int getQueueLength() {
+        return queue.size();
+    }
+
+    private void dispatch() {
+        var batch   = new ArrayList<Request>(maxBatchSize);
+        var scratch = predictor.newBatchScratch(maxBatchSize);
+        double[] inputData  = new double[maxBatchSize * predictor.getInputSize()];
+        double[] outputData = new double[maxBatchSize * predictor.getOutputSize()];
+
+        while (running) {
+            try {
+                var first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+
+                // Collect until the batch is full or the first request has waited long enough.
+                batch.add(first);
+                long deadline = System.nanoTime() + maxWaitNanos;
+                while (batch.size() < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    var next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null)
+                        break;
+                    batch.add(next);
+                }
+
+                run(batch, scratch, inputData, outputData);
+            } catch (InterruptedException e) {
+                // Closed while collecting a batch: the requests already taken
+                // off the queue are failed here, the rest below.
+                for (var request : batch)
+                    request.result.completeExceptionally(new IllegalStateException("InferenceServer is closed"));
+                break;
+            } catch (RuntimeException e) {
+                for (var request : batch)
+                    request.result.completeExceptionally(e);
+            } finally {
+                batch.clear();
+            }
+        }
+
+        // Fail whatever is still queued once the server is closed.
+        for (var request = queue.poll(); request != null; request = queue.poll())
+            request.result.completeExceptionally(new IllegalStateException("InferenceServer is closed"));
+    }
+
+    private void run(ArrayList<Request> batch, Predictor.BatchScratch scratch, double[] inputData, double[] outputData) {
+        int inputSize  = predictor.getInputSize();
+        int outputSize = predictor.getOutputSize();
+        int samples    = batch.size();
+
+        // One sample per row.
+        for (int sampleIdx = 0; sampleIdx < samples; sampleIdx++)
+            System.arraycopy(batch.get(sampleIdx).input.data, 0, inputData, sampleIdx * inputSize, inputSize);
+
+        predictor.predictBatch(new Matrix(samples, inputSize, inputData), new Matrix(samples, outputSize, outputData),
+                scratch);
+
+        batches.increment();
+        requests.add(samples);
+
+        // Fan the rows back out to the callers.
+        for (int sampleIdx = 0; sampleIdx < samples; sampleIdx++) {
+            var output = new Vector(outputSize);
+            System.arraycopy(outputData, sampleIdx * outputSize, output.data, 0, outputSize);
+            batch.get(sampleIdx).result.complete(output);
+        }
+    }
+
+    // ====================================================================================
+    // == HTTP ============================================================================
+    // ====================================================================================
+
+    /**
+     * Starts the HTTP endpoint on the loopback interface and returns the
+     * bound port, which is an ephemeral one if port is 0.
+     */
+    public synchronized int start(int port) throws IOException {
+        if (httpServer != null)
+            throw new IllegalStateException("HTTP endpoint already started");
+
+        httpServer   = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        httpExecutor = newRequestExecutor();
+        httpServer.setExecutor(httpExecutor);
+        httpServer.createContext("/predict", this::handle);
+        httpServer.start();
+
+        return httpServer.getAddress().getPort();
+    }
+
+    private static ExecutorService newRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                var thread = new Thread(runnable, "inference-http");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.US_ASCII);
+            byte[] response;
+            int status;
+            try {
+                String[] fields = body.trim().split(",");
+                var input = new Vector(fields.length);
+                for (int idx = 0; idx < fields.length; idx++)
+                    input.set(idx, Double.parseDouble(fields[idx].trim()));
+
+                var output = predict(input);
+                var text   = new StringBuilder();
+                for (int idx = 0; idx < output.size(); idx++) {
+                    if (idx > 0)
+                        text.append(',');
+                    text.append(output.get(idx));
+                }
+
+                response = text.toString().getBytes(StandardCharsets.US_ASCII);
+                status   = 200;
+            } catch (NumberFormatException | ArithmeticException e) {
+                response = ("Bad request: " + e.getMessage()).getBytes(StandardCharsets.US_ASCII);
+                status   = 400;
+            } catch (IllegalStateException e) {
+                // Closed while the request was queued or in its batch.
+                response = ("Unavailable: " + e.getMessage()).getBytes(StandardCharsets.US_ASCII);
+                status   = 503;
+            }
+
+            exchange.getResponseHeaders().set("Content-Type", "text/plain");
+            exchange.sendResponseHeaders(status, response.length);
+            exchange.getResponseBody().write(response);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        running = false;
+        if (httpServer != null) {
+            httpServer.stop(0);
+            httpExecutor.shutdown();
+            httpServer = null;
+        }
+
+        dispatcher.interrupt();
+        try {
+            dispatcher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
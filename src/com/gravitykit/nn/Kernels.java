@@ -0,0 +1,160 @@
+package com.gravitykit.nn;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Kernels holds the inner loops that Matrix, Vector and NeuralNet spend
+ * their time in, working on raw arrays with explicit offsets. This class
+ * is the scalar implementation.
+ *
+ * INSTANCE is picked once at class load. If the optional SimdKernels
+ * backend (in the simd/ source root, built on jdk.incubator.vector) is on
+ * the class path and the incubator module is available, it is used;
+ * otherwise the scalar loops below are. Setting the system property
+ * gravitykit.nn.scalar=true forces the scalar loops.
+ */
+
+class Kernels {
+
+    static final Kernels INSTANCE = load();
+
+    private static Kernels load() {
+        if (Boolean.getBoolean("gravitykit.nn.scalar"))
+            return new Kernels();
+
+        try {
+            return (Kernels) Class.forName("com.gravitykit.nn.SimdKernels")
+                    .getDeclaredConstructor()
+                    .newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return new Kernels();
+        }
+    }
+
+    String getName() {
+        return "scalar";
+    }
+
+    /**
+     * Returns the sum of left[leftOffset + i] * right[rightOffset + i] for i in [0, length).
+     */
+    double dot(double[] left, int leftOffset, double[] right, int rightOffset, int length) {
+        double sum = 0;
+        for (int idx = 0; idx < length; idx++)
+            sum += left[leftOffset + idx] * right[rightOffset + idx];
+
+        return sum;
+    }
+
+    /**
+     * Float version of dot(...), accumulating in float.
+     */
+    float dot(float[] left, int leftOffset, float[] right, int rightOffset, int length) {
+        float sum = 0;
+        for (int idx = 0; idx < length; idx++)
+            sum += left[leftOffset + idx] * right[rightOffset + idx];
+
+        return sum;
+    }
+
+    /**
+     * Int8 version of dot(...), accumulating in int32.
+     */
+    int dot(byte[] left, int leftOffset, byte[] right, int rightOffset, int length) {
+        int sum = 0;
+        for (int idx = 0; idx < length; idx++)
+            sum += left[leftOffset + idx] * right[rightOffset + idx];
+
+        return sum;
+    }
+
+    /**
+     * y[yOffset + i] += alpha * x[xOffset + i] for i in [0, length).
+     */
+    void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length) {
+        for (int idx = 0; idx < length; idx++)
+            y[yOffset + idx] += alpha * x[xOffset + idx];
+    }
+
+    /**
+     * y[yOffset + i] = alpha * x[xOffset + i] for i in [0, length).
+     */
+    void scale(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length) {
+        for (int idx = 0; idx < length; idx++)
+            y[yOffset + idx] = alpha * x[xOffset + idx];
+    }
+
+    /**
+     * dot(...) with the left operand stored as doubles in a ByteBuffer, in
+     * the buffer's byte order, for off-heap and memory-mapped weights.
+     * Offsets count doubles, not bytes.
+     */
+    double dot(ByteBuffer left, int leftOffset, double[] right, int rightOffset, int length) {
+        double sum = 0;
+        for (int idx = 0; idx < length; idx++)
+            sum += left.getDouble((leftOffset + idx) * Double.BYTES) * right[rightOffset + idx];
+
+        return sum;
+    }
+
+    /**
+     * axpy(...) into a ByteBuffer of doubles. Offsets count doubles.
+     */
+    void axpy(double alpha, double[] x, int xOffset, ByteBuffer y, int yOffset, int length) {
+        for (int idx = 0; idx < length; idx++) {
+            int position = (yOffset + idx) * Double.BYTES;
+            y.putDouble(position, y.getDouble(position) + alpha * x[xOffset + idx]);
+        }
+    }
+
+    /**
+     * axpy(...) between two ByteBuffers of doubles. Offsets count doubles.
+     */
+    void axpy(double alpha, ByteBuffer x, int xOffset, ByteBuffer y, int yOffset, int length) {
+        for (int idx = 0; idx < length; idx++) {
+            int position = (yOffset + idx) * Double.BYTES;
+            y.putDouble(position, y.getDouble(position) + alpha * x.getDouble((xOffset + idx) * Double.BYTES));
+        }
+    }
+
+    /**
+     * Sparse dot product: the sum of dense[offset + indices[i]] * values[i] for i in [0, count).
+     */
+    double dot(double[] dense, int offset, int[] indices, double[] values, int count) {
+        double sum = 0;
+        for (int idx = 0; idx < count; idx++)
+            sum += dense[offset + indices[idx]] * values[idx];
+
+        return sum;
+    }
+
+    /**
+     * Sparse scatter: y[yOffset + indices[i]] = alpha * values[i] for i in [0, count),
+     * or += when accumulate is set.
+     */
+    void scatter(double alpha, int[] indices, double[] values, int count, double[] y, int yOffset, boolean accumulate) {
+        if (accumulate) {
+            for (int idx = 0; idx < count; idx++)
+                y[yOffset + indices[idx]] += alpha * values[idx];
+        } else {
+            for (int idx = 0; idx < count; idx++)
+                y[yOffset + indices[idx]] = alpha * values[idx];
+        }
+    }
+
+    /**
+     * Applies func to in[0, length) and writes the result to out.
+     */
+    void transfer(ITransferFunction func, double[] in, double[] out, int length) {
+        func.calculate(in, out, length);
+    }
+
+    /**
+     * transfer(...) under inverted dropout: out[i] is func(in[i]) / keep
+     * where bit i of mask is set and 0 elsewhere.
+     */
+    void transfer(ITransferFunction func, double[] in, double[] out, int length, long[] mask, double keep) {
+        func.calculate(in, out, length, mask, keep);
+    }
+
+}
@@ -0,0 +1,163 @@
+package com.gravitykit.nn;
+
+/**
+ * Layer is one step of a NeuralNet. It maps the activations of the layer
+ * before it (the network input for the first layer) to pre-activations,
+ * which its transfer function turns into this layer's activations.
+ *
+ * Every layer has a weight matrix and a bias vector, which are empty for
+ * layers without parameters such as PoolingLayer, so the optimizer slots
+ * 2 * layer and 2 * layer + 1 line up with the layer index whatever the
+ * layer type. Activations are flat vectors; layers working on images
+ * read them as channels x height x width, channel-major.
+ *
+ * The computation methods are package-private: they work on raw arrays,
+ * don't check sizes and may use a per-thread scratch buffer of
+ * getScratchSize() doubles that the caller owns, so a layer can be run by
+ * several threads at once.
+ */
+
+public abstract class Layer {
+
+    final Matrix weights;
+    final Vector bias;
+    final ITransferFunction transfer;
+
+    // The fraction of this layer's activations dropped in training.
+    double dropout = 0.0;
+
+    Layer(Matrix weights, Vector bias, ITransferFunction transfer) {
+        this.weights  = weights;
+        this.bias     = bias;
+        this.transfer = transfer;
+    }
+
+    public abstract int getInputSize();
+
+    public abstract int getOutputSize();
+
+    public Matrix getWeights() {
+        return weights;
+    }
+
+    public Vector getBias() {
+        return bias;
+    }
+
+    public ITransferFunction getTransferFunction() {
+        return transfer;
+    }
+
+    public double getDropout() {
+        return dropout;
+    }
+
+    /**
+     * Drops the given fraction of this layer's activations, picked at
+     * random for every sample, in the forward passes of trainBatch,
+     * Trainer and the parallel trainers. simulate() and the predictors
+     * never drop, so neither does training by hand with simulate() and
+     * train(IErrorFunction, Vector). It has no effect on the output layer.
+     */
+    public void setDropout(double rate) {
+        if (rate < 0 || rate >= 1)
+            throw new IllegalArgumentException("Dropout rate must be in [0, 1)");
+        if (rate > 0 && !transfer.isElementwise())
+            throw new IllegalArgumentException("Dropout needs an elementwise transfer function");
+        this.dropout = rate;
+    }
+
+    /**
+     * Number of trainable values, weights and biases.
+     */
+    public int getParameterCount() {
+        return weights.data.length + bias.size;
+    }
+
+    /**
+     * Returns a copy of this layer with its own weights and bias.
+     */
+    public abstract Layer copy();
+
+    int getScratchSize() {
+        return 0;
+    }
+
+    // The inputs summed into each output and the outputs each input feeds,
+    // as IWeightInitializer sees them.
+    int getFanIn() {
+        return weights.getCols();
+    }
+
+    int getFanOut() {
+        return weights.getRows();
+    }
+
+    /**
+     * output[0, getOutputSize()) = the pre-activations for input.
+     */
+    abstract void forward(double[] input, double[] output, double[] scratch);
+
+    /**
+     * Propagates the deltas of this layer's pre-activations back to its
+     * input: inputDeltas = transpose(d output / d input) * deltas. The
+     * transfer derivative of the previous layer is not applied.
+     */
+    abstract void backward(double[] input, double[] deltas, double[] inputDeltas, double[] scratch);
+
+    /**
+     * Writes the gradient of the weights and bias for one sample, or adds
+     * it to what is there when accumulate is set.
+     */
+    abstract void gradient(double[] input, double[] deltas, double[] weightGradient, double[] biasGradient,
+            boolean accumulate, double[] scratch);
+
+    // The batch versions hold one sample per column. The defaults run the
+    // single-sample methods column by column through the workspace buffers
+    // of this layer; DenseLayer replaces them with matrix-matrix products.
+
+    void forwardBatch(Matrix inputs, Matrix outputs, Workspace workspace, int layer) {
+        var inputColumn  = workspace.layerOutputs.get(layer).data;
+        var outputColumn = workspace.layerInputs.get(layer).data;
+        var scratch      = workspace.scratch.get(layer);
+
+        for (int sampleIdx = 0; sampleIdx < inputs.getCols(); sampleIdx++) {
+            inputs.getColumn(sampleIdx, inputColumn);
+            forward(inputColumn, outputColumn, scratch);
+            outputs.setColumn(sampleIdx, outputColumn);
+        }
+    }
+
+    void backwardBatch(Matrix inputs, Matrix deltas, Matrix inputDeltas, Workspace workspace, int layer) {
+        var inputColumn      = workspace.layerOutputs.get(layer).data;
+        var deltaColumn      = workspace.layerDeltas.get(layer).data;
+        var inputDeltaColumn = workspace.layerDeltas.get(layer - 1).data;
+        var scratch          = workspace.scratch.get(layer);
+
+        for (int sampleIdx = 0; sampleIdx < inputs.getCols(); sampleIdx++) {
+            inputs.getColumn(sampleIdx, inputColumn);
+            deltas.getColumn(sampleIdx, deltaColumn);
+            backward(inputColumn, deltaColumn, inputDeltaColumn, scratch);
+            inputDeltas.setColumn(sampleIdx, inputDeltaColumn);
+        }
+    }
+
+    /**
+     * Sums the gradient over the batch into the workspace gradient of this
+     * layer.
+     */
+    void gradientBatch(Matrix inputs, Matrix deltas, Workspace workspace, int layer) {
+        var inputColumn    = workspace.layerOutputs.get(layer).data;
+        var deltaColumn    = workspace.layerDeltas.get(layer).data;
+        var weightGradient = workspace.gradient.get(layer).data;
+        var biasGradient   = workspace.biasGradient.get(layer).data;
+        var scratch        = workspace.scratch.get(layer);
+
+        for (int sampleIdx = 0; sampleIdx < inputs.getCols(); sampleIdx++) {
+            inputs.getColumn(sampleIdx, inputColumn);
+            deltas.getColumn(sampleIdx, deltaColumn);
+            gradient(inputColumn, deltaColumn, weightGradient, biasGradient, sampleIdx > 0, scratch);
+        }
+    }
+
+}
@@ -0,0 +1,19 @@
+package com.gravitykit.nn;
+
+import java.util.SplittableRandom;
+
+/**
+ * LeCun initialization: weights normal with mean 0 and variance 1 / fanIn,
+ * which keeps the variance of each layer's pre-activations at that of its
+ * inputs. Biases start at zero.
+ */
+
+public class LeCunInitializer implements IWeightInitializer {
+
+    @Override
+    public void initialize(double[] weights, int offset, int length, int fanIn, int fanOut, SplittableRandom random) {
+        double deviation = Math.sqrt(1.0 / fanIn);
+        for (int idx = offset; idx < offset + length; idx++)
+            weights[idx] = random.nextGaussian() * deviation;
+    }
+}
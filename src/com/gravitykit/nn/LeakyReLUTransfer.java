@@ -0,0 +1,53 @@
+package com.gravitykit.nn;
+
+/**
+ * ReLU that lets a small slope through for negative inputs, so units
+ * stuck below zero still receive a gradient.
+ */
+
+public class LeakyReLUTransfer implements ITransferFunction {
+
+    private final double slope;
+
+    public LeakyReLUTransfer(double slope) {
+        this.slope = slope;
+    }
+
+    public LeakyReLUTransfer() {
+        this(0.01);
+    }
+
+    public double getSlope() {
+        return slope;
+    }
+
+    @Override
+    public double calculate(double input) {
+        return input > 0 ? input : slope * input;
+    }
+
+    @Override
+    public double derivative(double atValue) {
+        return atValue > 0 ? 1.0 : slope;
+    }
+
+    @Override
+    public void derivative(double[] in, double[] out, double[] gradient, int length) {
+        for (int idx = 0; idx < length; idx++)
+            if (in[idx] <= 0)
+                gradient[idx] *= slope;
+    }
+
+    @Override
+    public void derivative(double[] in, double[] out, double[] gradient, int length, long[] mask, double keep) {
+        double scale = 1.0 / keep;
+        for (int idx = 0; idx < length; idx++) {
+            if (!Dropout.isKept(mask, idx))
+                gradient[idx] = 0.0;
+            else if (in[idx] <= 0)
+                gradient[idx] = gradient[idx] * scale * slope;
+            else
+                gradient[idx] *= scale;
+        }
+    }
+}
@@ -1,14 +1,42 @@
 package com.gravitykit.nn;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.concurrent.TimeoutException;
+import javax.management.JMException;
 
 public class Main {
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws InterruptedException, IOException, JMException {
+        if (args.length > 0 && args[0].equals("bench")) {
+            Benchmarks.run(args);
+            return;
+        }
+
         NNTests.testXOR();
         NNTests.testAND();
         NNTests.testOR();
+        NNTests.testXORBatch();
+        NNTests.testTransferDerivatives();
+        NNTests.testXORSoftmax();
+        NNTests.testXOROptimizers();
+        NNTests.testTrainer();
+        NNTests.testXORHogwild();
+        NNTests.testXORStreaming();
+        NNTests.testFrozenConcurrent();
+        NNTests.testSaveAndMap();
+        NNTests.testQuantized();
+        NNTests.testMetrics();
+        NNTests.testInferenceServer();
+        NNTests.testSparse();
+        NNTests.testOffHeap();
+        NNTests.testConvolution();
+        NNTests.testInitializers();
+        NNTests.testCachingPredictor();
+        NNTests.testPipelinedPredictor();
+        NNTests.testRegularization();
+        NNTests.testCheckpoint();
+        NNTests.testAllocationFree();
     }
 
 }
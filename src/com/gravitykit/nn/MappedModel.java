@@ -0,0 +1,117 @@
+package com.gravitykit.nn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+
+/**
+ * MappedModel serves predictions straight from a memory-mapped model
+ * file written by ModelIO.save(...). The weights are read straight from
+ * slices of the mapping, with the same dot kernel as OffHeapMatrix, and
+ * are never copied onto the heap.
+ *
+ * A single mapping is limited to 2 GB, the limit of FileChannel.map.
+ *
+ * The mapping is read-only and predict() keeps its intermediate values
+ * in per-thread scratch buffers, so a MappedModel can be shared between
+ * threads.
+ */
+
+public final class MappedModel {
+
+    private final int[] layerSizes;
+    private final ByteBuffer[] weights;
+    private final DoubleBuffer[] bias;
+    private final ITransferFunction[] transferFunctions;
+    private final ThreadLocal<double[][]> scratch;
+
+    MappedModel(ByteBuffer mapping, int dataOffset, int[] layerSizes, ITransferFunction[] transferFunctions)
+            throws IOException {
+        this.layerSizes        = layerSizes;
+        this.transferFunctions = transferFunctions;
+        this.weights           = new ByteBuffer[layerSizes.length - 1];
+        this.bias              = new DoubleBuffer[layerSizes.length - 1];
+
+        long offset = dataOffset;
+        int width   = layerSizes[0];
+        for (int layer = 0; layer < weights.length; layer++) {
+            int rows = layerSizes[layer + 1];
+            int cols = layerSizes[layer];
+            long weightCount = (long) rows * cols;
+
+            if (offset + 8 * (weightCount + rows) > mapping.capacity())
+                throw new IOException("Model file is truncated");
+
+            weights[layer] = mapping.slice((int) offset, (int) (8 * weightCount))
+                    .order(mapping.order());
+            offset += 8 * weightCount;
+            bias[layer] = mapping.slice((int) offset, 8 * rows)
+                    .order(mapping.order()).asDoubleBuffer();
+            offset += 8L * rows;
+
+            width = Math.max(width, rows);
+        }
+
+        int maxWidth = width;
+        this.scratch = ThreadLocal.withInitial(() -> new double[][] {new double[maxWidth], new double[maxWidth]});
+    }
+
+    public ITransferFunction getTransferFunction(int layer) {
+        return transferFunctions[layer];
+    }
+
+    /**
+     * Number of weight layers.
+     */
+    public int getLayerCount() {
+        return weights.length;
+    }
+
+    public int getRows(int layer) {
+        return layerSizes[layer + 1];
+    }
+
+    public int getCols(int layer) {
+        return layerSizes[layer];
+    }
+
+    DoubleBuffer weightBuffer(int layer) {
+        return weights[layer].asDoubleBuffer();
+    }
+
+    DoubleBuffer biasBuffer(int layer) {
+        return bias[layer].duplicate();
+    }
+
+    public Vector predict(Vector input) {
+        if (input.size() != layerSizes[0])
+            throw new ArithmeticException("Vector size mismatch");
+
+        double[][] buffers   = scratch.get();
+        double[] layerOutput = buffers[0];
+        double[] layerInput  = buffers[1];
+        System.arraycopy(input.data, 0, layerOutput, 0, input.size());
+
+        for (int layer = 0; layer < weights.length; layer++) {
+            var weightBuffer = weights[layer];
+            var biasBuffer   = bias[layer];
+            int rows         = getRows(layer);
+            int cols         = getCols(layer);
+
+            for (int row = 0; row < rows; row++)
+                layerInput[row] = Kernels.INSTANCE.dot(weightBuffer, row * cols, layerOutput, 0, cols)
+                        + biasBuffer.get(row);
+            Kernels.INSTANCE.transfer(transferFunctions[layer], layerInput, layerInput, rows);
+
+            // This layer's output is the next layer's input.
+            double[] swap = layerOutput;
+            layerOutput   = layerInput;
+            layerInput    = swap;
+        }
+
+        var result = new Vector(layerSizes[layerSizes.length - 1]);
+        System.arraycopy(layerOutput, 0, result.data, 0, result.size());
+        return result;
+    }
+
+}
@@ -1,12 +1,37 @@
 package com.gravitykit.nn;
 
 import java.util.ArrayList;
-import java.util.function.Supplier;
+import java.util.Arrays;
+import java.util.function.DoubleSupplier;
+
+/*
+
+    Matrix stores its elements in a single row-major double[],
+    element (row, col) lives at data[row * columns + col].
+
+    The matrix-matrix kernels are cache-blocked: they work on
+    BLOCK x BLOCK tiles so the rows of both operands touched by the
+    inner loops stay in cache while they are reused, and the innermost
+    loop always walks contiguous memory. Those innermost loops are the
+    dot/axpy/scale primitives of Kernels, which may run on SIMD units.
+
+    Besides the plain product, the kernels that backpropagation needs
+    are provided directly so nothing has to be transposed in memory:
+
+        a.transposeMultiply(b, c)   c = transpose(a) * b
+        a.multiplyTranspose(b, c)   c = a * transpose(b)
+        c.outer(s, u, v)            c = s * u * transpose(v)
+
+ */
 
 public class Matrix {
 
+    // Tile edge in elements. 64 doubles is 512 bytes per tile row,
+    // three tiles fit comfortably in L1/L2.
+    private static final int BLOCK = 64;
+
     public static Matrix createScaleMatrix(ArrayList<Double> diagonals) {
-        Matrix newMatrix = new Matrix(diagonals.size(), diagonals.size(), () -> 0.0);
+        Matrix newMatrix = new Matrix(diagonals.size(), diagonals.size());
 
         for (int idx = 0; idx < diagonals.size(); idx++)
             newMatrix.set(idx, idx, diagonals.get(idx));
@@ -16,39 +41,59 @@ public class Matrix {
 
     private int rows;
     private int columns;
-    private double[][] matrix;
+    double[] data;
 
-    public Matrix(int rows, int columns, Supplier<Double> supplier) {
-        this.rows  = rows;
+    public Matrix(int rows, int columns) {
+        this.rows    = rows;
         this.columns = columns;
-        this.matrix = new double[rows][columns];
+        this.data    = new double[rows * columns];
+    }
 
-        for (int rowIdx = 0; rowIdx < rows; rowIdx++)
-            for (int colIdx = 0; colIdx < columns; colIdx++)
-                this.matrix[rowIdx][colIdx] = supplier.get();
+    public Matrix(int rows, int columns, DoubleSupplier supplier) {
+        this(rows, columns);
+
+        for (int idx = 0; idx < data.length; idx++)
+            this.data[idx] = supplier.getAsDouble();
     }
 
-    public Matrix(Double[][] values) {
-        this.rows    = values.length;
-        this.columns = values[0].length;
+    // Wraps the first rows * columns elements of data without copying,
+    // for views over buffers sized for the largest batch.
+    Matrix(int rows, int columns, double[] data) {
+        if (data.length < rows * columns)
+            throw new ArithmeticException();
 
-        this.matrix = new double[rows][columns];
+        this.rows    = rows;
+        this.columns = columns;
+        this.data    = data;
+    }
+
+    public Matrix(Double[][] values) {
+        this(values.length, values[0].length);
 
         for (int rowIdx = 0; rowIdx < rows; rowIdx++)
             for (int colIdx = 0; colIdx < columns; colIdx++)
-                this.matrix[rowIdx][colIdx] = values[rowIdx][colIdx];
+                this.data[rowIdx * columns + colIdx] = values[rowIdx][colIdx];
     }
 
+    /**
+     * Returns a copy of the contents as a two-dimensional array.
+     */
     public double[][] getMatrix() {
-        return this.matrix;
+        double[][] matrix = new double[rows][];
+        for (int rowIdx = 0; rowIdx < rows; rowIdx++)
+            matrix[rowIdx] = getRow(rowIdx);
+        return matrix;
     }
 
+    /**
+     * Returns a copy of the given row.
+     */
     public double[] getRow(int rowIdx) {
-        return matrix[rowIdx];
+        return Arrays.copyOfRange(data, rowIdx * columns, (rowIdx + 1) * columns);
     }
 
     public double get(int rowIdx, int colIdx) {
-        return this.matrix[rowIdx][colIdx];
+        return this.data[rowIdx * columns + colIdx];
     }
 
     public int getRows() {
@@ -60,65 +105,276 @@ public class Matrix {
     }
 
     public void add(Matrix other) {
+        addScaled(1.0, other);
+    }
+
+    public void sub(Matrix other) {
+        addScaled(-1.0, other);
+    }
+
+    /**
+     * this += scale * other
+     */
+    public void addScaled(double scale, Matrix other) {
         if (this.rows != other.rows || this.columns != other.columns)
             throw new ArithmeticException();
 
+        Kernels.INSTANCE.axpy(scale, other.data, 0, this.data, 0, rows * columns);
+    }
+
+    public void set(int rowIdx, int colIdx, double value) {
+        this.data[rowIdx * columns + colIdx] = value;
+    }
+
+    public Matrix copy() {
+        Matrix cloned = new Matrix(rows, columns);
+        System.arraycopy(data, 0, cloned.data, 0, rows * columns);
+        return cloned;
+    }
+
+    public Matrix transpose() {
+        Matrix transposed = new Matrix(columns, rows);
+
         for (int rowIdx = 0; rowIdx < rows; rowIdx++)
             for (int colIdx = 0; colIdx < columns; colIdx++)
-                this.matrix[rowIdx][colIdx] += other.get(rowIdx, colIdx);
+                transposed.data[colIdx * rows + rowIdx] = this.data[rowIdx * columns + colIdx];
+
+        return transposed;
     }
 
-    public void sub(Matrix other) {
-        if (this.rows != other.rows || this.columns != other.columns)
+    public Matrix multiply(Matrix other) {
+        return multiply(other, new Matrix(this.rows, other.columns));
+    }
+
+    /**
+     * Computes this * other into a caller-supplied result matrix.
+     */
+    public Matrix multiply(Matrix other, Matrix result) {
+        if (this.columns != other.rows || result.rows != this.rows || result.columns != other.columns)
             throw new ArithmeticException();
 
-        for (int rowIdx = 0; rowIdx < rows; rowIdx++)
-            for (int colIdx = 0; colIdx < columns; colIdx++)
-                this.matrix[rowIdx][colIdx] -= other.get(rowIdx, colIdx);
+        multiply(this.data, other.data, result.data, this.rows, this.columns, other.columns);
+        return result;
     }
 
-    public void set(int rowIdx, int colIdx, double value) {
-        this.matrix[rowIdx][colIdx] = value;
+    /**
+     * Computes transpose(this) * other into a caller-supplied result matrix.
+     */
+    public Matrix transposeMultiply(Matrix other, Matrix result) {
+        if (this.rows != other.rows || result.rows != this.columns || result.columns != other.columns)
+            throw new ArithmeticException();
+
+        transposeMultiply(this.data, other.data, result.data, this.rows, this.columns, other.columns);
+        return result;
     }
 
-    public Matrix multiply(Matrix other) {
-        Matrix newMatrix = new Matrix(this.rows, other.columns, () -> 0.0);
+    /**
+     * Computes this * transpose(other) into a caller-supplied result matrix.
+     */
+    public Matrix multiplyTranspose(Matrix other, Matrix result) {
+        if (this.columns != other.columns || result.rows != this.rows || result.columns != other.rows)
+            throw new ArithmeticException();
 
-        for (int rowIdx = 0; rowIdx < this.rows; rowIdx++)
-            for (int otherColIdx = 0; otherColIdx < other.columns; otherColIdx++) {
-                double sum = 0;
-                for (int elementIdx = 0; elementIdx < this.columns; elementIdx++)
-                    sum += this.get(rowIdx, elementIdx) * other.get(elementIdx, otherColIdx);
+        multiplyTranspose(this.data, other.data, result.data, this.rows, this.columns, other.rows, false);
+        return result;
+    }
+
+    // The kernels below work on raw row-major arrays, so callers holding
+    // plain buffers (the im2col columns of a convolution, for one) don't
+    // need Matrix views. Sizes are not checked.
+
+    // result (n x p) = left (n x m) * right (m x p)
+    static void multiply(double[] left, double[] right, double[] result, int n, int m, int p) {
+        var kernels = Kernels.INSTANCE;
+        Arrays.fill(result, 0, n * p, 0.0);
+
+        for (int rowBlock = 0; rowBlock < n; rowBlock += BLOCK)
+            for (int elementBlock = 0; elementBlock < m; elementBlock += BLOCK)
+                for (int colBlock = 0; colBlock < p; colBlock += BLOCK) {
+                    int rowEnd     = Math.min(rowBlock + BLOCK, n);
+                    int elementEnd = Math.min(elementBlock + BLOCK, m);
+                    int colEnd     = Math.min(colBlock + BLOCK, p);
+
+                    for (int rowIdx = rowBlock; rowIdx < rowEnd; rowIdx++) {
+                        int resultOffset = rowIdx * p;
+                        for (int elementIdx = elementBlock; elementIdx < elementEnd; elementIdx++)
+                            kernels.axpy(left[rowIdx * m + elementIdx],
+                                    right, elementIdx * p + colBlock,
+                                    result, resultOffset + colBlock, colEnd - colBlock);
+                    }
+                }
+    }
 
-                newMatrix.set(rowIdx, otherColIdx, sum);
+    // result (n x p) = transpose(left) * right, left is m x n and right m x p
+    static void transposeMultiply(double[] left, double[] right, double[] result, int m, int n, int p) {
+        var kernels = Kernels.INSTANCE;
+        Arrays.fill(result, 0, n * p, 0.0);
+
+        for (int elementBlock = 0; elementBlock < m; elementBlock += BLOCK)
+            for (int rowBlock = 0; rowBlock < n; rowBlock += BLOCK)
+                for (int colBlock = 0; colBlock < p; colBlock += BLOCK) {
+                    int elementEnd = Math.min(elementBlock + BLOCK, m);
+                    int rowEnd     = Math.min(rowBlock + BLOCK, n);
+                    int colEnd     = Math.min(colBlock + BLOCK, p);
+
+                    for (int elementIdx = elementBlock; elementIdx < elementEnd; elementIdx++) {
+                        int leftOffset  = elementIdx * n;
+                        int rightOffset = elementIdx * p;
+                        for (int rowIdx = rowBlock; rowIdx < rowEnd; rowIdx++)
+                            kernels.axpy(left[leftOffset + rowIdx],
+                                    right, rightOffset + colBlock,
+                                    result, rowIdx * p + colBlock, colEnd - colBlock);
+                    }
+                }
+    }
+
+    // result (n x p) = left (n x m) * transpose(right), right is p x m.
+    // With accumulate the product is added to result instead.
+    static void multiplyTranspose(double[] left, double[] right, double[] result, int n, int m, int p,
+            boolean accumulate) {
+        // Both operands are walked along their rows, so each result element
+        // is a contiguous dot product. Blocking over rows of right keeps a
+        // tile of it in cache while it is reused for a block of left rows.
+        for (int rowBlock = 0; rowBlock < n; rowBlock += BLOCK)
+            for (int colBlock = 0; colBlock < p; colBlock += BLOCK) {
+                int rowEnd = Math.min(rowBlock + BLOCK, n);
+                int colEnd = Math.min(colBlock + BLOCK, p);
+
+                for (int rowIdx = rowBlock; rowIdx < rowEnd; rowIdx++)
+                    for (int colIdx = colBlock; colIdx < colEnd; colIdx++) {
+                        double product = Vector.dot(left, rowIdx * m, right, colIdx * m, m);
+                        result[rowIdx * p + colIdx] = accumulate ? result[rowIdx * p + colIdx] + product : product;
+                    }
             }
+    }
 
-        return newMatrix;
+    // Copies column `column` into values[0, rows).
+    void getColumn(int column, double[] values) {
+        for (int rowIdx = 0; rowIdx < rows; rowIdx++)
+            values[rowIdx] = data[rowIdx * columns + column];
+    }
+
+    // Overwrites column `column` with values[0, rows).
+    void setColumn(int column, double[] values) {
+        for (int rowIdx = 0; rowIdx < rows; rowIdx++)
+            data[rowIdx * columns + column] = values[rowIdx];
+    }
+
+    /**
+     * Overwrites this matrix with the scaled outer product scale * left * transpose(right).
+     */
+    public Matrix outer(double scale, Vector left, Vector right) {
+        if (this.rows != left.size() || this.columns != right.size())
+            throw new ArithmeticException();
+
+        for (int rowIdx = 0; rowIdx < rows; rowIdx++)
+            Kernels.INSTANCE.scale(scale * left.data[rowIdx], right.data, 0, this.data, rowIdx * columns, columns);
+
+        return this;
+    }
+
+    /**
+     * Adds the scaled outer product scale * left * transpose(right) to this matrix.
+     */
+    public Matrix addOuter(double scale, Vector left, Vector right) {
+        if (this.rows != left.size() || this.columns != right.size())
+            throw new ArithmeticException();
+
+        for (int rowIdx = 0; rowIdx < rows; rowIdx++)
+            Kernels.INSTANCE.axpy(scale * left.data[rowIdx], right.data, 0, this.data, rowIdx * columns, columns);
+
+        return this;
+    }
+
+    /**
+     * Overwrites the columns of this matrix at the nonzero indices of right
+     * with scale * left * transpose(right). The other columns, which would
+     * be zero, are left as they are.
+     */
+    public Matrix outer(double scale, Vector left, SparseVector right) {
+        if (this.rows != left.size() || this.columns != right.size())
+            throw new ArithmeticException();
+
+        for (int rowIdx = 0; rowIdx < rows; rowIdx++)
+            Kernels.INSTANCE.scatter(scale * left.data[rowIdx], right.indices, right.values, right.nonZeros,
+                    this.data, rowIdx * columns, false);
+
+        return this;
+    }
+
+    /**
+     * Adds scale * left * transpose(right) to this matrix, touching only the
+     * columns at the nonzero indices of right.
+     */
+    public Matrix addOuter(double scale, Vector left, SparseVector right) {
+        if (this.rows != left.size() || this.columns != right.size())
+            throw new ArithmeticException();
+
+        for (int rowIdx = 0; rowIdx < rows; rowIdx++)
+            Kernels.INSTANCE.scatter(scale * left.data[rowIdx], right.indices, right.values, right.nonZeros,
+                    this.data, rowIdx * columns, true);
+
+        return this;
     }
 
     public Vector multiply(Vector rightVec) {
-        if (this.columns != rightVec.size())
+        return multiply(rightVec, new Vector(this.rows));
+    }
+
+    /**
+     * Multiplies into a caller-supplied result vector instead of allocating one.
+     */
+    public Vector multiply(Vector rightVec, Vector result) {
+        if (this.columns != rightVec.size() || this.rows != result.size())
+            throw new ArithmeticException();
+
+        for (int row = 0; row < this.rows; row++)
+            result.data[row] = Vector.dot(data, row * columns, rightVec.data, 0, this.columns);
+
+        return result;
+    }
+
+    /**
+     * Sparse GEMV: reads only the columns at the nonzero indices of
+     * rightVec, so the cost is rows * nonzeros instead of rows * columns.
+     */
+    public Vector multiply(SparseVector rightVec, Vector result) {
+        if (this.columns != rightVec.size() || this.rows != result.size())
+            throw new ArithmeticException();
+
+        for (int row = 0; row < this.rows; row++)
+            result.data[row] = Kernels.INSTANCE.dot(data, row * columns, rightVec.indices, rightVec.values,
+                    rightVec.nonZeros);
+
+        return result;
+    }
+
+    /**
+     * Computes transpose(this) * rightVec into a caller-supplied result vector.
+     */
+    public Vector transposeMultiply(Vector rightVec, Vector result) {
+        if (this.rows != rightVec.size() || this.columns != result.size())
             throw new ArithmeticException();
 
-        Vector newVec = new Vector();
+        Arrays.fill(result.data, 0, result.size, 0.0);
 
         for (int row = 0; row < this.rows; row++)
-            newVec.addDouble(Vector.dot(matrix[row], rightVec));
+            Kernels.INSTANCE.axpy(rightVec.data[row], data, row * columns, result.data, 0, this.columns);
 
-        return newVec;
+        return result;
     }
 
     @Override
     public String toString() {
-        String matrixString = new String();
-        matrixString += "\n";
+        var matrixString = new StringBuilder();
+        matrixString.append("\n");
         for (int rowIdx = 0; rowIdx < rows; rowIdx++) {
-            matrixString += "[";
+            matrixString.append("[");
             for (int colIdx = 0; colIdx < columns; colIdx++)
-                matrixString += " " + matrix[rowIdx][colIdx];
-            matrixString += "]\n";
+                matrixString.append(" ").append(get(rowIdx, colIdx));
+            matrixString.append("]\n");
         }
 
-        return matrixString;
+        return matrixString.toString();
     }
 }
@@ -0,0 +1,218 @@
+package com.gravitykit.nn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/*
+
+    ModelIO reads and writes trained networks in a compact binary format.
+    All values are little-endian.
+
+        int     magic               'GKNN'
+        int     version             2
+        int     layer count L       number of node layers, input included
+        int[L]  layer sizes
+        (zero padding up to an 8-byte boundary)
+        for every weight layer:
+            int     transfer function   see transferId(...)
+            int     reserved            0
+            double  parameter           LeakyReLU slope, 0 otherwise
+        for every weight layer:
+            double[rows * cols]     weights, row-major
+            double[rows]            bias
+
+    Version 1 files hold a single transfer function id right after the
+    version, used by every layer, and no per-layer entries. They are
+    still read.
+
+    The format describes fully connected networks only; save(...)
+    rejects networks with convolution or pooling layers.
+
+    load(...) copies the model into a regular NeuralNet that can be
+    trained further. map(...) memory-maps the file and returns a
+    MappedModel that reads the weights straight from the mapping, so
+    nothing is copied onto the heap and processes mapping the same file
+    share its pages.
+
+ */
+
+public class ModelIO {
+
+    static final int MAGIC   = 0x4E4E4B47; // "GKNN" read little-endian
+    static final int VERSION = 2;
+
+    private ModelIO() {}
+
+    static int transferId(ITransferFunction func) {
+        if (func instanceof TanHTransfer)
+            return 1;
+        if (func instanceof SigmoidTransfer)
+            return 2;
+        if (func instanceof ReLUTransfer)
+            return 3;
+        if (func instanceof LeakyReLUTransfer)
+            return 4;
+        if (func instanceof SoftmaxTransfer)
+            return 5;
+        if (func instanceof FastTanHTransfer)
+            return 6;
+        if (func instanceof FastSigmoidTransfer)
+            return 7;
+        if (func instanceof IdentityTransfer)
+            return 8;
+        throw new IllegalArgumentException("No model id for transfer function " + func.getClass().getName());
+    }
+
+    static double transferParameter(ITransferFunction func) {
+        if (func instanceof LeakyReLUTransfer)
+            return ((LeakyReLUTransfer) func).getSlope();
+        return 0;
+    }
+
+    static ITransferFunction transferFunction(int id, double parameter) throws IOException {
+        return switch (id) {
+            case 1 -> new TanHTransfer();
+            case 2 -> new SigmoidTransfer();
+            case 3 -> new ReLUTransfer();
+            case 4 -> new LeakyReLUTransfer(parameter);
+            case 5 -> new SoftmaxTransfer();
+            case 6 -> new FastTanHTransfer();
+            case 7 -> new FastSigmoidTransfer();
+            case 8 -> new IdentityTransfer();
+            default -> throw new IOException("Unknown transfer function id " + id);
+        };
+    }
+
+    private static int headerSize(int version, int layerCount) {
+        if (version == 1)
+            return (4 * (4 + layerCount) + 7) & ~7;
+
+        int size = (4 * (3 + layerCount) + 7) & ~7;
+        return size + 16 * (layerCount - 1);
+    }
+
+    public static void save(NeuralNet nn, Path path) throws IOException {
+        nn.requireDense("ModelIO");
+        var weights = nn.getWeights();
+        var bias    = nn.getBias();
+
+        int layerCount = weights.size() + 1;
+        long size      = headerSize(VERSION, layerCount);
+        for (var weightMatrix : weights)
+            size += 8L * (weightMatrix.data.length + weightMatrix.getRows());
+
+        try (var channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            var header = ByteBuffer.allocate(headerSize(VERSION, layerCount)).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(layerCount);
+            header.putInt(weights.get(0).getCols());
+            for (var weightMatrix : weights)
+                header.putInt(weightMatrix.getRows());
+
+            header.position(headerSize(VERSION, layerCount) - 16 * weights.size());
+            for (int layer = 0; layer < weights.size(); layer++) {
+                var func = nn.getTransferFunction(layer);
+                header.putInt(transferId(func)).putInt(0).putDouble(transferParameter(func));
+            }
+            header.rewind();
+            writeFully(channel, header);
+
+            // Stream the layers through a fixed-size buffer, one layer at a time.
+            var buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+            for (int layer = 0; layer < weights.size(); layer++) {
+                writeDoubles(channel, buffer, weights.get(layer).data, weights.get(layer).data.length);
+                writeDoubles(channel, buffer, bias.get(layer).data, bias.get(layer).size());
+            }
+            buffer.flip();
+            writeFully(channel, buffer);
+
+            if (channel.size() != size)
+                throw new IOException("Model size mismatch");
+        }
+    }
+
+    static void writeDoubles(FileChannel channel, ByteBuffer buffer, double[] values, int length) throws IOException {
+        int idx = 0;
+        while (idx < length) {
+            if (buffer.remaining() < Double.BYTES) {
+                buffer.flip();
+                writeFully(channel, buffer);
+                buffer.clear();
+            }
+
+            // Bulk copy as many doubles as fit through a double view of the buffer.
+            int count = Math.min(buffer.remaining() / Double.BYTES, length - idx);
+            buffer.asDoubleBuffer().put(values, idx, count);
+            buffer.position(buffer.position() + count * Double.BYTES);
+            idx += count;
+        }
+    }
+
+    static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    /**
+     * Reads a model into a trainable NeuralNet using the given learning rate.
+     */
+    public static NeuralNet load(Path path, double rate) throws IOException {
+        var model = map(path);
+        int last  = model.getLayerCount() - 1;
+        var nn    = new NeuralNet(model.getTransferFunction(last), rate);
+
+        for (int layer = 0; layer <= last; layer++) {
+            var weightMatrix = new Matrix(model.getRows(layer), model.getCols(layer));
+            var bias         = new Vector(model.getRows(layer));
+            model.weightBuffer(layer).get(weightMatrix.data);
+            model.biasBuffer(layer).get(bias.data);
+            nn.addLayer(new DenseLayer(weightMatrix, bias, model.getTransferFunction(layer)));
+        }
+
+        nn.allocateWorkspace();
+        return nn;
+    }
+
+    /**
+     * Memory-maps a model file read-only for zero-copy inference.
+     */
+    public static MappedModel map(Path path) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                    .order(ByteOrder.LITTLE_ENDIAN);
+
+            if (buffer.remaining() < 16 || buffer.getInt(0) != MAGIC)
+                throw new IOException("Not a model file: " + path);
+            int version = buffer.getInt(4);
+            if (version != 1 && version != VERSION)
+                throw new IOException("Unsupported model version " + version);
+
+            // Version 1 has the shared transfer function id before the layer count.
+            int countOffset = version == 1 ? 12 : 8;
+            int layerCount  = buffer.getInt(countOffset);
+            if (layerCount < 2 || buffer.remaining() < headerSize(version, layerCount))
+                throw new IOException("Corrupt model header");
+
+            int[] layerSizes = new int[layerCount];
+            for (int idx = 0; idx < layerCount; idx++)
+                layerSizes[idx] = buffer.getInt(countOffset + 4 + 4 * idx);
+
+            var transferFunctions = new ITransferFunction[layerCount - 1];
+            int entryOffset       = headerSize(version, layerCount) - 16 * (layerCount - 1);
+            for (int layer = 0; layer < transferFunctions.length; layer++) {
+                if (version == 1)
+                    transferFunctions[layer] = transferFunction(buffer.getInt(8), 0);
+                else
+                    transferFunctions[layer] = transferFunction(buffer.getInt(entryOffset + 16 * layer),
+                            buffer.getDouble(entryOffset + 16 * layer + 8));
+            }
+
+            return new MappedModel(buffer, headerSize(version, layerCount), layerSizes, transferFunctions);
+        }
+    }
+
+}
@@ -0,0 +1,77 @@
+package com.gravitykit.nn;
+
+import java.util.List;
+
+/**
+ * SGD with classical momentum:
+ *
+ *     v = momentum * v + g
+ *     p -= rate * v
+ *
+ * With weight decay, g includes weightDecay * p for the weights.
+ */
+
+public class MomentumOptimizer implements IOptimizer {
+
+    private double rate;
+    private final double momentum;
+    private double[][] velocity;
+    private double weightDecay = 0.0;
+
+    public MomentumOptimizer(double rate, double momentum) {
+        this.rate     = rate;
+        this.momentum = momentum;
+    }
+
+    public MomentumOptimizer(double rate) {
+        this(rate, 0.9);
+    }
+
+    @Override
+    public double getRate() {
+        return rate;
+    }
+
+    @Override
+    public void setRate(double rate) {
+        this.rate = rate;
+    }
+
+    public double getMomentum() {
+        return momentum;
+    }
+
+    @Override
+    public double getWeightDecay() {
+        return weightDecay;
+    }
+
+    @Override
+    public void setWeightDecay(double weightDecay) {
+        if (weightDecay < 0)
+            throw new IllegalArgumentException("Weight decay must not be negative");
+        this.weightDecay = weightDecay;
+    }
+
+    @Override
+    public void allocate(int[] slotSizes) {
+        velocity = new double[slotSizes.length][];
+        for (int slot = 0; slot < slotSizes.length; slot++)
+            velocity[slot] = new double[slotSizes[slot]];
+    }
+
+    @Override
+    public List<double[]> getState() {
+        return List.of(velocity);
+    }
+
+    @Override
+    public void update(int slot, double[] parameters, double[] gradient, double scale, int offset, int length) {
+        double[] v   = velocity[slot];
+        double decay = NeuralNet.isWeightSlot(slot) ? weightDecay : 0.0;
+        for (int idx = offset; idx < offset + length; idx++) {
+            v[idx] = momentum * v[idx] + scale * gradient[idx] + decay * parameters[idx];
+            parameters[idx] -= rate * v[idx];
+        }
+    }
+}
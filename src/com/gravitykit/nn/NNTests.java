@@ -1,18 +1,51 @@
 package com.gravitykit.nn;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Array;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.ToDoubleFunction;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordingFile;
 
 public class NNTests {
 
     private static void train(IErrorFunction error, int epochs, NeuralNet nn, ArrayList<Sample> samples) {
+        train(error, epochs, nn, samples, new Vector(samples.get(0).getDesired().size));
+    }
+
+    // The same with the output written to output, allocating nothing.
+    private static void train(IErrorFunction error, int epochs, NeuralNet nn, ArrayList<Sample> samples,
+            Vector output) {
         for (int epoch = 0; epoch < epochs; epoch++) {
             Sample sample = samples.get(epoch % samples.size());
-            nn.simulate(sample.getInput());
+            nn.simulate(sample.getInput(), output);
             nn.train(error, sample.getDesired());
         }
     }
 
+    private static void trainBatches(IErrorFunction error, int epochs, int batchSize, NeuralNet nn, ArrayList<Sample> samples) {
+        for (int epoch = 0; epoch < epochs; epoch++)
+            for (int start = 0; start < samples.size(); start += batchSize)
+                nn.trainBatch(error, samples.subList(start, Math.min(start + batchSize, samples.size())));
+    }
+
     private static void printResult(NeuralNet nn, Vector input) {
         System.out.print(input);
         System.out.print(" -> nn -> ");
@@ -159,4 +192,1522 @@ public class NNTests {
         System.out.println();
     }
 
+    // ====================================================================================
+    // == testXORBatch ====================================================================
+    // ====================================================================================
+
+    public static void testXORBatch() {
+
+        // Same network as testXOR but trained on the full batch of four samples,
+        // so each step applies the averaged gradient and a larger rate is needed.
+
+        System.out.println("testXORBatch");
+
+        NeuralNetBuilder builder = new NeuralNetBuilder();
+        builder
+                .setRate(0.5)
+                .setTransferFunction(new TanHTransfer())
+                .addLayer(2)
+                .addLayer(2)
+                .addLayer(1);
+
+        NeuralNet nn = builder.build();
+
+        ArrayList<Sample> samples = new ArrayList<>();
+        samples.add(new Sample(
+                new Double[] {0.0, 0.0},
+                new Double[] {0.0})
+        );
+
+        samples.add(new Sample(
+                new Double[] {1.0, 0.0},
+                new Double[] {1.0})
+        );
+
+        samples.add(new Sample(
+                new Double[] {0.0, 1.0},
+                new Double[] {1.0})
+        );
+
+        samples.add(new Sample(
+                new Double[] {1.0, 1.0},
+                new Double[] {0.0})
+        );
+
+        trainBatches(new DiffSquareError(), 2000, 4, nn, samples);
+
+        for (var sample : samples)
+            printResult(nn, sample.getInput());
+
+        System.out.println();
+    }
+
+    // ====================================================================================
+    // == testXOROptimizers ===============================================================
+    // ====================================================================================
+
+    public static void testXOROptimizers() {
+
+        // Counts the epochs each optimizer needs to bring the XOR error below 0.01.
+
+        System.out.println("testXOROptimizers");
+
+        ArrayList<Sample> samples = new ArrayList<>();
+        samples.add(new Sample(new Double[] {0.0, 0.0}, new Double[] {0.0}));
+        samples.add(new Sample(new Double[] {1.0, 0.0}, new Double[] {1.0}));
+        samples.add(new Sample(new Double[] {0.0, 1.0}, new Double[] {1.0}));
+        samples.add(new Sample(new Double[] {1.0, 1.0}, new Double[] {0.0}));
+
+        var optimizers = new LinkedHashMap<String, IOptimizer>();
+        optimizers.put("sgd", new SGDOptimizer(0.2));
+        optimizers.put("momentum", new MomentumOptimizer(0.05));
+        optimizers.put("nesterov", new NesterovOptimizer(0.05));
+        optimizers.put("rmsprop", new RMSPropOptimizer(0.01));
+        optimizers.put("adam", new AdamOptimizer(0.05));
+
+        for (var optimizer : optimizers.entrySet()) {
+            NeuralNet nn = new NeuralNetBuilder()
+                    .setTransferFunction(new TanHTransfer())
+                    .setOptimizer(optimizer.getValue())
+                    .addLayer(2)
+                    .addLayer(4)
+                    .addLayer(1)
+                    .build();
+
+            var result = new Trainer(nn, new DiffSquareError())
+                    .setEpochs(5000)
+                    .setValidationSet(samples)
+                    .setTargetLoss(0.01)
+                    .train(samples);
+
+            System.out.printf("%-10s %s%n", optimizer.getKey(), result.isTargetReached()
+                    ? "converged after " + result.getEpochs() + " epochs" : "did not converge in 5000 epochs");
+        }
+
+        System.out.println();
+    }
+
+    // ====================================================================================
+    // == testTrainer =====================================================================
+    // ====================================================================================
+
+    public static void testTrainer() {
+
+        // Fits sin(x) on [-pi, pi] with mini-batches, a cosine learning-rate
+        // schedule and early stopping on a held-out validation set.
+
+        System.out.println("testTrainer");
+
+        ArrayList<Sample> training   = new ArrayList<>();
+        ArrayList<Sample> validation = new ArrayList<>();
+        for (int idx = 0; idx < 250; idx++) {
+            double x = Math.random() * 2 * Math.PI - Math.PI;
+            var sample = new Sample(new Double[] {x / Math.PI}, new Double[] {Math.sin(x)});
+            (idx < 200 ? training : validation).add(sample);
+        }
+
+        NeuralNet nn = new NeuralNetBuilder()
+                .setTransferFunction(new TanHTransfer())
+                .setOptimizer(new AdamOptimizer(0.02))
+                .addLayer(1)
+                .addLayer(16)
+                .addLayer(1)
+                .build();
+
+        double initial = nn.findError(new DiffSquareError(), validation);
+        var result = new Trainer(nn, new DiffSquareError())
+                .setEpochs(2000)
+                .setBatchSize(16)
+                .setSeed(42)
+                .setValidationSet(validation)
+                .setSchedule(new CosineSchedule(2000, 0.001))
+                .setEarlyStopping(50, 1e-6)
+                .train(training);
+
+        System.out.println("validation loss " + initial + " -> " + nn.findError(new DiffSquareError(), validation));
+        System.out.println(result);
+        if (!(nn.findError(new DiffSquareError(), validation) < initial))
+            throw new AssertionError("training did not reduce the validation loss");
+
+        System.out.println();
+    }
+
+    // ====================================================================================
+    // == testXORHogwild ==================================================================
+    // ====================================================================================
+
+    public static void testXORHogwild() {
+
+        // Trains the testXOR network once single-threaded and once with
+        // lock-free Hogwild updates from four threads, then compares the
+        // throughput and the final loss of both.
+
+        System.out.println("testXORHogwild");
+
+        ArrayList<Sample> samples = new ArrayList<>();
+        samples.add(new Sample(new Double[] {0.0, 0.0}, new Double[] {0.0}));
+        samples.add(new Sample(new Double[] {1.0, 0.0}, new Double[] {1.0}));
+        samples.add(new Sample(new Double[] {0.0, 1.0}, new Double[] {1.0}));
+        samples.add(new Sample(new Double[] {1.0, 1.0}, new Double[] {0.0}));
+
+        var error      = new DiffSquareError();
+        int iterations = 20_000;
+
+        NeuralNetBuilder builder = new NeuralNetBuilder();
+        builder
+                .setRate(0.2)
+                .setTransferFunction(new TanHTransfer())
+                .setSeed(1)
+                .addLayer(2)
+                .addLayer(2)
+                .addLayer(1);
+
+        NeuralNet baseline = builder.build();
+        long start = System.nanoTime();
+        train(error, iterations, baseline, samples);
+        double baselineRate = iterations / ((System.nanoTime() - start) / 1e9);
+
+        NeuralNet nn = builder.build();
+        double hogwildRate;
+        try (var trainer = new HogwildTrainer(nn, 4)) {
+            hogwildRate = trainer.train(error, iterations, samples);
+        }
+
+        double hogwildLoss = nn.findError(error, samples);
+        System.out.printf("single-threaded: %10.0f samples/sec, loss %.6f%n", baselineRate, baseline.findError(error, samples));
+        System.out.printf("hogwild x4:      %10.0f samples/sec, loss %.6f%n", hogwildRate, hogwildLoss);
+
+        for (var sample : samples)
+            printResult(nn, sample.getInput());
+
+        if (hogwildLoss > 0.01)
+            throw new AssertionError("Hogwild training did not fit XOR, loss " + hogwildLoss);
+
+        System.out.println();
+    }
+
+    // ====================================================================================
+    // == testXORStreaming ================================================================
+    // ====================================================================================
+
+    public static void testXORStreaming() throws IOException {
+
+        // Writes the XOR truth table to a CSV file, converts it to the packed
+        // binary format and trains from disk through the prefetching and
+        // shuffling sources, one epoch per pass over the file.
+
+        System.out.println("testXORStreaming");
+
+        Path csv    = Files.createTempFile("xor", ".csv");
+        Path binary = Files.createTempFile("xor", ".gkds");
+        try {
+            var lines = new ArrayList<String>();
+            lines.add("# x1, x2, x1 xor x2");
+            for (int repeat = 0; repeat < 50; repeat++) {
+                lines.add("0, 0, 0");
+                lines.add("1, 0, 1");
+                lines.add("0, 1, 1");
+                lines.add("1, 1, 0");
+            }
+            Files.write(csv, lines);
+
+            try (var source = new CsvSampleSource(csv, 2, 1)) {
+                BinarySampleSource.write(source, binary);
+            }
+
+            NeuralNet nn = new NeuralNetBuilder()
+                    .setRate(0.2)
+                    .setTransferFunction(new TanHTransfer())
+                    .addLayer(2)
+                    .addLayer(2)
+                    .addLayer(1)
+                    .build();
+
+            long trained = 0;
+            try (var source = new ShuffledSampleSource(
+                    new PrefetchingSampleSource(new BinarySampleSource(binary), 64), 32, 42)) {
+                for (int epoch = 0; epoch < 25; epoch++) {
+                    trained += nn.train(new DiffSquareError(), source);
+                    source.reset();
+                }
+            }
+
+            System.out.println("trained on " + trained + " streamed samples");
+            for (var input : new Double[][] {{0.0, 0.0}, {1.0, 0.0}, {0.0, 1.0}, {1.0, 1.0}})
+                printResult(nn, new Vector(input));
+
+            // Resetting mid-epoch, while the reader is still inside a read of
+            // the file, must leave the file readable.
+            lines.clear();
+            for (int repeat = 0; repeat < 25_000; repeat++) {
+                lines.add("0, 0, 0");
+                lines.add("1, 0, 1");
+                lines.add("0, 1, 1");
+                lines.add("1, 1, 0");
+            }
+            Files.write(csv, lines);
+            try (var source = new CsvSampleSource(csv, 2, 1)) {
+                BinarySampleSource.write(source, binary);
+            }
+
+            int streamed = 0;
+            try (var source = new PrefetchingSampleSource(new BinarySampleSource(binary), 1 << 20)) {
+                for (int round = 0; round < 50; round++) {
+                    for (int idx = 0; idx < 5; idx++)
+                        source.next();
+                    source.reset();
+                }
+                while (source.next() != null)
+                    streamed++;
+            }
+
+            System.out.println("samples after 50 mid-epoch resets: " + streamed);
+            if (streamed != lines.size())
+                throw new AssertionError("mid-epoch reset lost samples");
+        } finally {
+            Files.delete(csv);
+            Files.delete(binary);
+        }
+
+        System.out.println();
+    }
+
+    // ====================================================================================
+    // == testFrozenConcurrent ============================================================
+    // ====================================================================================
+
+    public static void testFrozenConcurrent() throws InterruptedException {
+        System.out.println("testFrozenConcurrent");
+
+        NeuralNet nn = new NeuralNetBuilder()
+                .setRate(0.2)
+                .setTransferFunction(new TanHTransfer())
+                .addLayer(16)
+                .addLayer(8)
+                .addLayer(4)
+                .build();
+
+        Predictor predictor = nn.freeze();
+        Vector input        = new Vector(16, () -> Math.random() * 0.2 - 0.1);
+        Vector expected     = nn.simulate(input).copy();
+
+        // Training the original must not leak into the frozen copy.
+        nn.train(new DiffSquareError(), new Vector(4, () -> 1.0));
+
+        var failures = new AtomicInteger();
+        var threads  = new ArrayList<Thread>();
+        for (int threadIdx = 0; threadIdx < 8; threadIdx++) {
+            var thread = new Thread(() -> {
+                var scratch = predictor.newScratch();
+                var result  = new Vector(4);
+                for (int iteration = 0; iteration < 10_000; iteration++) {
+                    predictor.predict(input, result, scratch);
+                    for (int idx = 0; idx < result.size(); idx++)
+                        if (result.get(idx) != expected.get(idx))
+                            failures.incrementAndGet();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+
+        for (var thread : threads)
+            thread.join();
+
+        System.out.println(expected + " -> mismatches: " + failures.get());
+        if (failures.get() > 0)
+            throw new AssertionError("concurrent predictions differ from simulate");
+
+        System.out.println();
+    }
+
+    // ====================================================================================
+    // == testSaveAndMap ==================================================================
+    // ====================================================================================
+
+    public static void testSaveAndMap() throws IOException {
+        System.out.println("testSaveAndMap");
+
+        NeuralNet nn = new NeuralNetBuilder()
+                .setRate(0.2)
+                .setTransferFunction(new TanHTransfer())
+                .addLayer(16)
+                .addLayer(8, new LeakyReLUTransfer(0.05))
+                .addLayer(8)
+                .addLayer(4, new SoftmaxTransfer())
+                .build();
+
+        Vector input    = new Vector(16, () -> Math.random() * 0.2 - 0.1);
+        Vector expected = nn.simulate(input).copy();
+
+        Path path = Files.createTempFile("model", ".gknn");
+        try {
+            ModelIO.save(nn, path);
+
+            Vector mapped = ModelIO.map(path).predict(input);
+            Vector loaded = ModelIO.load(path, 0.2).simulate(input);
+
+            // The mapped model sums in a different order than the SIMD kernels
+            // may, so it is compared with a tolerance. The loaded copy must match.
+            System.out.println(expected + " -> mapped " + mapped + ", loaded " + loaded);
+            for (int idx = 0; idx < expected.size(); idx++)
+                if (Math.abs(mapped.get(idx) - expected.get(idx)) > 1e-12 || loaded.get(idx) != expected.get(idx))
+                    throw new AssertionError("saved model differs from the original");
+        } finally {
+            Files.delete(path);
+        }
+
+        System.out.println();
+    }
+
+    // ====================================================================================
+    // == testTransferDerivatives =========================================================
+    // ====================================================================================
+
+    public static void testTransferDerivatives() {
+        System.out.println("testTransferDerivatives");
+
+        ITransferFunction[] functions = {
+                new TanHTransfer(), new SigmoidTransfer(), new ReLUTransfer(), new LeakyReLUTransfer(),
+                new SoftmaxTransfer(), new FastTanHTransfer(), new FastSigmoidTransfer()
+        };
+
+        int size   = 5;
+        double eps = 1e-6;
+
+        for (var func : functions) {
+            double[] in       = new Vector(size, () -> Math.random() * 4 - 2).toArray();
+            double[] out      = new double[size];
+            double[] shifted  = new double[size];
+            double[] upstream = new Vector(size, () -> Math.random() - 0.5).toArray();
+            double[] gradient = upstream.clone();
+
+            func.calculate(in, out, size);
+            func.derivative(in, out, gradient, size);
+
+            // Compare against the central difference of sum(upstream[j] * out[j]).
+            double worst = 0;
+            for (int idx = 0; idx < size; idx++) {
+                double saved = in[idx];
+                in[idx] = saved + eps;
+                func.calculate(in, shifted, size);
+                double above = Kernels.INSTANCE.dot(upstream, 0, shifted, 0, size);
+                in[idx] = saved - eps;
+                func.calculate(in, shifted, size);
+                double below = Kernels.INSTANCE.dot(upstream, 0, shifted, 0, size);
+                in[idx] = saved;
+
+                worst = Math.max(worst, Math.abs((above - below) / (2 * eps) - gradient[idx]));
+            }
+
+            System.out.println(func.getClass().getSimpleName() + " -> max derivative error " + worst);
+            if (worst > 1e-3)
+                throw new AssertionError(func.getClass().getSimpleName() + " derivative disagrees with calculate");
+        }
+
+        System.out.println();
+    }
+
+    // ====================================================================================
+    // == testXORSoftmax ==================================================================
+    // ====================================================================================
+
+    public static void testXORSoftmax() {
+
+        // XOR as a two-class problem: a fast tanh hidden layer and a softmax
+        // output giving the probability of 0 and of 1.
+
+        System.out.println("testXORSoftmax");
+
+        NeuralNet nn = new NeuralNetBuilder()
+                .setRate(0.1)
+                .setTransferFunction(new TanHTransfer())
+                .addLayer(2)
+                .addLayer(4, new FastTanHTransfer())
+                .addLayer(2, new SoftmaxTransfer())
+                .build();
+
+        ArrayList<Sample> samples = new ArrayList<>();
+        samples.add(new Sample(new Double[] {0.0, 0.0}, new Double[] {1.0, 0.0}));
+        samples.add(new Sample(new Double[] {1.0, 0.0}, new Double[] {0.0, 1.0}));
+        samples.add(new Sample(new Double[] {0.0, 1.0}, new Double[] {0.0, 1.0}));
+        samples.add(new Sample(new Double[] {1.0, 1.0}, new Double[] {1.0, 0.0}));
+
+        trainBatches(new DiffSquareError(), 5000, 4, nn, samples);
+
+        for (var sample : samples)
+            printResult(nn, sample.getInput());
+
+        System.out.println();
+    }
+
+    // ====================================================================================
+    // == testQuantized ===================================================================
+    // ====================================================================================
+
+    public static void testQuantized() {
+        System.out.println("testQuantized");
+
+        NeuralNet nn = new NeuralNetBuilder()
+                .setRate(0.2)
+                .setTransferFunction(new TanHTransfer())
+                .addLayer(32)
+                .addLayer(16)
+                .addLayer(4, new SigmoidTransfer())
+                .build();
+
+        for (var weightMatrix : nn.getWeights())
+            for (int idx = 0; idx < weightMatrix.data.length; idx++)
+                weightMatrix.data[idx] = (Math.random() * 2 - 1) / Math.sqrt(weightMatrix.getCols());
+
+        var float32   = nn.freezeFloat32();
+        var quantized = nn.freezeInt8();
+
+        double floatDelta = 0, int8Delta = 0;
+        for (int sampleIdx = 0; sampleIdx < 100; sampleIdx++) {
+            Vector input    = new Vector(32, () -> Math.random() * 2 - 1);
+            Vector expected = nn.simulate(input);
+            Vector floatOut = float32.predict(input);
+            Vector int8Out  = quantized.predict(input);
+            for (int idx = 0; idx < expected.size(); idx++) {
+                floatDelta = Math.max(floatDelta, Math.abs(floatOut.get(idx) - expected.get(idx)));
+                int8Delta  = Math.max(int8Delta, Math.abs(int8Out.get(idx) - expected.get(idx)));
+            }
+        }
+
+        System.out.println("max |delta| float32 " + floatDelta + ", int8 " + int8Delta);
+        if (floatDelta > 1e-5 || int8Delta > 0.02)
+            throw new AssertionError("reduced-precision predictions drifted from simulate");
+
+        // At the widest layer the accumulator can hold, every term at its
+        // largest (255 * 255) still sums exactly; one input more is refused.
+        int widest = QuantizedPredictor.MAX_INPUTS;
+        var wide   = new NeuralNetBuilder()
+                .setTransferFunction(new IdentityTransfer())
+                .addLayer(widest)
+                .addLayer(1)
+                .build();
+        Arrays.fill(wide.getWeights().get(0).data, 1.0);
+        var ones        = new Vector(widest, () -> 1.0);
+        double exact    = wide.simulate(ones).get(0);
+        double widened  = wide.freezeInt8().predict(ones).get(0);
+        boolean refused = false;
+        try {
+            new NeuralNetBuilder()
+                    .setTransferFunction(new IdentityTransfer())
+                    .addLayer(widest + 1)
+                    .addLayer(1)
+                    .build()
+                    .freezeInt8();
+        } catch (UnsupportedOperationException e) {
+            refused = true;
+        }
+
+        System.out.println("int8 at " + widest + " inputs " + widened + " (exact " + exact + "), wider refused "
+                + refused);
+        if (Math.abs(widened - exact) > 1e-4 * widest || !refused)
+            throw new AssertionError("int8 accumulator overflowed or a too wide layer was accepted");
+
+        System.out.println();
+    }
+
+    // ====================================================================================
+    // == testMetrics =====================================================================
+    // ====================================================================================
+
+    public static void testMetrics() throws IOException, JMException {
+        System.out.println("testMetrics");
+
+        NeuralNet nn = new NeuralNetBuilder()
+                .setTransferFunction(new TanHTransfer())
+                .setOptimizer(new AdamOptimizer(0.05))
+                .addLayer(2)
+                .addLayer(4)
+                .addLayer(1)
+                .build();
+
+        ArrayList<Sample> samples = new ArrayList<>();
+        samples.add(new Sample(new Double[] {0.0, 0.0}, new Double[] {0.0}));
+        samples.add(new Sample(new Double[] {1.0, 0.0}, new Double[] {1.0}));
+        samples.add(new Sample(new Double[] {0.0, 1.0}, new Double[] {1.0}));
+        samples.add(new Sample(new Double[] {1.0, 1.0}, new Double[] {0.0}));
+
+        var metrics = NetworkMetrics.attach(nn);
+        metrics.register("testMetrics");
+
+        Path path = Files.createTempFile("metrics", ".jfr");
+        try (var recording = new Recording()) {
+            recording.enable("com.gravitykit.nn.LayerTiming");
+            recording.enable("com.gravitykit.nn.TrainingStep");
+            recording.enable("com.gravitykit.nn.Epoch");
+            recording.start();
+
+            new Trainer(nn, new DiffSquareError()).setEpochs(50).train(samples);
+            new Trainer(nn, new DiffSquareError()).setEpochs(50).setBatchSize(4).train(samples);
+
+            recording.stop();
+            recording.dump(path);
+
+            // Read the metrics back through JMX, the way a monitoring tool would.
+            var server = ManagementFactory.getPlatformMBeanServer();
+            var name   = new ObjectName("com.gravitykit.nn:type=NetworkMetrics,name=testMetrics");
+            long steps = (Long) server.getAttribute(name, "Steps");
+            int epochs = (Integer) server.getAttribute(name, "Epochs");
+            System.out.println("steps " + steps + ", samples " + metrics.getSamples() + ", epochs " + epochs);
+            System.out.println("forward ns/layer  " + Arrays.toString(metrics.getForwardMeanNanos()));
+            System.out.println("backward ns/layer " + Arrays.toString(metrics.getBackwardMeanNanos()));
+            System.out.println("gradient norms    " + Arrays.toString(metrics.getGradientNorms()));
+            System.out.printf("%.0f ns/step, %.1f B/step%n", metrics.getMeanStepNanos(), metrics.getMeanBytesPerStep());
+
+            int events = RecordingFile.readAllEvents(path).size();
+            System.out.println("JFR events: " + events);
+
+            if (steps != 50 * 4 + 50 || epochs != 100 || metrics.getSamples() != 400 || events == 0)
+                throw new AssertionError("metrics missed callbacks");
+        } finally {
+            metrics.unregister();
+            Files.delete(path);
+        }
+
+        System.out.println();
+    }
+
+    // ====================================================================================
+    // == testInferenceServer =============================================================
+    // ====================================================================================
+
+    public static void testInferenceServer() throws InterruptedException, IOException {
+        System.out.println("testInferenceServer");
+
+        NeuralNet nn = new NeuralNetBuilder()
+                .setTransferFunction(new TanHTransfer())
+                .addLayer(8)
+                .addLayer(16)
+                .addLayer(3, new SoftmaxTransfer())
+                .build();
+        var predictor = nn.freeze();
+
+        var failures = new AtomicInteger();
+        try (var server = new InferenceServer(predictor, 16, 2000)) {
+            // Concurrent callers must be coalesced, and each must get its own row back.
+            var threads = new ArrayList<Thread>();
+            for (int threadIdx = 0; threadIdx < 16; threadIdx++) {
+                var thread = new Thread(() -> {
+                    for (int iteration = 0; iteration < 100; iteration++) {
+                        Vector input    = new Vector(8, () -> Math.random() * 2 - 1);
+                        Vector expected = predictor.predict(input);
+                        Vector result   = server.predict(input);
+                        for (int idx = 0; idx < result.size(); idx++)
+                            if (Math.abs(result.get(idx) - expected.get(idx)) > 1e-12)
+                                failures.incrementAndGet();
+                    }
+                });
+                threads.add(thread);
+                thread.start();
+            }
+
+            for (var thread : threads)
+                thread.join();
+
+            System.out.printf("%d requests in %d batches (mean %.1f), mismatches: %d%n",
+                    server.getRequests(), server.getBatches(), server.getMeanBatchSize(), failures.get());
+            if (failures.get() > 0)
+                throw new AssertionError("batched predictions differ from predict");
+            if (server.getBatches() >= server.getRequests())
+                throw new AssertionError("concurrent requests were not coalesced");
+
+            // One round trip over HTTP.
+            int port = server.start(0);
+            var connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + "/predict").openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            try (var out = connection.getOutputStream()) {
+                out.write("0.1,0.2,0.3,0.4,-0.1,-0.2,-0.3,-0.4".getBytes(StandardCharsets.US_ASCII));
+            }
+            String body = new String(connection.getInputStream().readAllBytes(), StandardCharsets.US_ASCII);
+
+            Vector expected = predictor.predict(new Vector(new double[] {0.1, 0.2, 0.3, 0.4, -0.1, -0.2, -0.3, -0.4}));
+            String[] fields = body.split(",");
+            System.out.println("HTTP " + connection.getResponseCode() + ": " + body);
+            if (connection.getResponseCode() != 200 || fields.length != expected.size())
+                throw new AssertionError("bad HTTP response");
+            for (int idx = 0; idx < fields.length; idx++)
+                if (Math.abs(Double.parseDouble(fields[idx]) - expected.get(idx)) > 1e-12)
+                    throw new AssertionError("HTTP prediction differs from predict");
+        }
+
+        // Closing while the dispatcher is collecting a batch must complete
+        // every future. A full batch of 16 is answered; the next 8 don't
+        // fill a batch, so the dispatcher holds them for up to 10 s and the
+        // close fails them, as it does a request submitted afterwards.
+        var futures = new ArrayList<CompletableFuture<Vector>>();
+        var server  = new InferenceServer(predictor, 16, 10_000_000);
+        for (int requestIdx = 0; requestIdx < 16; requestIdx++)
+            futures.add(server.submit(new Vector(8, () -> Math.random() * 2 - 1)));
+        for (var future : futures)
+            future.join();
+        for (int requestIdx = 0; requestIdx < 8; requestIdx++)
+            futures.add(server.submit(new Vector(8, () -> Math.random() * 2 - 1)));
+        while (server.getQueueLength() > 0)
+            Thread.sleep(1);
+        server.close();
+        futures.add(server.submit(new Vector(8, () -> Math.random() * 2 - 1)));
+
+        int pending   = 0;
+        int completed = 0;
+        for (var future : futures) {
+            if (!future.isDone())
+                pending++;
+            else if (!future.isCompletedExceptionally())
+                completed++;
+        }
+        int failed = futures.size() - completed - pending;
+        System.out.printf("closed with requests in flight: %d submitted, %d answered, %d failed, %d pending%n",
+                futures.size(), completed, failed, pending);
+        if (pending > 0 || completed != 16 || failed != 9)
+            throw new AssertionError("close() left requests pending or answered the wrong ones");
+
+        System.out.println();
+    }
+
+    // ====================================================================================
+    // == testSparse ======================================================================
+    // ====================================================================================
+
+    public static void testSparse() {
+        System.out.println("testSparse");
+
+        var sparseNet = new NeuralNetBuilder()
+                .setRate(0.05)
+                .setTransferFunction(new TanHTransfer())
+                .addLayer(2000)
+                .addLayer(16)
+                .addLayer(1)
+                .build();
+        var denseNet = new NeuralNetBuilder()
+                .setRate(0.05)
+                .setTransferFunction(new TanHTransfer())
+                .addLayer(2000)
+                .addLayer(16)
+                .addLayer(1)
+                .build();
+        for (int layer = 0; layer < 2; layer++) {
+            var weightData = sparseNet.getWeights().get(layer).data;
+            for (int idx = 0; idx < weightData.length; idx++)
+                weightData[idx] = Math.random() * 0.2 - 0.1;
+            System.arraycopy(weightData, 0, denseNet.getWeights().get(layer).data, 0, weightData.length);
+            System.arraycopy(sparseNet.getBias().get(layer).data, 0, denseNet.getBias().get(layer).data, 0,
+                    denseNet.getBias().get(layer).size());
+        }
+
+        // About 1% nonzeros, the same samples in both encodings.
+        var sparseSamples = new ArrayList<Sample>();
+        var denseSamples  = new ArrayList<Sample>();
+        for (int sampleIdx = 0; sampleIdx < 40; sampleIdx++) {
+            var dense   = new Vector(2000, () -> Math.random() < 0.01 ? Math.random() : 0.0);
+            var desired = new Vector(1, () -> Math.random() - 0.5);
+            sparseSamples.add(new Sample(SparseVector.fromDense(dense), desired));
+            denseSamples.add(new Sample(dense, desired));
+        }
+
+        new Trainer(sparseNet, new DiffSquareError()).setEpochs(5).setSeed(7).train(sparseSamples);
+        new Trainer(denseNet, new DiffSquareError()).setEpochs(5).setSeed(7).train(denseSamples);
+
+        double maxDelta = 0;
+        for (int layer = 0; layer < 2; layer++) {
+            var sparseData = sparseNet.getWeights().get(layer).data;
+            var denseData  = denseNet.getWeights().get(layer).data;
+            for (int idx = 0; idx < sparseData.length; idx++)
+                maxDelta = Math.max(maxDelta, Math.abs(sparseData[idx] - denseData[idx]));
+        }
+
+        var predictor = sparseNet.freeze();
+        var sample    = sparseSamples.get(0);
+        double sparseOut = predictor.predict(sample.getSparseInput()).get(0);
+        double denseOut  = predictor.predict(sample.getInput()).get(0);
+
+        System.out.println(sample.getSparseInput().getNonZeros() + " nonzeros, max |weight delta| after training "
+                + maxDelta + ", predict " + sparseOut + " vs " + denseOut);
+        if (maxDelta > 1e-12 || Math.abs(sparseOut - denseOut) > 1e-12)
+            throw new AssertionError("sparse path differs from dense");
+
+        System.out.println();
+    }
+
+    // ====================================================================================
+    // == testOffHeap =====================================================================
+    // ====================================================================================
+
+    public static void testOffHeap() {
+        System.out.println("testOffHeap");
+
+        var heap    = new Matrix(37, 53, () -> Math.random() - 0.5);
+        var offHeap = OffHeapMatrix.copyOf(heap);
+        var left    = new Vector(37, () -> Math.random());
+        var right   = new Vector(53, () -> Math.random());
+        var batch   = new Matrix(5, 53, () -> Math.random());
+
+        heap.addOuter(0.3, left, right);
+        offHeap.addOuter(0.3, left, right);
+        heap.addScaled(-2.0, heap.copy());
+        try (var copy = OffHeapMatrix.copyOf(offHeap)) {
+            offHeap.addScaled(-2.0, copy);
+        }
+
+        double maxDelta = 0;
+        var expected = heap.multiply(right, new Vector(37));
+        var actual   = offHeap.multiply(right, new Vector(37));
+        for (int idx = 0; idx < expected.size(); idx++)
+            maxDelta = Math.max(maxDelta, Math.abs(expected.get(idx) - actual.get(idx)));
+
+        expected = heap.transposeMultiply(left, new Vector(53));
+        actual   = offHeap.transposeMultiply(left, new Vector(53));
+        for (int idx = 0; idx < expected.size(); idx++)
+            maxDelta = Math.max(maxDelta, Math.abs(expected.get(idx) - actual.get(idx)));
+
+        var expectedBatch = heap.multiplyTranspose(batch, new Matrix(37, 5));
+        var actualBatch   = offHeap.multiplyTranspose(batch, new Matrix(37, 5));
+        for (int idx = 0; idx < expectedBatch.data.length; idx++)
+            maxDelta = Math.max(maxDelta, Math.abs(expectedBatch.data[idx] - actualBatch.data[idx]));
+
+        offHeap.close();
+        boolean closed = false;
+        try {
+            offHeap.get(0, 0);
+        } catch (IllegalStateException e) {
+            closed = true;
+        }
+
+        NeuralNet nn = new NeuralNetBuilder()
+                .setTransferFunction(new TanHTransfer())
+                .addLayer(64)
+                .addLayer(32)
+                .addLayer(4, new SoftmaxTransfer())
+                .build();
+        var input = new Vector(64, () -> Math.random() * 2 - 1);
+        var exact = nn.freeze().predict(input);
+        try (var predictor = nn.freezeOffHeap()) {
+            var output = predictor.predict(input);
+            for (int idx = 0; idx < exact.size(); idx++)
+                maxDelta = Math.max(maxDelta, Math.abs(exact.get(idx) - output.get(idx)));
+            System.out.println(predictor.getOffHeapBytes() + " bytes off-heap, max |delta| " + maxDelta
+                    + ", use after close rejected: " + closed);
+        }
+
+        if (maxDelta > 1e-12 || !closed)
+            throw new AssertionError("off-heap results differ from the heap matrices");
+
+        // Training with the weights and momentum off the heap follows the
+        // heap network step for step.
+        var samples = new ArrayList<Sample>();
+        for (int sampleIdx = 0; sampleIdx < 32; sampleIdx++)
+            samples.add(new Sample(new Vector(64, () -> Math.random() * 2 - 1), new Vector(4, () -> Math.random())));
+
+        var error   = new DiffSquareError();
+        var heapNet = offHeapTrainingNet();
+        var trained = offHeapTrainingNet();
+        double trainDelta;
+        long trainBytes;
+        try (var trainer = new OffHeapTrainer(offHeapTrainingNet())) {
+            for (int epoch = 0; epoch < 5; epoch++) {
+                for (var sample : samples) {
+                    heapNet.simulate(sample.getInput());
+                    heapNet.train(error, sample.getDesired());
+                }
+                trainer.train(error, samples);
+            }
+
+            trainer.copyTo(trained);
+            trainDelta = 0;
+            for (int layer = 0; layer < 2; layer++) {
+                var expectedWeights = heapNet.getWeights().get(layer).data;
+                var actualWeights   = trained.getWeights().get(layer).data;
+                for (int idx = 0; idx < expectedWeights.length; idx++)
+                    trainDelta = Math.max(trainDelta, Math.abs(expectedWeights[idx] - actualWeights[idx]));
+                for (int idx = 0; idx < heapNet.getBias().get(layer).size(); idx++)
+                    trainDelta = Math.max(trainDelta, Math.abs(heapNet.getBias().get(layer).get(idx)
+                            - trained.getBias().get(layer).get(idx)));
+            }
+
+            try (var predictor = trainer.freeze()) {
+                var expectedOutput = heapNet.freeze().predict(input);
+                var actualOutput   = predictor.predict(input);
+                for (int idx = 0; idx < expectedOutput.size(); idx++)
+                    trainDelta = Math.max(trainDelta, Math.abs(expectedOutput.get(idx) - actualOutput.get(idx)));
+            }
+            trainBytes = trainer.getOffHeapBytes();
+        }
+
+        System.out.println("trained with " + trainBytes + " bytes of weights and velocity off-heap, max |delta| "
+                + trainDelta);
+        if (trainDelta > 1e-12)
+            throw new AssertionError("off-heap training differs from heap training");
+
+        System.out.println();
+    }
+
+    private static NeuralNet offHeapTrainingNet() {
+        return new NeuralNetBuilder()
+                .setTransferFunction(new TanHTransfer())
+                .setOptimizer(new MomentumOptimizer(0.01, 0.9))
+                .setWeightDecay(1e-4)
+                .setSeed(7)
+                .addLayer(64)
+                .addLayer(32)
+                .addLayer(4, new SoftmaxTransfer())
+                .build();
+    }
+
+    // ====================================================================================
+    // == testConvolution =================================================================
+    // ====================================================================================
+
+    public static void testConvolution() {
+        System.out.println("testConvolution");
+
+        var error = new DiffSquareError();
+        var nn    = new NeuralNetBuilder()
+                .setRate(0.05)
+                .setTransferFunction(new TanHTransfer())
+                .setInitializer(new XavierInitializer())
+                .addInput(2, 7, 7)
+                .addConvolution(3, 3, 1, 1)
+                .addMaxPooling(2)
+                .addPooling(PoolingLayer.Mode.AVERAGE, 2, 1)
+                .addLayer(2)
+                .build();
+
+        // Backpropagation through im2col, col2im and both poolings against
+        // the central difference of the error, for every parameter.
+        var input     = new Vector(98, () -> Math.random());
+        var desired   = new Vector(2, () -> Math.random() - 0.5);
+        var workspace = new Workspace(nn.getLayers());
+        nn.forward(workspace, input);
+        nn.backPropagate(workspace, error, desired);
+        workspace.clearGradient();
+        nn.accumulateGradient(workspace);
+
+        double eps   = 1e-6;
+        double worst = 0;
+        for (int layer = 0; layer < nn.getLayers().size(); layer++) {
+            var params   = List.of(nn.getLayers().get(layer).weights.data, nn.getLayers().get(layer).bias.data);
+            var gradient = List.of(workspace.gradient.get(layer).data, workspace.biasGradient.get(layer).data);
+            for (int group = 0; group < 2; group++)
+                for (int idx = 0; idx < gradient.get(group).length; idx++) {
+                    double[] values = params.get(group);
+                    double saved    = values[idx];
+                    values[idx] = saved + eps;
+                    double above = sampleError(nn, error, input, desired);
+                    values[idx] = saved - eps;
+                    double below = sampleError(nn, error, input, desired);
+                    values[idx] = saved;
+
+                    worst = Math.max(worst, Math.abs((above - below) / (2 * eps) - gradient.get(group)[idx]));
+                }
+        }
+
+        // The batch path, the frozen predictor and its batch path agree
+        // with simulate().
+        var inputs      = new Matrix(98, 4, () -> Math.random());
+        var outputs     = nn.simulateBatch(inputs).copy();
+        var predictor   = nn.freeze();
+        var rows        = inputs.transpose();
+        var predictions = predictor.predictBatch(rows, new Matrix(4, 2), predictor.newBatchScratch(4));
+        var column      = new double[98];
+        double pathDelta = 0;
+        for (int sampleIdx = 0; sampleIdx < 4; sampleIdx++) {
+            inputs.getColumn(sampleIdx, column);
+            var simulated = nn.simulate(new Vector(column));
+            var predicted = predictor.predict(new Vector(column));
+            for (int idx = 0; idx < 2; idx++) {
+                pathDelta = Math.max(pathDelta, Math.abs(simulated.get(idx) - outputs.get(idx, sampleIdx)));
+                pathDelta = Math.max(pathDelta, Math.abs(simulated.get(idx) - predicted.get(idx)));
+                pathDelta = Math.max(pathDelta, Math.abs(simulated.get(idx) - predictions.get(sampleIdx, idx)));
+            }
+        }
+
+        System.out.println("max gradient error " + worst + ", max |delta| between paths " + pathDelta);
+        if (worst > 1e-6 || pathDelta > 1e-12)
+            throw new AssertionError("convolution gradient or execution paths disagree");
+
+        // Tell vertical from horizontal bars at random positions in 8x8 images.
+        var samples = new ArrayList<Sample>();
+        for (int sampleIdx = 0; sampleIdx < 64; sampleIdx++) {
+            boolean vertical = sampleIdx % 2 == 0;
+            int position     = (sampleIdx / 2) % 8;
+            var image        = new Vector(64);
+            for (int idx = 0; idx < 8; idx++)
+                image.set(vertical ? idx * 8 + position : position * 8 + idx, 1.0);
+            samples.add(new Sample(image, new Vector(new double[] {vertical ? 0.5 : -0.5})));
+        }
+
+        var bars = new NeuralNetBuilder()
+                .setRate(0.05)
+                .setTransferFunction(new TanHTransfer())
+                .setInitializer(new XavierInitializer())
+                .setSeed(1)
+                .addInput(1, 8, 8)
+                .addConvolution(4, 3, 1, 1)
+                .addMaxPooling(2)
+                .addLayer(1)
+                .build();
+        new Trainer(bars, error).setEpochs(60).setSeed(3).train(samples);
+
+        int correct = 0;
+        for (var sample : samples)
+            if (bars.simulate(sample.getInput()).get(0) * sample.getDesired().get(0) > 0)
+                correct++;
+
+        var conv = bars.getLayers().get(0);
+        System.out.println(correct + "/" + samples.size() + " bars classified; convolution has "
+                + conv.getParameterCount() + " parameters, a dense layer of the same outputs "
+                + (conv.getInputSize() + 1) * conv.getOutputSize());
+        if (correct < samples.size() * 0.95)
+            throw new AssertionError("convolutional network didn't learn the bars");
+
+        System.out.println();
+    }
+
+    private static double sampleError(NeuralNet nn, IErrorFunction error, Vector input, Vector desired) {
+        var actual = nn.simulate(input);
+        double sum = 0;
+        for (int idx = 0; idx < actual.size(); idx++)
+            sum += error.findError(desired.get(idx), actual.get(idx));
+        return sum;
+    }
+
+    // ====================================================================================
+    // == testInitializers ================================================================
+    // ====================================================================================
+
+    public static void testInitializers() {
+        System.out.println("testInitializers");
+
+        // The 300 x 700 layer spans several chunks, which are filled in parallel.
+        var first  = initializedNet(42, new XavierInitializer(), 300, 700, 10);
+        var second = initializedNet(42, new XavierInitializer(), 300, 700, 10);
+        var other  = initializedNet(43, new XavierInitializer(), 300, 700, 10);
+        boolean identical = true;
+        boolean differs   = false;
+        for (int layer = 0; layer < first.getLayers().size(); layer++) {
+            var weights = first.getLayers().get(layer).weights.data;
+            identical &= Arrays.equals(weights, second.getLayers().get(layer).weights.data);
+            differs   |= !Arrays.equals(weights, other.getLayers().get(layer).weights.data);
+        }
+
+        // Sample variance of a 600 x 400 layer against the scheme's target.
+        var schemes = new LinkedHashMap<IWeightInitializer, Double>();
+        schemes.put(new XavierInitializer(), 2.0 / (400 + 600));
+        schemes.put(new HeInitializer(), 2.0 / 400);
+        schemes.put(new LeCunInitializer(), 1.0 / 400);
+        double worstRatio = 0;
+        for (var scheme : schemes.entrySet()) {
+            var weights = initializedNet(7, scheme.getKey(), 400, 600).getLayers().get(0).weights.data;
+            double sum     = 0;
+            double squares = 0;
+            for (double weight : weights) {
+                sum     += weight;
+                squares += weight * weight;
+            }
+            double mean     = sum / weights.length;
+            double variance = squares / weights.length - mean * mean;
+            worstRatio = Math.max(worstRatio, Math.abs(variance / scheme.getValue() - 1));
+        }
+
+        System.out.println("seeded builds identical: " + identical + ", other seed differs: " + differs
+                + ", max variance error " + worstRatio);
+        if (!identical || !differs || worstRatio > 0.05)
+            throw new AssertionError("initializers are not reproducible or have the wrong scale");
+
+        // A 6 x 32 tanh network saturates from [0, 1) weights but trains
+        // from Xavier's.
+        var samples = new ArrayList<Sample>();
+        var random  = new SplittableRandom(1);
+        for (int sampleIdx = 0; sampleIdx < 64; sampleIdx++) {
+            var input  = new Vector(8);
+            double sum = 0;
+            for (int idx = 0; idx < 8; idx++) {
+                input.set(idx, random.nextDouble(-1, 1));
+                sum += idx % 2 == 0 ? input.get(idx) : -input.get(idx);
+            }
+            samples.add(new Sample(input, new Vector(new double[] {0.8 * Math.tanh(sum)})));
+        }
+
+        var epochs = new LinkedHashMap<String, Integer>();
+        for (var scheme : List.of(new UniformInitializer(), new XavierInitializer())) {
+            var nn     = initializedNet(1, scheme, 8, 32, 32, 32, 32, 32, 32, 1);
+            var result = new Trainer(nn, new DiffSquareError())
+                    .setEpochs(500)
+                    .setSeed(1)
+                    .setValidationSet(samples)
+                    .setTargetLoss(0.002)
+                    .train(samples);
+            epochs.put(scheme.getClass().getSimpleName(), result.isTargetReached() ? result.getEpochs() : -1);
+        }
+
+        System.out.println("epochs to loss 0.002 (-1: not within 500) " + epochs);
+        if (epochs.get("XavierInitializer") < 0)
+            throw new AssertionError("Xavier initialized network did not converge");
+
+        System.out.println();
+    }
+
+    private static NeuralNet initializedNet(long seed, IWeightInitializer initializer, int... layerSizes) {
+        var builder = new NeuralNetBuilder()
+                .setRate(0.01)
+                .setTransferFunction(new TanHTransfer())
+                .setInitializer(initializer)
+                .setSeed(seed);
+        for (int size : layerSizes)
+            builder.addLayer(size);
+        return builder.build();
+    }
+
+    // ====================================================================================
+    // == testCachingPredictor ============================================================
+    // ====================================================================================
+
+    public static void testCachingPredictor() {
+        System.out.println("testCachingPredictor");
+
+        var nn     = initializedNet(5, new XavierInitializer(), 4, 16, 3);
+        var cached = new CachingPredictor(nn, 8);
+        var inputs = new ArrayList<Vector>();
+        for (int inputIdx = 0; inputIdx < 9; inputIdx++)
+            inputs.add(new Vector(new double[] {inputIdx, 0.5, -0.25 * inputIdx, 1.0}));
+
+        // Hits return what the network computes; a copy of an input hits too.
+        var frozen   = nn.freeze();
+        boolean same = true;
+        for (int round = 0; round < 3; round++)
+            for (int inputIdx = 0; inputIdx < 8; inputIdx++) {
+                var input = round == 2 ? inputs.get(inputIdx).copy() : inputs.get(inputIdx);
+                same &= Arrays.equals(cached.predict(input).toArray(), frozen.predict(input).toArray());
+            }
+        System.out.println("hits " + cached.getHits() + ", misses " + cached.getMisses() + ", results match " + same);
+        if (!same || cached.getHits() != 16 || cached.getMisses() != 8)
+            throw new AssertionError("cache returned wrong results or missed repeated inputs");
+
+        // Touch input 0, then overflow the capacity: input 1 is the least
+        // recently used and goes.
+        cached.predict(inputs.get(0));
+        cached.predict(inputs.get(8));
+        long misses = cached.getMisses();
+        cached.predict(inputs.get(0));
+        boolean keptRecent = cached.getMisses() == misses;
+        cached.predict(inputs.get(1));
+        boolean evictedOld = cached.getMisses() == misses + 1;
+        System.out.println("evictions " + cached.getEvictions() + ", size " + cached.size()
+                + ", kept recent " + keptRecent + ", evicted oldest " + evictedOld);
+        if (!keptRecent || !evictedOld || cached.size() != 8)
+            throw new AssertionError("cache did not evict the least recently used input");
+
+        // Sparse inputs are keyed by their nonzeros.
+        var sparse = new SparseVector(4, new int[] {1, 3}, new double[] {0.5, 1.0});
+        cached.predict(sparse);
+        long hits = cached.getHits();
+        var again = cached.predict(new SparseVector(4, new int[] {1, 3}, new double[] {0.5, 1.0}));
+        boolean sparseHit = cached.getHits() == hits + 1
+                && Arrays.equals(again.toArray(), frozen.predict(sparse).toArray());
+
+        // Training invalidates the cache, and the next answer is the new one.
+        var input = inputs.get(0);
+        nn.simulate(input);
+        nn.train(new DiffSquareError(), new Vector(new double[] {1, 0, 0}));
+        var retrained = cached.predict(input);
+        boolean fresh = cached.getInvalidations() == 1 && cached.size() == 1
+                && Arrays.equals(retrained.toArray(), nn.freeze().predict(input).toArray())
+                && !Arrays.equals(retrained.toArray(), frozen.predict(input).toArray());
+        System.out.println("sparse hit " + sparseHit + ", invalidations " + cached.getInvalidations()
+                + ", fresh after train " + fresh + ", hit rate " + cached.getHitRate());
+        if (!sparseHit || !fresh)
+            throw new AssertionError("cache served a stale prediction");
+
+        System.out.println();
+    }
+
+    // ====================================================================================
+    // == testPipelinedPredictor ==========================================================
+    // ====================================================================================
+
+    public static void testPipelinedPredictor() throws InterruptedException {
+        System.out.println("testPipelinedPredictor");
+
+        // Layers of very different cost: each 64 x 64 layer costs more than
+        // all layers after them together, so each gets a stage of its own.
+        var nn = initializedNet(9, new XavierInitializer(), 16, 64, 64, 64, 8, 8, 8, 8, 8, 8, 8, 64, 4);
+        int[] boundaries = PipelinedPredictor.partition(nn.getLayers(), 4);
+        System.out.println("stage boundaries " + Arrays.toString(boundaries));
+        if (!Arrays.equals(boundaries, new int[] {0, 1, 2, 3, 12}))
+            throw new AssertionError("layers were not split into stages of equal cost");
+
+        // 100 samples in micro-batches of 16 leaves a short last one.
+        var inputs = new Matrix(100, 16);
+        var random = new SplittableRandom(2);
+        for (int idx = 0; idx < inputs.data.length; idx++)
+            inputs.data[idx] = random.nextDouble(-1, 1);
+
+        var frozen   = nn.freeze();
+        var expected = frozen.predictBatch(inputs, new Matrix(100, 4), frozen.newBatchScratch(100));
+        boolean same = true;
+        try (var pipeline = nn.freezePipelined(4, 16)) {
+            for (int round = 0; round < 20; round++)
+                same &= Arrays.equals(pipeline.predictBatch(inputs).data, expected.data);
+        }
+
+        System.out.println("pipelined results match predictBatch over 20 batches: " + same);
+        if (!same)
+            throw new AssertionError("pipelined predictions differ from predictBatch");
+
+        // Once warmed up, a steady stream of batches allocates nothing on
+        // the calling thread or the stage threads.
+        var thread = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long allocated;
+        try (var pipeline = nn.freezePipelined(4, 16)) {
+            var result = new Matrix(100, 4);
+            long[] ids = pipeline.getThreadIds();
+            for (int round = 0; round < 2000; round++)
+                pipeline.predictBatch(inputs, result);
+
+            long before = thread.getCurrentThreadAllocatedBytes();
+            for (long id : ids)
+                before += thread.getThreadAllocatedBytes(id);
+            for (int round = 0; round < 1000; round++)
+                pipeline.predictBatch(inputs, result);
+            allocated = thread.getCurrentThreadAllocatedBytes();
+            for (long id : ids)
+                allocated += thread.getThreadAllocatedBytes(id);
+            allocated -= before;
+        }
+
+        System.out.println("bytes allocated over 1000 pipelined batches: " + allocated);
+        if (allocated > 0)
+            throw new AssertionError("pipelined batches allocated " + allocated + " bytes");
+
+        // close() while a caller streams large batches must fail its call
+        // rather than leave it waiting for stages that have stopped.
+        var large    = new Matrix(20_000, 16);
+        var error    = new AtomicReference<RuntimeException>();
+        var pipeline = nn.freezePipelined(4, 8);
+        var caller   = new Thread(() -> {
+            try {
+                var result = new Matrix(large.getRows(), 4);
+                while (true)
+                    pipeline.predictBatch(large, result);
+            } catch (RuntimeException e) {
+                error.set(e);
+            }
+        });
+        caller.start();
+        Thread.sleep(200);
+        pipeline.close();
+        caller.join(5000);
+
+        System.out.println("caller failed after close: " + error.get());
+        if (caller.isAlive() || !(error.get() instanceof IllegalStateException))
+            throw new AssertionError("predictBatch did not fail after close");
+
+        System.out.println();
+    }
+
+    // ====================================================================================
+    // == testRegularization ==============================================================
+    // ====================================================================================
+
+    public static void testRegularization() {
+        System.out.println("testRegularization");
+
+        var error = new DiffSquareError();
+        var nn    = new NeuralNetBuilder()
+                .setRate(0.05)
+                .setTransferFunction(new TanHTransfer())
+                .setInitializer(new XavierInitializer())
+                .setSeed(11)
+                .addLayer(6)
+                .addLayer(40)
+                .addDropout(0.5)
+                .addLayer(40)
+                .addDropout(0.25)
+                .addLayer(3)
+                .build();
+
+        // Backpropagation through a fixed pair of masks against the central
+        // difference of the error with the same masks.
+        var sample    = new Sample(new Vector(6, () -> Math.random()), new Vector(3, () -> Math.random() - 0.5));
+        var workspace = nn.newWorkspace(1);
+        long masks    = workspace.random;
+        nn.forward(workspace, sample);
+        nn.backPropagate(workspace, error, sample.getDesired());
+        workspace.clearGradient();
+        nn.accumulateGradient(workspace);
+
+        var probe = nn.newWorkspace(2);
+        ToDoubleFunction<Sample> maskedError = (probed) -> {
+            probe.random = masks;
+            var actual   = nn.forward(probe, probed);
+            double sum   = 0;
+            for (int idx = 0; idx < actual.size(); idx++)
+                sum += error.findError(probed.getDesired().get(idx), actual.get(idx));
+            return sum;
+        };
+
+        double eps   = 1e-6;
+        double worst = 0;
+        for (int layer = 0; layer < nn.getLayers().size(); layer++) {
+            double[] weights  = nn.getLayers().get(layer).weights.data;
+            double[] gradient = workspace.gradient.get(layer).data;
+            for (int idx = 0; idx < weights.length; idx++) {
+                double saved = weights[idx];
+                weights[idx] = saved + eps;
+                double above = maskedError.applyAsDouble(sample);
+                weights[idx] = saved - eps;
+                double below = maskedError.applyAsDouble(sample);
+                weights[idx] = saved;
+
+                worst = Math.max(worst, Math.abs((above - below) / (2 * eps) - gradient[idx]));
+            }
+        }
+
+        // About half of the first hidden layer is dropped in training,
+        // nothing at inference.
+        int dropped = 0;
+        for (int round = 0; round < 100; round++) {
+            nn.forward(workspace, sample);
+            for (double activation : workspace.layerOutputs.get(1).data)
+                dropped += activation == 0.0 ? 1 : 0;
+        }
+        double droppedShare = dropped / 4000.0;
+        var inference       = nn.simulate(sample.getInput()).copy();
+        boolean repeatable  = Arrays.equals(inference.toArray(), nn.simulate(sample.getInput()).toArray())
+                && Arrays.equals(inference.toArray(), nn.freeze().predict(sample.getInput()).toArray());
+
+        System.out.println("max gradient error with dropout " + worst + ", dropped " + droppedShare
+                + " at rate 0.5, inference deterministic " + repeatable);
+        if (worst > 1e-6 || Math.abs(droppedShare - 0.5) > 0.03 || !repeatable)
+            throw new AssertionError("dropout is wrong in training or leaks into inference");
+
+        // A zero gradient leaves only the decay: the weights shrink, the
+        // biases stay. For SGD the factor is 1 - rate * decay exactly.
+        var optimizers = List.of(new SGDOptimizer(0.1), new MomentumOptimizer(0.1), new NesterovOptimizer(0.1),
+                new RMSPropOptimizer(0.1), new AdamOptimizer(0.1));
+        boolean decays = true;
+        for (var optimizer : optimizers) {
+            optimizer.allocate(new int[] {4, 4});
+            optimizer.setWeightDecay(0.01);
+            double[] weights = {1, -2, 3, -4};
+            double[] bias    = {1, -2, 3, -4};
+            optimizer.beginStep();
+            optimizer.update(NeuralNet.weightSlot(0), weights, new double[4], 1.0, 0, 4);
+            optimizer.update(NeuralNet.biasSlot(0), bias, new double[4], 1.0, 0, 4);
+            decays &= Math.abs(weights[2]) < 3 && Arrays.equals(bias, new double[] {1, -2, 3, -4});
+            if (optimizer instanceof SGDOptimizer)
+                decays &= weights[2] == 3 * (1 - 0.1 * 0.01);
+        }
+
+        // Dropout and decay together still train without allocating, and a
+        // checkpoint restores the dropout stream: training on from it
+        // repeats the same steps.
+        nn.getOptimizer().setWeightDecay(1e-4);
+        var samples = new ArrayList<Sample>();
+        for (int sampleIdx = 0; sampleIdx < 8; sampleIdx++)
+            samples.add(new Sample(new Vector(6, () -> Math.random()), new Vector(3, () -> Math.random() - 0.5)));
+        var output = new Vector(3);
+        var thread = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        for (int step = 0; step < 20_000; step++) {
+            nn.simulate(samples.get(step % 8), output);
+            nn.train(error, samples.get(step % 8).getDesired());
+            nn.trainBatch(error, samples);
+        }
+
+        var checkpoint = new Checkpoint();
+        checkpoint.capture(nn);
+        long before = thread.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for (int step = 0; step < 1000; step++) {
+            nn.simulate(samples.get(step % 8), output);
+            nn.train(error, samples.get(step % 8).getDesired());
+            nn.trainBatch(error, samples);
+        }
+        long allocated = thread.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+        var trained    = nn.getLayers().get(1).weights.copy();
+
+        checkpoint.restore(nn);
+        for (int step = 0; step < 1000; step++) {
+            nn.simulate(samples.get(step % 8), output);
+            nn.train(error, samples.get(step % 8).getDesired());
+            nn.trainBatch(error, samples);
+        }
+        boolean resumed = Arrays.equals(trained.data, nn.getLayers().get(1).weights.data);
+
+        System.out.println("decay shrinks weights only " + decays + ", bytes allocated over 1000 steps "
+                + allocated + ", resumed run identical " + resumed);
+        if (!decays || allocated > 0 || !resumed)
+            throw new AssertionError("weight decay, allocation or dropout resume is wrong");
+
+        System.out.println();
+    }
+
+    // ====================================================================================
+    // == testCheckpoint ==================================================================
+    // ====================================================================================
+
+    public static void testCheckpoint() throws IOException {
+
+        // An uninterrupted run, the same run writing checkpoints, and a run
+        // resumed from the last of those checkpoints must end up with the
+        // same weights.
+
+        System.out.println("testCheckpoint");
+
+        ArrayList<Sample> samples = new ArrayList<>();
+        for (int idx = 0; idx < 64; idx++) {
+            double x = Math.random() * 2 - 1;
+            samples.add(new Sample(new Double[] {x}, new Double[] {x * x}));
+        }
+
+        var nets = new ArrayList<NeuralNet>();
+        for (int idx = 0; idx < 3; idx++)
+            nets.add(new NeuralNetBuilder()
+                    .setTransferFunction(new TanHTransfer())
+                    .setOptimizer(new AdamOptimizer(0.01))
+                    .addLayer(1)
+                    .addLayer(8)
+                    .addLayer(1)
+                    .build());
+        for (int layer = 0; layer < 2; layer++)
+            for (int idx = 1; idx < 3; idx++) {
+                var weightData = nets.get(0).getWeights().get(layer).data;
+                System.arraycopy(weightData, 0, nets.get(idx).getWeights().get(layer).data, 0, weightData.length);
+                var biasData = nets.get(0).getBias().get(layer).data;
+                System.arraycopy(biasData, 0, nets.get(idx).getBias().get(layer).data, 0, biasData.length);
+            }
+
+        var uninterrupted = nets.get(0);
+        var checkpointed  = nets.get(1);
+        var resumed       = nets.get(2);
+
+        new Trainer(uninterrupted, new DiffSquareError()).setEpochs(6).setBatchSize(4).setSeed(11).train(samples);
+
+        Path path = Files.createTempFile("training", ".ckpt");
+        try (var checkpointer = new Checkpointer(path)) {
+            // Epochs here are much shorter than a forced write, so let each
+            // write finish at the end of an epoch; otherwise every later
+            // checkpoint would be skipped.
+            checkpointed.setListener(new INetworkListener() {
+                @Override
+                public void onEpoch(int epoch, double trainingLoss, double validationLoss, double rate) {
+                    try {
+                        checkpointer.flush();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            });
+
+            new Trainer(checkpointed, new DiffSquareError())
+                    .setEpochs(6)
+                    .setBatchSize(4)
+                    .setSeed(11)
+                    .setCheckpointing(checkpointer, 10)
+                    .train(samples);
+            checkpointer.flush();
+
+            var checkpoint = Checkpoint.load(path);
+            System.out.println("checkpoints written " + checkpointer.getWritten() + ", skipped "
+                    + checkpointer.getSkipped() + ", last at epoch " + checkpoint.getEpoch() + " sample "
+                    + checkpoint.getNextSample() + ", step " + checkpoint.getStepCount());
+
+            new Trainer(resumed, new DiffSquareError())
+                    .setEpochs(6)
+                    .setBatchSize(4)
+                    .resume(checkpoint)
+                    .train(samples);
+        } finally {
+            Files.deleteIfExists(path);
+        }
+
+        double checkpointedDelta = 0, resumedDelta = 0;
+        for (int layer = 0; layer < 2; layer++) {
+            var expected = uninterrupted.getWeights().get(layer).data;
+            for (int idx = 0; idx < expected.length; idx++) {
+                checkpointedDelta = Math.max(checkpointedDelta,
+                        Math.abs(expected[idx] - checkpointed.getWeights().get(layer).data[idx]));
+                resumedDelta = Math.max(resumedDelta, Math.abs(expected[idx] - resumed.getWeights().get(layer).data[idx]));
+            }
+        }
+
+        System.out.println("max |weight delta| checkpointed " + checkpointedDelta + ", resumed " + resumedDelta);
+        if (checkpointedDelta != 0 || resumedDelta != 0)
+            throw new AssertionError("resumed training diverged from the uninterrupted run");
+
+        System.out.println();
+    }
+
+    // ====================================================================================
+    // == testAllocationFree ==============================================================
+    // ====================================================================================
+
+    public static void testAllocationFree() {
+        System.out.println("testAllocationFree");
+
+        NeuralNetBuilder builder = new NeuralNetBuilder();
+        builder
+                .setRate(0.01)
+                .setTransferFunction(new TanHTransfer())
+                .addLayer(64)
+                .addLayer(128)
+                .addLayer(128)
+                .addLayer(8);
+
+        NeuralNet nn = builder.build();
+        Sample sample = new Sample(new Vector(64, () -> Math.random()), new Vector(8, () -> Math.random()));
+        ArrayList<Sample> samples = new ArrayList<>();
+        samples.add(sample);
+
+        var error  = new DiffSquareError();
+        var output = new Vector(8);
+        var thread = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        // Warm up so the JIT has compiled the training loop.
+        train(error, 20_000, nn, samples, output);
+
+        long before = thread.getThreadAllocatedBytes(threadId);
+        train(error, 10_000, nn, samples, output);
+        long allocated = thread.getThreadAllocatedBytes(threadId) - before;
+
+        System.out.println("bytes allocated over 10000 steps: " + allocated);
+        if (allocated > 0)
+            throw new AssertionError("training step allocated " + allocated + " bytes");
+
+        // Mini-batches of 16 over 200 samples end every epoch with a short
+        // batch of 8, which must run in the same buffers.
+        var batches = new ArrayList<List<Sample>>();
+        for (int start = 0; start < 200; start += 16)
+            batches.add(Collections.nCopies(Math.min(16, 200 - start), sample));
+
+        for (int epoch = 0; epoch < 200; epoch++)
+            for (int batchIdx = 0; batchIdx < batches.size(); batchIdx++)
+                nn.trainBatch(error, batches.get(batchIdx));
+
+        before = thread.getThreadAllocatedBytes(threadId);
+        for (int epoch = 0; epoch < 100; epoch++)
+            for (int batchIdx = 0; batchIdx < batches.size(); batchIdx++)
+                nn.trainBatch(error, batches.get(batchIdx));
+        allocated = thread.getThreadAllocatedBytes(threadId) - before;
+
+        System.out.println("bytes allocated over 100 epochs of mini-batches: " + allocated);
+        if (allocated > 0)
+            throw new AssertionError("mini-batch epochs allocated " + allocated + " bytes");
+
+        // simulate(Vector) returns a copy, which the next call leaves alone.
+        var first    = nn.simulate(sample.getInput());
+        double[] was = first.toArray();
+        nn.simulate(new Vector(64, () -> Math.random()));
+        System.out.println("simulate output kept across calls: " + Arrays.equals(was, first.toArray()));
+        if (!Arrays.equals(was, first.toArray()))
+            throw new AssertionError("simulate(Vector) returned a vector the next call overwrote");
+
+        System.out.println();
+    }
+
 }
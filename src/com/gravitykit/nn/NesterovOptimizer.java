@@ -0,0 +1,75 @@
+package com.gravitykit.nn;
+
+import java.util.List;
+
+/**
+ * SGD with Nesterov momentum, which steps along the gradient plus the
+ * updated velocity, looking one step ahead:
+ *
+ *     v = momentum * v + g
+ *     p -= rate * (g + momentum * v)
+ *
+ * With weight decay, g includes weightDecay * p for the weights.
+ */
+
+public class NesterovOptimizer implements IOptimizer {
+
+    private double rate;
+    private final double momentum;
+    private double[][] velocity;
+    private double weightDecay = 0.0;
+
+    public NesterovOptimizer(double rate, double momentum) {
+        this.rate     = rate;
+        this.momentum = momentum;
+    }
+
+    public NesterovOptimizer(double rate) {
+        this(rate, 0.9);
+    }
+
+    @Override
+    public double getRate() {
+        return rate;
+    }
+
+    @Override
+    public void setRate(double rate) {
+        this.rate = rate;
+    }
+
+    @Override
+    public double getWeightDecay() {
+        return weightDecay;
+    }
+
+    @Override
+    public void setWeightDecay(double weightDecay) {
+        if (weightDecay < 0)
+            throw new IllegalArgumentException("Weight decay must not be negative");
+        this.weightDecay = weightDecay;
+    }
+
+    @Override
+    public void allocate(int[] slotSizes) {
+        velocity = new double[slotSizes.length][];
+        for (int slot = 0; slot < slotSizes.length; slot++)
+            velocity[slot] = new double[slotSizes[slot]];
+    }
+
+    @Override
+    public List<double[]> getState() {
+        return List.of(velocity);
+    }
+
+    @Override
+    public void update(int slot, double[] parameters, double[] gradient, double scale, int offset, int length) {
+        double[] v   = velocity[slot];
+        double decay = NeuralNet.isWeightSlot(slot) ? weightDecay : 0.0;
+        for (int idx = offset; idx < offset + length; idx++) {
+            double g = scale * gradient[idx] + decay * parameters[idx];
+            v[idx] = momentum * v[idx] + g;
+            parameters[idx] -= rate * (g + momentum * v[idx]);
+        }
+    }
+}
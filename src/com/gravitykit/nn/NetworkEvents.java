@@ -0,0 +1,79 @@
+package com.gravitykit.nn;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * JFR events published by NetworkMetrics. They are disabled unless a
+ * recording enables them, e.g.
+ *
+ *     java -XX:StartFlightRecording:filename=nn.jfr,settings=profile ...
+ *
+ * and can be viewed with `jfr print --categories GravityKit nn.jfr`.
+ */
+
+final class NetworkEvents {
+
+    private NetworkEvents() {}
+
+    @Name("com.gravitykit.nn.LayerTiming")
+    @Label("Layer Timing")
+    @Description("Time spent in one layer's forward or backward pass")
+    @Category({"GravityKit", "Neural Network"})
+    @StackTrace(false)
+    static final class LayerTiming extends Event {
+        @Label("Layer")
+        int layer;
+
+        @Label("Backward")
+        boolean backward;
+
+        @Label("Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long nanos;
+    }
+
+    @Name("com.gravitykit.nn.TrainingStep")
+    @Label("Training Step")
+    @Description("One train or trainBatch call")
+    @Category({"GravityKit", "Neural Network"})
+    @StackTrace(false)
+    static final class TrainingStep extends Event {
+        @Label("Samples")
+        int samples;
+
+        @Label("Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long nanos;
+
+        @Label("Allocated")
+        @DataAmount
+        long allocatedBytes;
+    }
+
+    @Name("com.gravitykit.nn.Epoch")
+    @Label("Epoch")
+    @Description("One Trainer epoch")
+    @Category({"GravityKit", "Neural Network"})
+    @StackTrace(false)
+    static final class Epoch extends Event {
+        @Label("Epoch")
+        int epoch;
+
+        @Label("Training Loss")
+        double trainingLoss;
+
+        @Label("Validation Loss")
+        double validationLoss;
+
+        @Label("Learning Rate")
+        double rate;
+    }
+
+}
@@ -0,0 +1,271 @@
+package com.gravitykit.nn;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * NetworkMetrics is an INetworkListener that aggregates the callbacks
+ * into counters and histograms: per-layer forward and backward times,
+ * samples/sec, the latest gradient norm of every layer, bytes allocated
+ * per step and the loss of every epoch. Each callback is also published
+ * as a JFR event while a recording has the events enabled.
+ *
+ *     var metrics = NetworkMetrics.attach(nn);
+ *     metrics.register("xor");   // com.gravitykit.nn:type=NetworkMetrics,name=xor
+ *
+ * All counters are lock-free, so one instance can serve many threads.
+ */
+
+public class NetworkMetrics implements INetworkListener, NetworkMetricsMBean {
+
+    private final Histogram[] forward;
+    private final Histogram[] backward;
+    private final AtomicLongArray gradientNorms;
+    private final Histogram stepNanos = new Histogram();
+    private final Histogram stepBytes = new Histogram();
+    private final LongAdder samples   = new LongAdder();
+
+    private final ArrayList<double[]> epochLoss = new ArrayList<>();
+
+    private volatile long startNanos = System.nanoTime();
+    private ObjectName objectName    = null;
+
+    public NetworkMetrics(int layerCount) {
+        this.forward       = new Histogram[layerCount];
+        this.backward      = new Histogram[layerCount];
+        this.gradientNorms = new AtomicLongArray(layerCount);
+        for (int layer = 0; layer < layerCount; layer++) {
+            forward[layer]  = new Histogram();
+            backward[layer] = new Histogram();
+        }
+    }
+
+    /**
+     * Creates metrics sized for the network and installs them as its listener.
+     */
+    public static NetworkMetrics attach(NeuralNet nn) {
+        var metrics = new NetworkMetrics(nn.getWeights().size());
+        nn.setListener(metrics);
+        return metrics;
+    }
+
+    /**
+     * Registers this instance with the platform MBean server under
+     * com.gravitykit.nn:type=NetworkMetrics,name=<name>.
+     */
+    public synchronized void register(String name) throws JMException {
+        unregister();
+        var objectName = new ObjectName("com.gravitykit.nn:type=NetworkMetrics,name=" + name);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        this.objectName = objectName;
+    }
+
+    public synchronized void unregister() throws JMException {
+        if (objectName != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            objectName = null;
+        }
+    }
+
+    // ====================================================================================
+    // == INetworkListener ================================================================
+    // ====================================================================================
+
+    @Override
+    public void onForward(int layer, long nanos) {
+        forward[layer].record(nanos);
+
+        var event = new NetworkEvents.LayerTiming();
+        if (event.isEnabled()) {
+            event.layer    = layer;
+            event.backward = false;
+            event.nanos    = nanos;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void onBackward(int layer, long nanos) {
+        backward[layer].record(nanos);
+
+        var event = new NetworkEvents.LayerTiming();
+        if (event.isEnabled()) {
+            event.layer    = layer;
+            event.backward = true;
+            event.nanos    = nanos;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void onGradient(int layer, double norm) {
+        gradientNorms.set(layer, Double.doubleToRawLongBits(norm));
+    }
+
+    @Override
+    public void onStep(int samples, long nanos, long allocatedBytes) {
+        this.samples.add(samples);
+        stepNanos.record(nanos);
+        stepBytes.record(allocatedBytes);
+
+        var event = new NetworkEvents.TrainingStep();
+        if (event.isEnabled()) {
+            event.samples        = samples;
+            event.nanos          = nanos;
+            event.allocatedBytes = allocatedBytes;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void onEpoch(int epoch, double trainingLoss, double validationLoss, double rate) {
+        synchronized (epochLoss) {
+            epochLoss.add(new double[] {trainingLoss, validationLoss});
+        }
+
+        var event = new NetworkEvents.Epoch();
+        if (event.isEnabled()) {
+            event.epoch          = epoch;
+            event.trainingLoss   = trainingLoss;
+            event.validationLoss = validationLoss;
+            event.rate           = rate;
+            event.commit();
+        }
+    }
+
+    // ====================================================================================
+    // == NetworkMetricsMBean =============================================================
+    // ====================================================================================
+
+    @Override
+    public int getLayerCount() {
+        return forward.length;
+    }
+
+    /**
+     * Samples trained on since creation or the last reset().
+     */
+    @Override
+    public long getSamples() {
+        return samples.sum();
+    }
+
+    /**
+     * Samples trained on per second of wall-clock time since creation or
+     * the last reset().
+     */
+    @Override
+    public double getSamplesPerSecond() {
+        return samples.sum() / ((System.nanoTime() - startNanos) / 1e9);
+    }
+
+    @Override
+    public long getSteps() {
+        return stepNanos.getCount();
+    }
+
+    @Override
+    public double getMeanStepNanos() {
+        return stepNanos.getMean();
+    }
+
+    @Override
+    public double getMeanBytesPerStep() {
+        return stepBytes.getMean();
+    }
+
+    public Histogram getForward(int layer) {
+        return forward[layer];
+    }
+
+    public Histogram getBackward(int layer) {
+        return backward[layer];
+    }
+
+    @Override
+    public double[] getForwardMeanNanos() {
+        double[] means = new double[forward.length];
+        for (int layer = 0; layer < forward.length; layer++)
+            means[layer] = forward[layer].getMean();
+        return means;
+    }
+
+    @Override
+    public long[] getForwardP99Nanos() {
+        long[] percentiles = new long[forward.length];
+        for (int layer = 0; layer < forward.length; layer++)
+            percentiles[layer] = forward[layer].getPercentile(0.99);
+        return percentiles;
+    }
+
+    @Override
+    public double[] getBackwardMeanNanos() {
+        double[] means = new double[backward.length];
+        for (int layer = 0; layer < backward.length; layer++)
+            means[layer] = backward[layer].getMean();
+        return means;
+    }
+
+    @Override
+    public long[] getBackwardP99Nanos() {
+        long[] percentiles = new long[backward.length];
+        for (int layer = 0; layer < backward.length; layer++)
+            percentiles[layer] = backward[layer].getPercentile(0.99);
+        return percentiles;
+    }
+
+    @Override
+    public double[] getGradientNorms() {
+        double[] norms = new double[gradientNorms.length()];
+        for (int layer = 0; layer < norms.length; layer++)
+            norms[layer] = Double.longBitsToDouble(gradientNorms.get(layer));
+        return norms;
+    }
+
+    @Override
+    public int getEpochs() {
+        synchronized (epochLoss) {
+            return epochLoss.size();
+        }
+    }
+
+    @Override
+    public double[] getTrainingLoss() {
+        return epochHistory(0);
+    }
+
+    @Override
+    public double[] getValidationLoss() {
+        return epochHistory(1);
+    }
+
+    private double[] epochHistory(int column) {
+        synchronized (epochLoss) {
+            double[] history = new double[epochLoss.size()];
+            for (int epoch = 0; epoch < history.length; epoch++)
+                history[epoch] = epochLoss.get(epoch)[column];
+            return history;
+        }
+    }
+
+    @Override
+    public void reset() {
+        for (int layer = 0; layer < forward.length; layer++) {
+            forward[layer].reset();
+            backward[layer].reset();
+            gradientNorms.set(layer, 0);
+        }
+        stepNanos.reset();
+        stepBytes.reset();
+        samples.reset();
+        synchronized (epochLoss) {
+            epochLoss.clear();
+        }
+        startNanos = System.nanoTime();
+    }
+
+}
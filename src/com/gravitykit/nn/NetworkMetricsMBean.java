@@ -0,0 +1,32 @@
+package com.gravitykit.nn;
+
+/**
+ * JMX view of a NetworkMetrics. Times are in nanoseconds; arrays have
+ * one entry per weight layer, or per epoch for the loss histories.
+ */
+
+public interface NetworkMetricsMBean {
+
+    public int getLayerCount();
+
+    public long getSamples();
+    public double getSamplesPerSecond();
+
+    public long getSteps();
+    public double getMeanStepNanos();
+    public double getMeanBytesPerStep();
+
+    public double[] getForwardMeanNanos();
+    public long[] getForwardP99Nanos();
+    public double[] getBackwardMeanNanos();
+    public long[] getBackwardP99Nanos();
+
+    public double[] getGradientNorms();
+
+    public int getEpochs();
+    public double[] getTrainingLoss();
+    public double[] getValidationLoss();
+
+    public void reset();
+
+}
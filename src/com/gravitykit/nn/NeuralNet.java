@@ -1,125 +1,847 @@
 package com.gravitykit.nn;
 
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Stack;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class NeuralNet {
 
-    private ArrayList<Matrix> weights      = new ArrayList<>();
-    private ArrayList<Vector> layerInputs  = new ArrayList<>();
-    private ArrayList<Vector> layerOutputs = new ArrayList<>();
-    private ArrayList<Vector> layerBias    = new ArrayList<>();
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // The layers in order, each with its weights, bias and transfer function.
+    private final ArrayList<Layer> layers = new ArrayList<>();
+    private final List<Layer> layersView  = Collections.unmodifiableList(layers);
+
+    // Per-layer workspace. The buffers are allocated once by
+    // allocateWorkspace() and overwritten by every simulate/train call,
+    // so the steady-state training loop doesn't allocate.
+    private Workspace workspace = null;
+
+    // Mini-batch workspace. Each matrix holds one sample per column and is
+    // a view of a buffer sized for the largest batch so far, so the short
+    // last batch of an epoch doesn't reallocate anything; the views for
+    // the last smaller size are kept as well.
+    private BatchViews batchFull           = null;
+    private BatchViews batchPartial        = null;
+    private ArrayList<Matrix> batchInputs  = new ArrayList<>();
+    private ArrayList<Matrix> batchOutputs = new ArrayList<>();
+    private ArrayList<Matrix> batchDeltas  = new ArrayList<>();
+    private ArrayList<long[]> batchMasks   = new ArrayList<>();
+    private int batchSize = 0;
+
+    // Where the dropout masks of the workspace start; other training
+    // threads get streams derived from it.
+    private long dropoutSeed = new SplittableRandom().nextLong();
 
     private ITransferFunction transferFunction;
 
     private double RATE = 0.2;
 
+    // Turns the gradients computed by train/trainBatch into weight updates.
+    private IOptimizer optimizer;
+
+    // Counts the changes to the weights, so that snapshots such as
+    // CachingPredictor can tell when they are out of date.
+    private final AtomicLong weightVersion = new AtomicLong();
+
+    // Instrumentation callbacks. While null no timestamps are taken.
+    private volatile INetworkListener listener = null;
+
     public NeuralNet(ITransferFunction transferFunction, double rate) {
         this.transferFunction = transferFunction;
         this.RATE             = rate;
+        this.optimizer        = new SGDOptimizer(rate);
     }
 
-    public void addLayerWeights(Matrix weights) {
-        this.weights.add(weights);
+    /**
+     * Appends a layer. Its input size must match the output size of the
+     * last layer.
+     */
+    public void addLayer(Layer layer) {
+        if (!layers.isEmpty() && layers.get(layers.size() - 1).getOutputSize() != layer.getInputSize())
+            throw new ArithmeticException("Layer of input size " + layer.getInputSize() + " after a layer of "
+                    + layers.get(layers.size() - 1).getOutputSize() + " outputs");
+
+        this.layers.add(layer);
+        this.workspace = null;
+        markWeightsChanged();
     }
-    public void addBias(Vector bias) { this.layerBias.add(bias); }
-    public ArrayList<Matrix> getWeights() {
-        return this.weights;
+
+    public List<Layer> getLayers() {
+        return this.layersView;
     }
-    public ArrayList<Vector> getBias() {
-        return this.layerBias;
+
+    /**
+     * The weight matrix of every layer, empty for layers without weights.
+     */
+    public List<Matrix> getWeights() {
+        var weights = new ArrayList<Matrix>(layers.size());
+        for (var layer : layers)
+            weights.add(layer.weights);
+        return weights;
     }
 
-    private Matrix calcPartials(Vector deltas, Vector outputs) {
-        Matrix partials = new Matrix(deltas.size(), outputs.size(), () -> 0.0);
-        for (int outputIdx = 0; outputIdx < outputs.size(); outputIdx++)
-            for (int deltaIdx = 0; deltaIdx < deltas.size(); deltaIdx++)
-                partials.set(deltaIdx, outputIdx, -RATE * deltas.get(deltaIdx) * outputs.get(outputIdx));
+    /**
+     * The bias of every layer, empty for layers without weights.
+     */
+    public List<Vector> getBias() {
+        var bias = new ArrayList<Vector>(layers.size());
+        for (var layer : layers)
+            bias.add(layer.bias);
+        return bias;
+    }
 
-        return partials;
+    // For code that only handles fully connected networks.
+    void requireDense(String operation) {
+        for (var layer : layers)
+            if (!(layer instanceof DenseLayer))
+                throw new UnsupportedOperationException(operation + " supports fully connected layers only");
     }
 
-    private ArrayList<Matrix> backPropagate(IErrorFunction errorFunc, Vector desiredValues) {
-        ArrayList<Matrix> gradient = new ArrayList<>();
+    /**
+     * A number that changes whenever the layers or their weights change
+     * through this library: addLayer, train, trainBatch, the parallel
+     * trainers and checkpoint restores.
+     */
+    public long getWeightVersion() {
+        return weightVersion.get();
+    }
 
-        var outputLayerInput = layerInputs.get(layerInputs.size() - 1);
-        var lastLayerOutput  = layerOutputs.get(layerOutputs.size() - 2);
+    /**
+     * Call after writing to the weights directly, through getLayers() or
+     * getWeights(), so that getWeightVersion() changes.
+     */
+    public void markWeightsChanged() {
+        weightVersion.incrementAndGet();
+    }
+
+    public ITransferFunction getTransferFunction() {
+        return this.transferFunction;
+    }
+
+    /**
+     * The transfer function applied to the outputs of the given layer.
+     */
+    public ITransferFunction getTransferFunction(int layer) {
+        return this.layers.get(layer).transfer;
+    }
+
+    public double getRate() {
+        return this.RATE;
+    }
+
+    public IOptimizer getOptimizer() {
+        return this.optimizer;
+    }
+
+    /**
+     * Replaces the optimizer used by train and trainBatch. Its state is
+     * allocated for the current layers right away.
+     */
+    public void setOptimizer(IOptimizer optimizer) {
+        this.optimizer = optimizer;
+        if (!layers.isEmpty())
+            optimizer.allocate(slotSizes());
+    }
 
-        // First, calculate the output layer deltas.
-        var deltas = layerOutputs.get(layerOutputs.size() - 1)
-                .copy()
-                .map((actual, desired) -> errorFunc.derivative(desired, actual), desiredValues)
-                .mul(outputLayerInput
-                        .copy()
-                        .map(e -> transferFunction.derivative(e)));
+    public INetworkListener getListener() {
+        return this.listener;
+    }
+
+    /**
+     * Installs a listener for per-layer timings, gradient norms and step
+     * statistics, or removes it when null.
+     */
+    public void setListener(INetworkListener listener) {
+        this.listener = listener;
+    }
+
+    static int weightSlot(int layer) {
+        return 2 * layer;
+    }
+
+    static int biasSlot(int layer) {
+        return 2 * layer + 1;
+    }
+
+    static boolean isWeightSlot(int slot) {
+        return slot % 2 == 0;
+    }
+
+    private int[] slotSizes() {
+        int[] sizes = new int[2 * layers.size()];
+        for (int layer = 0; layer < layers.size(); layer++) {
+            sizes[weightSlot(layer)] = layers.get(layer).weights.data.length;
+            sizes[biasSlot(layer)]   = layers.get(layer).bias.size;
+        }
+        return sizes;
+    }
+
+    /**
+     * Allocates the activation, pre-activation, delta and gradient buffers
+     * for the current layer layout. Called by NeuralNetBuilder.build() and
+     * again lazily whenever the layout changes through addLayer.
+     */
+    public void allocateWorkspace() {
+        workspace        = new Workspace(layers);
+        workspace.random = dropoutSeed;
+        batchFull        = null;
+        batchPartial     = null;
+        batchSize        = 0;
+        optimizer.allocate(slotSizes());
+    }
+
+    // A workspace for another training thread, with a dropout stream of
+    // its own.
+    Workspace newWorkspace(int stream) {
+        var threadWorkspace    = new Workspace(layers);
+        threadWorkspace.random = Dropout.mix(dropoutSeed + stream);
+        return threadWorkspace;
+    }
+
+    /**
+     * Seeds the dropout masks, so that training runs are repeatable.
+     * NeuralNetBuilder.setSeed seeds them too.
+     */
+    public void setDropoutSeed(long seed) {
+        this.dropoutSeed = seed;
+        if (workspace != null)
+            workspace.random = seed;
+    }
+
+    // The dropout generator state, for checkpoints.
+    long getDropoutState() {
+        return workspace != null ? workspace.random : dropoutSeed;
+    }
+
+    void setDropoutState(long state) {
+        if (workspace != null)
+            workspace.random = state;
+        else
+            dropoutSeed = state;
+    }
 
-        layerBias.get(layerBias.size() - 1).sub(deltas.copy().map(e -> e * RATE));
-        gradient.add(calcPartials(deltas, lastLayerOutput));
+    private static final class BatchViews {
+        final int size;
+        final ArrayList<Matrix> inputs  = new ArrayList<>();
+        final ArrayList<Matrix> outputs = new ArrayList<>();
+        final ArrayList<Matrix> deltas  = new ArrayList<>();
+
+        BatchViews(int size) {
+            this.size = size;
+        }
+    }
+
+    private void allocateBatchWorkspace(int size) {
+        batchFull    = new BatchViews(size);
+        batchPartial = null;
+        batchMasks.clear();
+
+        batchFull.outputs.add(new Matrix(layers.get(0).getInputSize(), size));
+
+        for (var layer : layers) {
+            int N = layer.getOutputSize();
+            batchFull.inputs.add(new Matrix(N, size));
+            batchFull.outputs.add(new Matrix(N, size));
+            batchFull.deltas.add(new Matrix(N, size));
+            batchMasks.add(new long[Dropout.maskLength(N * size)]);
+        }
+    }
+
+    // Points the batch matrices at views for size samples, growing the
+    // buffers only when size is larger than any batch before.
+    private void useBatchSize(int size) {
+        if (size == batchSize)
+            return;
+        if (batchFull == null || size > batchFull.size)
+            allocateBatchWorkspace(size);
+
+        var views = batchFull;
+        if (size < batchFull.size) {
+            if (batchPartial == null || batchPartial.size != size)
+                batchPartial = viewsOf(batchFull, size);
+            views = batchPartial;
+        }
+
+        batchInputs  = views.inputs;
+        batchOutputs = views.outputs;
+        batchDeltas  = views.deltas;
+        batchSize    = size;
+    }
+
+    private static BatchViews viewsOf(BatchViews buffers, int size) {
+        var views = new BatchViews(size);
+        for (var matrix : buffers.inputs)
+            views.inputs.add(new Matrix(matrix.getRows(), size, matrix.data));
+        for (var matrix : buffers.outputs)
+            views.outputs.add(new Matrix(matrix.getRows(), size, matrix.data));
+        for (var matrix : buffers.deltas)
+            views.deltas.add(new Matrix(matrix.getRows(), size, matrix.data));
+        return views;
+    }
+
+    /**
+     * Fills the workspace deltas for the sample last run through
+     * forward(workspace, ...). Only reads the weights.
+     */
+    void backPropagate(Workspace workspace, IErrorFunction errorFunc, Vector desiredValues) {
+        int lastLayer = layers.size() - 1;
+        var listener  = this.listener;
+        long started  = listener != null ? System.nanoTime() : 0;
+
+        var outputLayerInput  = workspace.layerInputs.get(lastLayer);
+        var outputLayerOutput = workspace.layerOutputs.get(lastLayer + 1);
+
+        if (desiredValues.size != outputLayerOutput.size)
+            throw new ArithmeticException("Vector size mismatch");
+
+        // First, calculate the output layer deltas. The transfer derivative
+        // is taken from the outputs cached by the forward pass.
+        var deltas = workspace.layerDeltas.get(lastLayer);
+        for (int idx = 0; idx < deltas.size; idx++)
+            deltas.data[idx] = errorFunc.derivative(desiredValues.data[idx], outputLayerOutput.data[idx]);
+        layers.get(lastLayer).transfer.derivative(outputLayerInput.data, outputLayerOutput.data, deltas.data,
+                deltas.size);
+        if (listener != null)
+            started = reportBackward(listener, lastLayer, started);
 
         // Hidden layers
-        var previousDeltas = deltas.copy();
-        for (int layer = weights.size() - 1; layer > 0; layer--) {
-            deltas = new Vector();
-            var weightMatrix    = weights.get(layer);
-            var layerInput      = layerInputs.get(layer - 1);
-            var prevLayerOutput = layerOutputs.get(layer - 1);
+        var previousDeltas = deltas;
+        for (int layer = lastLayer; layer > 0; layer--) {
+            var layerInput  = workspace.layerInputs.get(layer - 1);
+            var layerOutput = workspace.layerOutputs.get(layer);
+            deltas = workspace.layerDeltas.get(layer - 1);
 
             // Calculate the deltas for this layer.
             // The deltas depend on the next layer's deltas.
-            for (int nodeIdx = 0; nodeIdx < layerInput.size(); nodeIdx++) {
-                double sum = 0;
-                for (int deltaIdx = 0; deltaIdx < previousDeltas.size(); deltaIdx++)
-                    sum += weightMatrix.get(deltaIdx, nodeIdx) * previousDeltas.get(deltaIdx);
+            layers.get(layer).backward(layerOutput.data, previousDeltas.data, deltas.data, workspace.scratch.get(layer));
 
-                double delta = sum * transferFunction.derivative(layerInput.get(nodeIdx));
-                deltas.addDouble(delta);
-            }
+            // The derivative of a dropout layer masks its deltas as well.
+            var below = layers.get(layer - 1);
+            if (workspace.dropout && below.dropout > 0)
+                below.transfer.derivative(layerInput.data, layerOutput.data, deltas.data, deltas.size,
+                        workspace.dropoutMasks.get(layer - 1), 1.0 - below.dropout);
+            else
+                below.transfer.derivative(layerInput.data, layerOutput.data, deltas.data, deltas.size);
+            if (listener != null)
+                started = reportBackward(listener, layer - 1, started);
 
-            gradient.add(0, calcPartials(deltas, prevLayerOutput));
-            layerBias.get(layer - 1).sub(deltas.copy().map(e -> RATE * e));
-            previousDeltas = deltas.copy();
+            previousDeltas = deltas;
         }
+    }
+
+    // The report helpers pass the time since `started` to the listener
+    // and return the current time, the start of the next layer.
+    private static long reportForward(INetworkListener listener, int layer, long started) {
+        long now = System.nanoTime();
+        listener.onForward(layer, now - started);
+        return now;
+    }
+
+    private static long reportBackward(INetworkListener listener, int layer, long started) {
+        long now = System.nanoTime();
+        listener.onBackward(layer, now - started);
+        return now;
+    }
 
-        return gradient;
+    private static void reportGradient(INetworkListener listener, int layer, double scale, double[] gradient, int length) {
+        listener.onGradient(layer, Math.abs(scale) * Math.sqrt(Kernels.INSTANCE.dot(gradient, 0, gradient, 0, length)));
+    }
+
+    /**
+     * Adds the gradient of the current sample to the workspace gradient
+     * instead of applying it, so several samples can be accumulated.
+     */
+    void accumulateGradient(Workspace workspace) {
+        for (int layer = 0; layer < layers.size(); layer++) {
+            var deltas = workspace.layerDeltas.get(layer);
+            if (layer == 0 && workspace.sparseInput != null) {
+                workspace.gradient.get(layer).addOuter(1.0, deltas, workspace.sparseInput);
+                workspace.biasGradient.get(layer).add(deltas);
+                continue;
+            }
+
+            layers.get(layer).gradient(workspace.layerOutputs.get(layer).data, deltas.data,
+                    workspace.gradient.get(layer).data, workspace.biasGradient.get(layer).data, true,
+                    workspace.scratch.get(layer));
+        }
     }
 
     public void train(IErrorFunction errorFunc, Vector desiredValues) {
 
         // This method first calculates the gradient, then
-        // applies the values to the weights.
+        // hands it to the optimizer to update the weights.
         // Mathematically the gradient is a vector but since
         // the weights are stored in a matrix for each layer,
         // the gradient will also be an array of matrices
-        // for easy computation.
-        var gradient = this.backPropagate(errorFunc, desiredValues);
+        // for easy computation. The bias gradient is the deltas.
+        var listener   = this.listener;
+        long started   = listener != null ? System.nanoTime() : 0;
+        long allocated = listener != null ? THREADS.getCurrentThreadAllocatedBytes() : 0;
+
+        this.backPropagate(workspace, errorFunc, desiredValues);
+
+        optimizer.beginStep();
+        int firstLayer = 0;
+        var sparse     = workspace.sparseInput;
+        if (sparse != null) {
+            // Only the weight columns of the nonzero inputs have a gradient.
+            var deltas   = workspace.layerDeltas.get(0);
+            var gradient = workspace.gradient.get(0).outer(1.0, deltas, sparse);
+            if (listener != null)
+                listener.onGradient(0, Math.sqrt(Vector.dot(deltas, deltas)) * sparse.norm());
+
+            optimizer.updateColumns(weightSlot(0), layers.get(0).weights.data, gradient.data, 1.0,
+                    gradient.getRows(), gradient.getCols(), sparse.indices, sparse.nonZeros);
+            optimizer.update(biasSlot(0), layers.get(0).bias.data, deltas.data, 1.0, 0, deltas.size);
+            firstLayer = 1;
+        }
+
+        for (int layerIdx = firstLayer; layerIdx < layers.size(); layerIdx++) {
+            var layer        = layers.get(layerIdx);
+            var gradient     = workspace.gradient.get(layerIdx);
+            var biasGradient = workspace.biasGradient.get(layerIdx);
+            layer.gradient(workspace.layerOutputs.get(layerIdx).data, workspace.layerDeltas.get(layerIdx).data,
+                    gradient.data, biasGradient.data, false, workspace.scratch.get(layerIdx));
+            if (listener != null)
+                reportGradient(listener, layerIdx, 1.0, gradient.data, gradient.data.length);
+
+            optimizer.update(weightSlot(layerIdx), layer.weights.data, gradient.data, 1.0, 0, gradient.data.length);
+            optimizer.update(biasSlot(layerIdx), layer.bias.data, biasGradient.data, 1.0, 0, biasGradient.size);
+        }
+        markWeightsChanged();
+
+        if (listener != null)
+            listener.onStep(1, System.nanoTime() - started, THREADS.getCurrentThreadAllocatedBytes() - allocated);
+    }
+
+    /**
+     * Trains on every remaining sample of the source, one update per
+     * sample, and returns the number of samples used. Only the sample being
+     * trained on is held, so the dataset can be larger than the heap.
+     */
+    public long train(IErrorFunction errorFunc, ISampleSource source) throws IOException {
+        if (workspace == null)
+            allocateWorkspace();
+
+        long count = 0;
+        for (Sample sample = source.next(); sample != null; sample = source.next()) {
+            forward(workspace, sample);
+            train(errorFunc, sample.getDesired());
+            count++;
+        }
+
+        return count;
+    }
 
-        for (int matrixIdx = 0; matrixIdx < gradient.size(); matrixIdx++)
-            weights.get(matrixIdx).add(gradient.get(matrixIdx));
+    /**
+     * Returns the error summed over the outputs and averaged over the samples.
+     */
+    public double findError(IErrorFunction errorFunc, List<Sample> samples) {
+        double total = 0;
+        for (int sampleIdx = 0; sampleIdx < samples.size(); sampleIdx++) {
+            var sample = samples.get(sampleIdx);
+            var actual = sample.isSparse() ? simulate(sample.getSparseInput()) : simulate(sample.getInput());
+            for (int idx = 0; idx < actual.size; idx++)
+                total += errorFunc.findError(sample.getDesired().data[idx], actual.data[idx]);
+        }
+
+        return total / samples.size();
+    }
+
+    /**
+     * Returns an immutable snapshot of the current weights that can serve
+     * predictions from many threads at once. Training this network
+     * afterwards does not change the snapshot.
+     */
+    public Predictor freeze() {
+        return new Predictor(layers);
+    }
+
+    /**
+     * Like freeze(), but the snapshot stores the weights as float32 and
+     * computes in float.
+     */
+    public FloatPredictor freezeFloat32() {
+        requireDense("freezeFloat32");
+        return new FloatPredictor(getWeights(), getBias(), transferFunctions());
+    }
+
+    /**
+     * Like freeze(), but the snapshot quantizes the weights to int8 with a
+     * scale and zero point per layer and runs int8 GEMVs.
+     */
+    public QuantizedPredictor freezeInt8() {
+        requireDense("freezeInt8");
+        return new QuantizedPredictor(getWeights(), getBias(), transferFunctions());
+    }
+
+    /**
+     * Like freeze(), but the snapshot keeps its weights in native memory
+     * outside the Java heap. close() it to release that memory.
+     */
+    public OffHeapPredictor freezeOffHeap() {
+        requireDense("freezeOffHeap");
+        return new OffHeapPredictor(getWeights(), getBias(), transferFunctions());
+    }
+
+    /**
+     * Like freeze(), but predictBatch runs as a pipeline: the layers are
+     * split into up to `stages` stages with a thread each, and the batch
+     * flows through them in micro-batches of microBatchSize samples.
+     * close() it to stop the threads.
+     */
+    public PipelinedPredictor freezePipelined(int stages, int microBatchSize) {
+        return new PipelinedPredictor(freeze(), stages, microBatchSize);
     }
 
+    List<ITransferFunction> transferFunctions() {
+        var functions = new ArrayList<ITransferFunction>(layers.size());
+        for (var layer : layers)
+            functions.add(layer.transfer);
+        return functions;
+    }
+
+    /**
+     * Runs the input through the network and returns the output as a new
+     * vector.
+     */
     public Vector simulate(Vector input) {
+        if (workspace == null)
+            allocateWorkspace();
+
+        return forward(workspace, input, false).copy();
+    }
+
+    /**
+     * Runs the input through the network and writes the output to out,
+     * which is returned. Unlike simulate(Vector) it allocates nothing, so
+     * it is the one for training loops.
+     */
+    public Vector simulate(Vector input, Vector out) {
+        if (workspace == null)
+            allocateWorkspace();
+
+        return copyOutput(forward(workspace, input, false), out);
+    }
+
+    /**
+     * Runs a sparse input through the network. The first layer only reads
+     * the weight columns of the nonzero inputs, and a following train()
+     * only updates those columns.
+     */
+    public Vector simulate(SparseVector input) {
+        if (workspace == null)
+            allocateWorkspace();
+
+        return forward(workspace, input, false).copy();
+    }
+
+    /**
+     * simulate(SparseVector) writing the output to out, without allocating.
+     */
+    public Vector simulate(SparseVector input, Vector out) {
+        if (workspace == null)
+            allocateWorkspace();
+
+        return copyOutput(forward(workspace, input, false), out);
+    }
+
+    // Runs the sample's input, sparse or dense, through the network for a
+    // training step, with dropout, and writes the output to out.
+    Vector simulate(Sample sample, Vector out) {
+        if (workspace == null)
+            allocateWorkspace();
+
+        return copyOutput(forward(workspace, sample), out);
+    }
+
+    private static Vector copyOutput(Vector output, Vector out) {
+        if (out.size != output.size)
+            throw new ArithmeticException("Vector size mismatch");
+
+        System.arraycopy(output.data, 0, out.data, 0, out.size);
+        return out;
+    }
+
+    // The forward pass of a training step, with dropout.
+    Vector forward(Workspace workspace, Sample sample) {
+        return sample.isSparse()
+                ? forward(workspace, sample.getSparseInput(), true)
+                : forward(workspace, sample.getInput(), true);
+    }
+
+    Vector forward(Workspace workspace, Vector input) {
+        return forward(workspace, input, false);
+    }
+
+    /**
+     * Forward pass using the given workspace. Only reads the weights, so
+     * threads with their own workspaces may run it concurrently. Layers
+     * with a dropout rate drop activations when training is set.
+     */
+    Vector forward(Workspace workspace, Vector input, boolean training) {
         // The input and output of each layer needs to be saved for training.
-        layerInputs.clear();
-        layerOutputs.clear();
+        var layerOutput = workspace.layerOutputs.get(0);
+        if (input.size != layerOutput.size)
+            throw new ArithmeticException("Vector size mismatch");
+        System.arraycopy(input.data, 0, layerOutput.data, 0, input.size);
+        workspace.sparseInput = null;
+        workspace.dropout     = training;
+
+        var listener = this.listener;
+        return forwardLayers(workspace, 0, listener, listener != null ? System.nanoTime() : 0);
+    }
+
+    Vector forward(Workspace workspace, SparseVector input, boolean training) {
+        if (input.size != workspace.layerOutputs.get(0).size)
+            throw new ArithmeticException("Vector size mismatch");
+        if (!(layers.get(0) instanceof DenseLayer))
+            throw new UnsupportedOperationException("Sparse inputs need a fully connected first layer");
+        workspace.sparseInput = input;
+        workspace.dropout     = training;
 
-        layerOutputs.add(input.copy());
+        var listener = this.listener;
+        long started = listener != null ? System.nanoTime() : 0;
 
-        Vector output = null;
+        var layerInput = workspace.layerInputs.get(0);
+        layers.get(0).weights.multiply(input, layerInput).add(layers.get(0).bias);
+        transfer(workspace, 0, layerInput, workspace.layerOutputs.get(1));
+        if (listener != null)
+            started = reportForward(listener, 0, started);
 
-        for (int layerIdx = 0; layerIdx < weights.size(); layerIdx++) {
-            var weightMatrix = weights.get(layerIdx);
-            var biasVector   = layerBias.get(layerIdx);
-            input = weightMatrix.multiply(input.copy()).add(biasVector);
-            layerInputs.add(input.copy());
-            output = input
-                    .copy()
-                    .map(e -> this.transferFunction.calculate(e));
-            layerOutputs.add(output);
-            input = output.copy();
+        return forwardLayers(workspace, 1, listener, started);
+    }
+
+    // Runs the layers from firstLayer on, whose input is already in
+    // workspace.layerOutputs[firstLayer].
+    private Vector forwardLayers(Workspace workspace, int firstLayer, INetworkListener listener, long started) {
+        var layerOutput = workspace.layerOutputs.get(firstLayer);
+
+        for (int layerIdx = firstLayer; layerIdx < layers.size(); layerIdx++) {
+            var layer      = layers.get(layerIdx);
+            var layerInput = workspace.layerInputs.get(layerIdx);
+
+            layer.forward(layerOutput.data, layerInput.data, workspace.scratch.get(layerIdx));
+
+            layerOutput = workspace.layerOutputs.get(layerIdx + 1);
+            transfer(workspace, layerIdx, layerInput, layerOutput);
+            if (listener != null)
+                started = reportForward(listener, layerIdx, started);
         }
 
-        return output.copy();
+        var output = workspace.output;
+        System.arraycopy(layerOutput.data, 0, output.data, 0, output.size);
+        return output;
+    }
+
+    // Applies the transfer function of a layer, dropping activations of a
+    // hidden layer in a training forward pass.
+    private void transfer(Workspace workspace, int layer, Vector in, Vector out) {
+        var current = layers.get(layer);
+        if (workspace.dropout && current.dropout > 0 && layer < layers.size() - 1) {
+            var mask = workspace.dropoutMasks.get(layer);
+            Dropout.mask(workspace, current.dropout, mask, in.size);
+            Kernels.INSTANCE.transfer(current.transfer, in.data, out.data, in.size, mask, 1.0 - current.dropout);
+        } else {
+            Kernels.INSTANCE.transfer(current.transfer, in.data, out.data, in.size);
+        }
+    }
+
+    /**
+     * Runs a batch of inputs through the network, one sample per column.
+     * The returned matrix is owned by the network and overwritten by the
+     * next batch call.
+     */
+    public Matrix simulateBatch(Matrix inputs) {
+        if (workspace == null)
+            allocateWorkspace();
+        useBatchSize(inputs.getCols());
+
+        var layerOutput = batchOutputs.get(0);
+        if (inputs.getRows() != layerOutput.getRows())
+            throw new ArithmeticException();
+        System.arraycopy(inputs.data, 0, layerOutput.data, 0, inputs.getRows() * inputs.getCols());
+
+        forwardBatch(false);
+        return batchOutputs.get(batchOutputs.size() - 1);
+    }
+
+    /**
+     * Trains on a mini-batch: the forward and backward passes run as
+     * matrix-matrix products over the whole batch and a single gradient,
+     * averaged over the samples, is applied at the end. Returns the error
+     * of the batch before the update, measured like findError.
+     */
+    public double trainBatch(IErrorFunction errorFunc, List<Sample> samples) {
+        if (workspace == null)
+            allocateWorkspace();
+        useBatchSize(samples.size());
+
+        var listener   = this.listener;
+        long started   = listener != null ? System.nanoTime() : 0;
+        long allocated = listener != null ? THREADS.getCurrentThreadAllocatedBytes() : 0;
+
+        // Stack the samples column-wise into the input matrix. Sparse
+        // inputs are scattered into a zeroed column; the batch products
+        // themselves stay dense.
+        var inputs = batchOutputs.get(0);
+        for (int sampleIdx = 0; sampleIdx < batchSize; sampleIdx++) {
+            var sample = samples.get(sampleIdx);
+            if (sample.isSparse()) {
+                var input = sample.getSparseInput();
+                if (input.size != inputs.getRows())
+                    throw new ArithmeticException("Vector size mismatch");
+                for (int rowIdx = 0; rowIdx < input.size; rowIdx++)
+                    inputs.set(rowIdx, sampleIdx, 0.0);
+                for (int idx = 0; idx < input.nonZeros; idx++)
+                    inputs.set(input.indices[idx], sampleIdx, input.values[idx]);
+                continue;
+            }
+
+            var input = sample.getInput();
+            if (input.size != inputs.getRows())
+                throw new ArithmeticException("Vector size mismatch");
+            for (int rowIdx = 0; rowIdx < input.size; rowIdx++)
+                inputs.set(rowIdx, sampleIdx, input.data[rowIdx]);
+        }
+
+        forwardBatch(true);
+
+        int lastLayer = layers.size() - 1;
+        long timed    = listener != null ? System.nanoTime() : 0;
+
+        // Output layer deltas, one column per sample.
+        var outputLayerInput  = batchInputs.get(lastLayer);
+        var outputLayerOutput = batchOutputs.get(lastLayer + 1);
+        var deltas            = batchDeltas.get(lastLayer);
+        double error          = 0;
+        for (int sampleIdx = 0; sampleIdx < batchSize; sampleIdx++) {
+            var desired = samples.get(sampleIdx).getDesired();
+            if (desired.size != deltas.getRows())
+                throw new ArithmeticException("Vector size mismatch");
+            for (int rowIdx = 0; rowIdx < desired.size; rowIdx++) {
+                double actual = outputLayerOutput.get(rowIdx, sampleIdx);
+                error += errorFunc.findError(desired.data[rowIdx], actual);
+                deltas.set(rowIdx, sampleIdx, errorFunc.derivative(desired.data[rowIdx], actual));
+            }
+        }
+        derivativeBatch(lastLayer, outputLayerInput, outputLayerOutput, deltas);
+        if (listener != null)
+            timed = reportBackward(listener, lastLayer, timed);
+
+        // Hidden layer deltas: the deltas propagated back through the next
+        // layer (transpose(W) * deltas when it is dense), scaled by the derivative.
+        for (int layer = lastLayer; layer > 0; layer--) {
+            var prevDeltas = batchDeltas.get(layer - 1);
+            layers.get(layer).backwardBatch(batchOutputs.get(layer), batchDeltas.get(layer), prevDeltas, workspace,
+                    layer);
+
+            // As in backPropagate, the derivative of a dropout layer masks its
+            // deltas. Dropout layers are elementwise.
+            var below = layers.get(layer - 1);
+            if (below.dropout > 0) {
+                below.transfer.derivative(batchInputs.get(layer - 1).data, batchOutputs.get(layer).data,
+                        prevDeltas.data, prevDeltas.getRows() * batchSize, batchMasks.get(layer - 1),
+                        1.0 - below.dropout);
+            } else {
+                derivativeBatch(layer - 1, batchInputs.get(layer - 1), batchOutputs.get(layer), prevDeltas);
+            }
+            if (listener != null)
+                timed = reportBackward(listener, layer - 1, timed);
+        }
+
+        // The deltas of every layer are computed with the old weights,
+        // only now is the gradient, averaged over the batch, applied.
+        double scale = 1.0 / batchSize;
+        optimizer.beginStep();
+        for (int layer = 0; layer <= lastLayer; layer++) {
+            var partials     = workspace.gradient.get(layer);
+            var biasPartials = workspace.biasGradient.get(layer);
+            layers.get(layer).gradientBatch(batchOutputs.get(layer), batchDeltas.get(layer), workspace, layer);
+
+            if (listener != null)
+                reportGradient(listener, layer, scale, partials.data, partials.data.length);
+
+            optimizer.update(weightSlot(layer), layers.get(layer).weights.data, partials.data, scale, 0,
+                    partials.data.length);
+            optimizer.update(biasSlot(layer), layers.get(layer).bias.data, biasPartials.data, scale, 0,
+                    biasPartials.size);
+        }
+        markWeightsChanged();
+
+        if (listener != null)
+            listener.onStep(batchSize, System.nanoTime() - started, THREADS.getCurrentThreadAllocatedBytes() - allocated);
+
+        return error / batchSize;
+    }
+
+    private void forwardBatch(boolean training) {
+        var listener = this.listener;
+        long started = listener != null ? System.nanoTime() : 0;
+
+        for (int layerIdx = 0; layerIdx < layers.size(); layerIdx++) {
+            var layer       = layers.get(layerIdx);
+            var layerInput  = batchInputs.get(layerIdx);
+            var layerOutput = batchOutputs.get(layerIdx + 1);
+
+            layer.forwardBatch(batchOutputs.get(layerIdx), layerInput, workspace, layerIdx);
+            if (training && layer.dropout > 0 && layerIdx < layers.size() - 1) {
+                // Dropout layers are elementwise, the whole matrix goes at once.
+                int length = layerOutput.getRows() * batchSize;
+                var mask   = batchMasks.get(layerIdx);
+                Dropout.mask(workspace, layer.dropout, mask, length);
+                Kernels.INSTANCE.transfer(layer.transfer, layerInput.data, layerOutput.data, length, mask,
+                        1.0 - layer.dropout);
+            } else {
+                transferBatch(layerIdx, layerInput, layerOutput);
+            }
+            if (listener != null)
+                started = reportForward(listener, layerIdx, started);
+        }
+    }
+
+    // Elementwise functions run over the whole matrix in one call. The
+    // others (softmax) are applied per sample: each column is gathered
+    // into the single-sample workspace of that layer and scattered back.
+    private void transferBatch(int layer, Matrix in, Matrix out) {
+        var func = layers.get(layer).transfer;
+        if (func.isElementwise()) {
+            Kernels.INSTANCE.transfer(func, in.data, out.data, in.getRows() * batchSize);
+            return;
+        }
+
+        var columnIn  = workspace.layerInputs.get(layer);
+        var columnOut = workspace.layerOutputs.get(layer + 1);
+        for (int sampleIdx = 0; sampleIdx < batchSize; sampleIdx++) {
+            in.getColumn(sampleIdx, columnIn.data);
+            Kernels.INSTANCE.transfer(func, columnIn.data, columnOut.data, columnIn.size);
+            out.setColumn(sampleIdx, columnOut.data);
+        }
+    }
+
+    private void derivativeBatch(int layer, Matrix in, Matrix out, Matrix gradient) {
+        var func = layers.get(layer).transfer;
+        if (func.isElementwise()) {
+            func.derivative(in.data, out.data, gradient.data, gradient.getRows() * batchSize);
+            return;
+        }
+
+        var columnIn       = workspace.layerInputs.get(layer);
+        var columnOut      = workspace.layerOutputs.get(layer + 1);
+        var columnGradient = workspace.layerDeltas.get(layer);
+        for (int sampleIdx = 0; sampleIdx < batchSize; sampleIdx++) {
+            in.getColumn(sampleIdx, columnIn.data);
+            out.getColumn(sampleIdx, columnOut.data);
+            gradient.getColumn(sampleIdx, columnGradient.data);
+            func.derivative(columnIn.data, columnOut.data, columnGradient.data, columnGradient.size);
+            gradient.setColumn(sampleIdx, columnGradient.data);
+        }
     }
 
 }
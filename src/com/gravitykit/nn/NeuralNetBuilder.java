@@ -1,15 +1,122 @@
 package com.gravitykit.nn;
 
 import java.util.ArrayList;
+import java.util.SplittableRandom;
 
 public class NeuralNetBuilder {
 
-    private ArrayList<Integer> layerNodeCounts = new ArrayList<>();
+    // Weights are drawn in chunks of this many values, each from its own
+    // random stream, so large layers are filled in parallel.
+    private static final int INIT_CHUNK = 1 << 16;
+
+    private enum Kind { DENSE, CONVOLUTION, POOLING }
+
+    // One entry per add call. The first one describes the input.
+    private static final class LayerSpec {
+        Kind kind;
+        ITransferFunction func;
+        int nodeCount;
+        int channels;
+        int height;
+        int width;
+        int kernelSize;
+        int stride;
+        int padding;
+        PoolingLayer.Mode mode;
+        double dropout;
+    }
+
+    private ArrayList<LayerSpec> layerSpecs    = new ArrayList<>();
     private ITransferFunction transferFunction = null;
+    private IOptimizer optimizer               = null;
+    private IWeightInitializer initializer     = new UniformInitializer();
+    private Long seed                          = null;
     private double rate                        = 1.0;
+    private double weightDecay                 = 0.0;
 
     public NeuralNetBuilder addLayer(int nodeCount) {
-        this.layerNodeCounts.add(nodeCount);
+        return addLayer(nodeCount, null);
+    }
+
+    /**
+     * Adds a layer whose nodes use the given transfer function instead of
+     * the one set with setTransferFunction. It is ignored on the input layer.
+     */
+    public NeuralNetBuilder addLayer(int nodeCount, ITransferFunction func) {
+        var spec       = new LayerSpec();
+        spec.kind      = Kind.DENSE;
+        spec.nodeCount = nodeCount;
+        spec.func      = func;
+        this.layerSpecs.add(spec);
+        return this;
+    }
+
+    /**
+     * Adds an input of channels x height x width values, stored
+     * channel-major, for convolution and pooling layers to work on. It
+     * takes the place of the first addLayer(nodeCount).
+     */
+    public NeuralNetBuilder addInput(int channels, int height, int width) {
+        if (!layerSpecs.isEmpty())
+            throw new IllegalStateException("The input must be the first layer");
+
+        var spec      = new LayerSpec();
+        spec.kind     = Kind.DENSE;
+        spec.channels = channels;
+        spec.height   = height;
+        spec.width    = width;
+        this.layerSpecs.add(spec);
+        return this;
+    }
+
+    public NeuralNetBuilder addConvolution(int filters, int kernelSize, int stride, int padding) {
+        return addConvolution(filters, kernelSize, stride, padding, null);
+    }
+
+    /**
+     * Adds a 2D convolution with the given number of output channels
+     * (filters) over the channels of the previous layer.
+     */
+    public NeuralNetBuilder addConvolution(int filters, int kernelSize, int stride, int padding,
+            ITransferFunction func) {
+        var spec        = new LayerSpec();
+        spec.kind       = Kind.CONVOLUTION;
+        spec.channels   = filters;
+        spec.kernelSize = kernelSize;
+        spec.stride     = stride;
+        spec.padding    = padding;
+        spec.func       = func;
+        this.layerSpecs.add(spec);
+        return this;
+    }
+
+    public NeuralNetBuilder addMaxPooling(int size) {
+        return addPooling(PoolingLayer.Mode.MAX, size, size);
+    }
+
+    public NeuralNetBuilder addAveragePooling(int size) {
+        return addPooling(PoolingLayer.Mode.AVERAGE, size, size);
+    }
+
+    public NeuralNetBuilder addPooling(PoolingLayer.Mode mode, int size, int stride) {
+        var spec        = new LayerSpec();
+        spec.kind       = Kind.POOLING;
+        spec.mode       = mode;
+        spec.kernelSize = size;
+        spec.stride     = stride;
+        this.layerSpecs.add(spec);
+        return this;
+    }
+
+    /**
+     * Drops the given fraction of the activations of the layer added last
+     * while training. See Layer.setDropout.
+     */
+    public NeuralNetBuilder addDropout(double rate) {
+        if (layerSpecs.size() < 2)
+            throw new IllegalStateException("Dropout needs a layer after the input");
+
+        layerSpecs.get(layerSpecs.size() - 1).dropout = rate;
         return this;
     }
 
@@ -23,21 +130,131 @@ public class NeuralNetBuilder {
         return this;
     }
 
+    /**
+     * Sets how the weights and biases are drawn, UniformInitializer in
+     * [0, 1) by default.
+     */
+    public NeuralNetBuilder setInitializer(IWeightInitializer initializer) {
+        this.initializer = initializer;
+        return this;
+    }
+
+    /**
+     * Seeds the initial weights and the dropout masks. Networks built with
+     * the same seed, layout and initializer start bit-identical; without a
+     * seed every build draws different weights.
+     */
+    public NeuralNetBuilder setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * Sets the optimizer that applies the gradients. Without one the
+     * network uses plain SGD at the rate set with setRate.
+     */
+    public NeuralNetBuilder setOptimizer(IOptimizer optimizer) {
+        this.optimizer = optimizer;
+        return this;
+    }
+
+    /**
+     * Sets the L2 weight decay of the optimizer, see
+     * IOptimizer.setWeightDecay.
+     */
+    public NeuralNetBuilder setWeightDecay(double weightDecay) {
+        this.weightDecay = weightDecay;
+        return this;
+    }
+
     public NeuralNet build() {
         NeuralNet nn = new NeuralNet(this.transferFunction, this.rate);
 
-        // Each weight matrix depends on the current layer and next layer.
-        // More precisely, the matrix will be NxM where
-        // N = next layer node count
-        // M = current layer node count
-        for (int layerIdx = 0; layerIdx < layerNodeCounts.size() - 1; layerIdx++) {
-            int N = layerNodeCounts.get(layerIdx + 1);
-            int M = layerNodeCounts.get(layerIdx);
-            nn.addLayerWeights(new Matrix(N, M, () -> Math.random()));
-            nn.addBias(new Vector(N, () -> Math.random()));
+        // The shape of the previous layer's output. A fully connected layer
+        // of N nodes is N channels of 1 x 1.
+        var input    = layerSpecs.get(0);
+        int channels = input.nodeCount > 0 ? input.nodeCount : input.channels;
+        int height   = input.nodeCount > 0 ? 1 : input.height;
+        int width    = input.nodeCount > 0 ? 1 : input.width;
+
+        for (int layerIdx = 1; layerIdx < layerSpecs.size(); layerIdx++) {
+            var spec = layerSpecs.get(layerIdx);
+            var func = spec.func != null ? spec.func : this.transferFunction;
+            if (func == null && spec.kind != Kind.POOLING)
+                throw new IllegalStateException("No transfer function for layer " + layerIdx);
+
+            switch (spec.kind) {
+                case DENSE -> {
+                    // The weight matrix is NxM where
+                    // N = this layer's node count
+                    // M = previous layer's node count
+                    int N = spec.nodeCount;
+                    int M = channels * height * width;
+                    nn.addLayer(new DenseLayer(new Matrix(N, M), new Vector(N), func));
+                    channels = N;
+                    height   = 1;
+                    width    = 1;
+                }
+                case CONVOLUTION -> {
+                    int M     = channels * spec.kernelSize * spec.kernelSize;
+                    var layer = new Conv2DLayer(channels, height, width, spec.kernelSize, spec.stride, spec.padding,
+                            new Matrix(spec.channels, M), new Vector(spec.channels), func);
+                    nn.addLayer(layer);
+                    channels = layer.getFilters();
+                    height   = layer.getOutputHeight();
+                    width    = layer.getOutputWidth();
+                }
+                case POOLING -> {
+                    var layer = new PoolingLayer(spec.mode, channels, height, width, spec.kernelSize, spec.stride);
+                    nn.addLayer(layer);
+                    height = layer.getOutputHeight();
+                    width  = layer.getOutputWidth();
+                }
+            }
+
+            if (spec.dropout > 0) {
+                if (layerIdx == layerSpecs.size() - 1)
+                    throw new IllegalStateException("Dropout on the output layer");
+                nn.getLayers().get(layerIdx - 1).setDropout(spec.dropout);
+            }
         }
 
+        initialize(nn);
+
+        if (this.optimizer != null)
+            nn.setOptimizer(this.optimizer);
+        if (this.weightDecay > 0)
+            nn.getOptimizer().setWeightDecay(this.weightDecay);
+
+        // Preallocate the per-layer buffers so training doesn't allocate.
+        nn.allocateWorkspace();
+
         return nn;
     }
 
+    // Every bias and every chunk of weights gets its own stream, split off
+    // the root in a fixed order before anything is drawn. The values thus
+    // don't depend on how the chunks are scheduled across threads. The
+    // dropout seed is drawn from the root last.
+    private void initialize(NeuralNet nn) {
+        var root  = seed != null ? new SplittableRandom(seed) : new SplittableRandom();
+        var tasks = new ArrayList<Runnable>();
+
+        for (var layer : nn.getLayers()) {
+            initializer.initializeBias(layer.bias.data, layer.bias.size, root.split());
+
+            double[] weights = layer.weights.data;
+            for (int offset = 0; offset < weights.length; offset += INIT_CHUNK) {
+                var random = root.split();
+                int start  = offset;
+                int length = Math.min(INIT_CHUNK, weights.length - offset);
+                tasks.add(() -> initializer.initialize(weights, start, length, layer.getFanIn(), layer.getFanOut(),
+                        random));
+            }
+        }
+
+        tasks.parallelStream().forEach(Runnable::run);
+        nn.setDropoutSeed(root.nextLong());
+    }
+
 }
@@ -0,0 +1,254 @@
+package com.gravitykit.nn;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/*
+
+    OffHeapMatrix is a row-major matrix whose elements live in native
+    memory outside the Java heap, so very large weight matrices neither
+    grow the heap nor get scanned and copied by the garbage collector.
+    Element (row, col) is the double at byte (row * columns + col) * 8
+    of a direct ByteBuffer in native byte order.
+
+    The memory is owned by the matrix and released by close(); using the
+    matrix afterwards throws IllegalStateException. A single matrix holds
+    at most Integer.MAX_VALUE bytes (about 268M elements), the limit of a
+    ByteBuffer; larger layers are split across several matrices.
+
+    It offers the arithmetic Matrix does for holding, training and serving
+    weights (add/sub/addScaled, outer-product updates, matrix-vector
+    products and products with on-heap matrices) on the same Kernels,
+    including the SIMD backend for the dot products. OffHeapTrainer and
+    OffHeapPredictor build on it.
+
+ */
+
+public final class OffHeapMatrix implements AutoCloseable {
+
+    // sun.misc.Unsafe.invokeCleaner frees a direct buffer right away
+    // instead of when it is collected. When it can't be found, close()
+    // drops the buffer and the memory goes back on the next GC.
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe  = null;
+        Method cleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe  = field.get(null);
+            cleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            unsafe  = null;
+            cleaner = null;
+        }
+
+        UNSAFE         = unsafe;
+        INVOKE_CLEANER = cleaner;
+    }
+
+    private final int rows;
+    private final int columns;
+    private ByteBuffer data;
+
+    /**
+     * Allocates a zero-filled rows x columns matrix in native memory.
+     */
+    public OffHeapMatrix(int rows, int columns) {
+        long bytes = (long) rows * columns * Double.BYTES;
+        if (rows < 0 || columns < 0 || bytes > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("OffHeapMatrix holds at most " + Integer.MAX_VALUE + " bytes");
+
+        this.rows    = rows;
+        this.columns = columns;
+        this.data    = ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.nativeOrder());
+    }
+
+    public static OffHeapMatrix copyOf(Matrix matrix) {
+        var copy = new OffHeapMatrix(matrix.getRows(), matrix.getCols());
+        copy.data().asDoubleBuffer().put(matrix.data, 0, matrix.getRows() * matrix.getCols());
+        return copy;
+    }
+
+    public static OffHeapMatrix copyOf(OffHeapMatrix matrix) {
+        var copy = new OffHeapMatrix(matrix.rows, matrix.columns);
+        copy.data().put(matrix.data().duplicate());
+        copy.data().rewind();
+        return copy;
+    }
+
+    /**
+     * Returns an on-heap copy.
+     */
+    public Matrix toMatrix() {
+        var copy = new Matrix(rows, columns);
+        data().asDoubleBuffer().get(copy.data, 0, rows * columns);
+        return copy;
+    }
+
+    // The backing buffer, position 0, checked for use after close().
+    ByteBuffer data() {
+        var buffer = data;
+        if (buffer == null)
+            throw new IllegalStateException("OffHeapMatrix is closed");
+        return buffer;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getCols() {
+        return columns;
+    }
+
+    /**
+     * Native bytes held by this matrix.
+     */
+    public long getBytes() {
+        return (long) rows * columns * Double.BYTES;
+    }
+
+    public double get(int rowIdx, int colIdx) {
+        return data().getDouble(index(rowIdx, colIdx));
+    }
+
+    public void set(int rowIdx, int colIdx, double value) {
+        data().putDouble(index(rowIdx, colIdx), value);
+    }
+
+    private int index(int rowIdx, int colIdx) {
+        if (rowIdx < 0 || rowIdx >= rows || colIdx < 0 || colIdx >= columns)
+            throw new IndexOutOfBoundsException("(" + rowIdx + ", " + colIdx + ") outside " + rows + " x " + columns);
+        return (rowIdx * columns + colIdx) * Double.BYTES;
+    }
+
+    public void add(OffHeapMatrix other) {
+        addScaled(1.0, other);
+    }
+
+    public void sub(OffHeapMatrix other) {
+        addScaled(-1.0, other);
+    }
+
+    /**
+     * this += scale * other
+     */
+    public void addScaled(double scale, OffHeapMatrix other) {
+        if (this.rows != other.rows || this.columns != other.columns)
+            throw new ArithmeticException();
+
+        Kernels.INSTANCE.axpy(scale, other.data(), 0, data(), 0, rows * columns);
+    }
+
+    /**
+     * this += scale * other, with other on the heap.
+     */
+    public void addScaled(double scale, Matrix other) {
+        if (this.rows != other.getRows() || this.columns != other.getCols())
+            throw new ArithmeticException();
+
+        Kernels.INSTANCE.axpy(scale, other.data, 0, data(), 0, rows * columns);
+    }
+
+    /**
+     * Adds the scaled outer product scale * left * transpose(right) to this matrix.
+     */
+    public OffHeapMatrix addOuter(double scale, Vector left, Vector right) {
+        if (this.rows != left.size() || this.columns != right.size())
+            throw new ArithmeticException();
+
+        var buffer = data();
+        for (int rowIdx = 0; rowIdx < rows; rowIdx++)
+            Kernels.INSTANCE.axpy(scale * left.data[rowIdx], right.data, 0, buffer, rowIdx * columns, columns);
+
+        return this;
+    }
+
+    /**
+     * Multiplies into a caller-supplied result vector.
+     */
+    public Vector multiply(Vector rightVec, Vector result) {
+        if (this.columns != rightVec.size() || this.rows != result.size())
+            throw new ArithmeticException();
+
+        multiply(rightVec.data, result.data);
+        return result;
+    }
+
+    // result[0, rows) = this * right[0, columns), unchecked.
+    void multiply(double[] right, double[] result) {
+        var buffer = data();
+        for (int row = 0; row < rows; row++)
+            result[row] = Kernels.INSTANCE.dot(buffer, row * columns, right, 0, columns);
+    }
+
+    /**
+     * Computes transpose(this) * rightVec into a caller-supplied result vector.
+     */
+    public Vector transposeMultiply(Vector rightVec, Vector result) {
+        if (this.rows != rightVec.size() || this.columns != result.size())
+            throw new ArithmeticException();
+
+        transposeMultiply(rightVec.data, result.data);
+        return result;
+    }
+
+    // result[0, columns) = transpose(this) * right[0, rows), unchecked.
+    void transposeMultiply(double[] right, double[] result) {
+        var buffer = data();
+        for (int colIdx = 0; colIdx < columns; colIdx++)
+            result[colIdx] = 0.0;
+        for (int row = 0; row < rows; row++) {
+            double scale = right[row];
+            int offset   = row * columns * Double.BYTES;
+            for (int colIdx = 0; colIdx < columns; colIdx++)
+                result[colIdx] += scale * buffer.getDouble(offset + colIdx * Double.BYTES);
+        }
+    }
+
+    /**
+     * Computes this * transpose(other) into a caller-supplied on-heap
+     * result, for a batch of on-heap samples in the rows of other. Each
+     * result element is a contiguous dot product.
+     */
+    public Matrix multiplyTranspose(Matrix other, Matrix result) {
+        if (this.columns != other.getCols() || result.getRows() != this.rows || result.getCols() != other.getRows())
+            throw new ArithmeticException();
+
+        var buffer = data();
+        int p      = other.getRows();
+        for (int rowIdx = 0; rowIdx < rows; rowIdx++)
+            for (int colIdx = 0; colIdx < p; colIdx++)
+                result.data[rowIdx * p + colIdx] =
+                        Kernels.INSTANCE.dot(buffer, rowIdx * columns, other.data, colIdx * columns, columns);
+
+        return result;
+    }
+
+    /**
+     * Releases the native memory. Further use of this matrix throws
+     * IllegalStateException. Must not race with other calls on the matrix.
+     */
+    @Override
+    public void close() {
+        var buffer = data;
+        if (buffer == null)
+            return;
+
+        data = null;
+        if (INVOKE_CLEANER != null) {
+            try {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            } catch (ReflectiveOperationException e) {
+                // Left to the garbage collector.
+            }
+        }
+    }
+
+}
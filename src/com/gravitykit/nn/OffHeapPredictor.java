@@ -0,0 +1,138 @@
+package com.gravitykit.nn;
+
+import java.util.List;
+
+/**
+ * OffHeapPredictor is an inference view of a trained NeuralNet whose
+ * weights are copied into OffHeapMatrix storage, created with
+ * NeuralNet.freezeOffHeap() or OffHeapTrainer.freeze(). Serving a large
+ * model this way keeps the heap small: only the biases and the
+ * per-thread scratch rows stay on it.
+ *
+ * Like Predictor it is immutable and safe to share between threads until
+ * close() releases the native memory, which must only be called once no
+ * prediction is running.
+ */
+
+public final class OffHeapPredictor implements AutoCloseable {
+
+    /**
+     * Ping-pong buffers wide enough for the widest layer. A Scratch must
+     * not be shared between threads that predict at the same time.
+     */
+    public static final class Scratch {
+        private final double[] front;
+        private final double[] back;
+
+        private Scratch(int width) {
+            this.front = new double[width];
+            this.back  = new double[width];
+        }
+    }
+
+    private final OffHeapMatrix[] weights;
+    private final double[][] bias;
+    private final List<ITransferFunction> transferFunctions;
+    private final int maxWidth;
+    private final ThreadLocal<Scratch> threadScratch;
+
+    OffHeapPredictor(List<Matrix> weights, List<Vector> bias, List<ITransferFunction> transferFunctions) {
+        this(copyOf(weights), arraysOf(bias), transferFunctions);
+    }
+
+    // Takes ownership of weights; bias is copied.
+    OffHeapPredictor(OffHeapMatrix[] weights, double[][] bias, List<ITransferFunction> transferFunctions) {
+        this.weights = weights;
+        this.bias    = new double[weights.length][];
+
+        int width = weights[0].getCols();
+        for (int layer = 0; layer < weights.length; layer++) {
+            this.bias[layer] = bias[layer].clone();
+            width = Math.max(width, weights[layer].getRows());
+        }
+
+        this.transferFunctions = List.copyOf(transferFunctions);
+        this.maxWidth          = width;
+        this.threadScratch     = ThreadLocal.withInitial(this::newScratch);
+    }
+
+    private static OffHeapMatrix[] copyOf(List<Matrix> weights) {
+        var copies = new OffHeapMatrix[weights.size()];
+        for (int layer = 0; layer < copies.length; layer++)
+            copies[layer] = OffHeapMatrix.copyOf(weights.get(layer));
+        return copies;
+    }
+
+    private static double[][] arraysOf(List<Vector> bias) {
+        var arrays = new double[bias.size()][];
+        for (int layer = 0; layer < arrays.length; layer++)
+            arrays[layer] = bias.get(layer).data;
+        return arrays;
+    }
+
+    public Scratch newScratch() {
+        return new Scratch(maxWidth);
+    }
+
+    public int getInputSize() {
+        return weights[0].getCols();
+    }
+
+    public int getOutputSize() {
+        return weights[weights.length - 1].getRows();
+    }
+
+    /**
+     * Native bytes held by the weights.
+     */
+    public long getOffHeapBytes() {
+        long bytes = 0;
+        for (var weightMatrix : weights)
+            bytes += weightMatrix.getBytes();
+        return bytes;
+    }
+
+    public Vector predict(Vector input) {
+        return predict(input, new Vector(getOutputSize()), threadScratch.get());
+    }
+
+    /**
+     * Runs the input through the network, writing the output into the
+     * given result vector.
+     */
+    public Vector predict(Vector input, Vector result, Scratch scratch) {
+        if (input.size() != getInputSize() || result.size() != getOutputSize())
+            throw new ArithmeticException("Vector size mismatch");
+
+        double[] layerOutput = scratch.front;
+        double[] layerInput  = scratch.back;
+        System.arraycopy(input.data, 0, layerOutput, 0, input.size());
+
+        for (int layer = 0; layer < weights.length; layer++) {
+            var weightMatrix = weights[layer];
+            int rows         = weightMatrix.getRows();
+
+            weightMatrix.multiply(layerOutput, layerInput);
+            Kernels.INSTANCE.axpy(1.0, bias[layer], 0, layerInput, 0, rows);
+            Kernels.INSTANCE.transfer(transferFunctions.get(layer), layerInput, layerInput, rows);
+
+            // This layer's output is the next layer's input.
+            double[] swap = layerOutput;
+            layerOutput   = layerInput;
+            layerInput    = swap;
+        }
+
+        System.arraycopy(layerOutput, 0, result.data, 0, result.size());
+        return result;
+    }
+
+    /**
+     * Releases the native memory of every layer.
+     */
+    @Override
+    public void close() {
+        for (var weightMatrix : weights)
+            weightMatrix.close();
+    }
+
+}
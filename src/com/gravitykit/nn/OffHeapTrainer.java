@@ -0,0 +1,269 @@
+package com.gravitykit.nn;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * OffHeapTrainer trains a fully connected NeuralNet with its weights, and
+ * the momentum velocity of those weights, in OffHeapMatrix storage, so a
+ * model too large for the heap trains as well as it serves from native
+ * memory. Only the biases, their velocity and the activations and deltas
+ * of one sample, all as long as a layer is wide, stay on the heap.
+ *
+ * The trainer starts from a copy of the network's weights, after which
+ * the network itself can be dropped. It runs single-sample steps with the
+ * settings of the network's SGDOptimizer or MomentumOptimizer (rate,
+ * momentum, weight decay) and the same arithmetic as NeuralNet.train.
+ * The weight gradient is never stored: each of its rows, deltas[row] *
+ * input, is folded into the update of that weight row as it is computed.
+ *
+ * freeze() serves the current weights from an off-heap copy, copyTo(nn)
+ * writes them back into a network on the heap and close() releases the
+ * native memory. A trainer must not be used by several threads at once.
+ */
+
+public final class OffHeapTrainer implements AutoCloseable {
+
+    private final OffHeapMatrix[] weights;
+    private final OffHeapMatrix[] velocity;
+    private final double[][] bias;
+    private final double[][] biasVelocity;
+    private final List<ITransferFunction> transferFunctions;
+
+    private double rate;
+    private final double momentum;
+    private final double weightDecay;
+
+    // layerOutputs[0] is the input, layerOutputs[layer + 1] the activations
+    // of layer; layerInputs and layerDeltas hold its pre-activations and
+    // deltas.
+    private final double[][] layerInputs;
+    private final double[][] layerOutputs;
+    private final double[][] layerDeltas;
+
+    public OffHeapTrainer(NeuralNet nn) {
+        nn.requireDense("OffHeapTrainer");
+        for (var layer : nn.getLayers())
+            if (layer.dropout > 0)
+                throw new UnsupportedOperationException("OffHeapTrainer doesn't apply dropout");
+
+        var optimizer        = nn.getOptimizer();
+        boolean withMomentum = optimizer instanceof MomentumOptimizer;
+        if (!withMomentum && !(optimizer instanceof SGDOptimizer))
+            throw new UnsupportedOperationException("OffHeapTrainer supports SGDOptimizer and MomentumOptimizer "
+                    + "only");
+        this.momentum    = withMomentum ? ((MomentumOptimizer) optimizer).getMomentum() : 0.0;
+        this.rate        = optimizer.getRate();
+        this.weightDecay = optimizer.getWeightDecay();
+
+        var layers             = nn.getLayers();
+        int count              = layers.size();
+        this.transferFunctions = List.copyOf(nn.transferFunctions());
+        this.weights           = new OffHeapMatrix[count];
+        this.velocity          = withMomentum ? new OffHeapMatrix[count] : null;
+        this.bias              = new double[count][];
+        this.biasVelocity      = new double[count][];
+        this.layerInputs       = new double[count][];
+        this.layerOutputs      = new double[count + 1][];
+        this.layerDeltas       = new double[count][];
+
+        try {
+            layerOutputs[0] = new double[layers.get(0).getInputSize()];
+            for (int layer = 0; layer < count; layer++) {
+                var weightMatrix = layers.get(layer).weights;
+                int rows         = weightMatrix.getRows();
+
+                weights[layer] = OffHeapMatrix.copyOf(weightMatrix);
+                if (velocity != null)
+                    velocity[layer] = new OffHeapMatrix(rows, weightMatrix.getCols());
+                bias[layer]             = layers.get(layer).bias.toArray();
+                biasVelocity[layer]     = new double[rows];
+                layerInputs[layer]      = new double[rows];
+                layerOutputs[layer + 1] = new double[rows];
+                layerDeltas[layer]      = new double[rows];
+            }
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+    public void setRate(double rate) {
+        this.rate = rate;
+    }
+
+    /**
+     * Native bytes held by the weights and their velocity.
+     */
+    public long getOffHeapBytes() {
+        long bytes = 0;
+        for (int layer = 0; layer < weights.length; layer++) {
+            bytes += weights[layer].getBytes();
+            if (velocity != null)
+                bytes += velocity[layer].getBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Runs one pass over the samples, a step per sample, and returns the
+     * mean error, each measured before its step like Trainer does.
+     */
+    public double train(IErrorFunction errorFunc, List<Sample> samples) {
+        double error = 0;
+        for (int sampleIdx = 0; sampleIdx < samples.size(); sampleIdx++)
+            error += train(errorFunc, samples.get(sampleIdx));
+        return error / samples.size();
+    }
+
+    /**
+     * One step on one sample. Returns the error before the update.
+     */
+    public double train(IErrorFunction errorFunc, Sample sample) {
+        if (sample.isSparse())
+            throw new UnsupportedOperationException("OffHeapTrainer supports dense samples only");
+
+        forward(sample.getInput());
+
+        int lastLayer = weights.length - 1;
+        var desired   = sample.getDesired();
+        var output    = layerOutputs[lastLayer + 1];
+        var deltas    = layerDeltas[lastLayer];
+        if (desired.size() != output.length)
+            throw new ArithmeticException("Vector size mismatch");
+
+        double error = 0;
+        for (int idx = 0; idx < output.length; idx++) {
+            error      += errorFunc.findError(desired.data[idx], output[idx]);
+            deltas[idx] = errorFunc.derivative(desired.data[idx], output[idx]);
+        }
+        transferFunctions.get(lastLayer).derivative(layerInputs[lastLayer], output, deltas, deltas.length);
+
+        // All deltas are computed with the old weights before any update,
+        // as in NeuralNet.train.
+        for (int layer = lastLayer; layer > 0; layer--) {
+            weights[layer].transposeMultiply(layerDeltas[layer], layerDeltas[layer - 1]);
+            transferFunctions.get(layer - 1).derivative(layerInputs[layer - 1], layerOutputs[layer],
+                    layerDeltas[layer - 1], layerDeltas[layer - 1].length);
+        }
+
+        for (int layer = 0; layer <= lastLayer; layer++)
+            update(layer);
+
+        return error;
+    }
+
+    private void forward(Vector input) {
+        if (input.size() != layerOutputs[0].length)
+            throw new ArithmeticException("Vector size mismatch");
+        System.arraycopy(input.data, 0, layerOutputs[0], 0, input.size());
+
+        for (int layer = 0; layer < weights.length; layer++) {
+            int rows = weights[layer].getRows();
+            var func = transferFunctions.get(layer);
+            weights[layer].multiply(layerOutputs[layer], layerInputs[layer]);
+            Kernels.INSTANCE.axpy(1.0, bias[layer], 0, layerInputs[layer], 0, rows);
+            Kernels.INSTANCE.transfer(func, layerInputs[layer], layerOutputs[layer + 1], rows);
+        }
+    }
+
+    // The optimizer step for the weights and bias of layer, row by row with
+    // gradient row deltas[row] * input. The expressions are those of
+    // SGDOptimizer and MomentumOptimizer.update.
+    private void update(int layer) {
+        double[] input  = layerOutputs[layer];
+        double[] deltas = layerDeltas[layer];
+        double[] b      = bias[layer];
+        ByteBuffer w    = weights[layer].data();
+        int columns     = weights[layer].getCols();
+
+        if (velocity == null) {
+            double shrink = 1.0 - rate * weightDecay;
+            double alpha  = -rate;
+            for (int row = 0; row < deltas.length; row++) {
+                double delta = deltas[row];
+                int offset   = row * columns * Double.BYTES;
+                for (int colIdx = 0; colIdx < columns; colIdx++) {
+                    int at = offset + colIdx * Double.BYTES;
+                    w.putDouble(at, shrink * w.getDouble(at) + alpha * (delta * input[colIdx]));
+                }
+                b[row] += alpha * delta;
+            }
+            return;
+        }
+
+        ByteBuffer v = velocity[layer].data();
+        double[] bv  = biasVelocity[layer];
+        for (int row = 0; row < deltas.length; row++) {
+            double delta = deltas[row];
+            int offset   = row * columns * Double.BYTES;
+            for (int colIdx = 0; colIdx < columns; colIdx++) {
+                int at     = offset + colIdx * Double.BYTES;
+                double p   = w.getDouble(at);
+                double vel = momentum * v.getDouble(at) + delta * input[colIdx] + weightDecay * p;
+                v.putDouble(at, vel);
+                w.putDouble(at, p - rate * vel);
+            }
+            bv[row] = momentum * bv[row] + delta;
+            b[row] -= rate * bv[row];
+        }
+    }
+
+    /**
+     * Runs the input through the current weights.
+     */
+    public Vector predict(Vector input) {
+        forward(input);
+        return new Vector(layerOutputs[weights.length].clone());
+    }
+
+    /**
+     * A thread-safe predictor over an off-heap copy of the current weights,
+     * which stays valid after the trainer is closed.
+     */
+    public OffHeapPredictor freeze() {
+        var copies = new OffHeapMatrix[weights.length];
+        for (int layer = 0; layer < weights.length; layer++)
+            copies[layer] = OffHeapMatrix.copyOf(weights[layer]);
+        return new OffHeapPredictor(copies, bias, transferFunctions);
+    }
+
+    /**
+     * Writes the current weights and biases into nn, which must have the
+     * layout the trainer was created from.
+     */
+    public void copyTo(NeuralNet nn) {
+        var layers = nn.getLayers();
+        if (layers.size() != weights.length)
+            throw new ArithmeticException("Layer count mismatch");
+
+        for (int layer = 0; layer < weights.length; layer++) {
+            var weightMatrix = layers.get(layer).weights;
+            var offHeap      = weights[layer];
+            if (weightMatrix.getRows() != offHeap.getRows() || weightMatrix.getCols() != offHeap.getCols())
+                throw new ArithmeticException("Matrix size mismatch");
+
+            offHeap.data().asDoubleBuffer().get(weightMatrix.data, 0, weightMatrix.data.length);
+            System.arraycopy(bias[layer], 0, layers.get(layer).bias.data, 0, bias[layer].length);
+        }
+        nn.markWeightsChanged();
+    }
+
+    /**
+     * Releases the native memory of the weights and velocity.
+     */
+    @Override
+    public void close() {
+        for (int layer = 0; layer < weights.length; layer++) {
+            if (weights[layer] != null)
+                weights[layer].close();
+            if (velocity != null && velocity[layer] != null)
+                velocity[layer].close();
+        }
+    }
+
+}
@@ -0,0 +1,156 @@
+package com.gravitykit.nn;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * ParallelTrainer runs data-parallel mini-batch training on a NeuralNet.
+ *
+ * Every batch is split into one contiguous shard per worker. Each worker
+ * runs forward and backward passes over its shard in its own Workspace
+ * and accumulates the gradient there, without touching the shared
+ * weights. Once all shards are done the per-worker gradients are summed
+ * and the network's optimizer applies one averaged update to the weights
+ * and biases. The reduction and the update are parallel too: each worker
+ * owns a slice of every layer.
+ *
+ * The workspaces are sized when the trainer is created, so the network's
+ * layer layout must not change while the trainer is in use.
+ */
+
+public class ParallelTrainer implements AutoCloseable {
+
+    private final NeuralNet nn;
+    private final ForkJoinPool pool;
+    private final ArrayList<Workspace> workspaces = new ArrayList<>();
+
+    public ParallelTrainer(NeuralNet nn, int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads must be positive");
+
+        this.nn   = nn;
+        this.pool = new ForkJoinPool(threads);
+
+        for (int worker = 0; worker < threads; worker++)
+            workspaces.add(nn.newWorkspace(worker + 1));
+    }
+
+    public ParallelTrainer(NeuralNet nn) {
+        this(nn, Runtime.getRuntime().availableProcessors());
+    }
+
+    public int getThreads() {
+        return workspaces.size();
+    }
+
+    /**
+     * Trains on one batch and applies a single update averaged over its samples.
+     */
+    public void trainBatch(IErrorFunction errorFunc, List<Sample> samples) {
+        if (samples.isEmpty())
+            return;
+
+        int workers = Math.min(workspaces.size(), samples.size());
+        var tasks   = new ArrayList<Callable<Void>>(workers);
+
+        for (int worker = 0; worker < workers; worker++) {
+            var workspace = workspaces.get(worker);
+            int start     = shardStart(worker, workers, samples.size());
+            int end       = shardStart(worker + 1, workers, samples.size());
+
+            tasks.add(() -> {
+                workspace.clearGradient();
+                for (int sampleIdx = start; sampleIdx < end; sampleIdx++) {
+                    var sample = samples.get(sampleIdx);
+                    nn.forward(workspace, sample);
+                    nn.backPropagate(workspace, errorFunc, sample.getDesired());
+                    nn.accumulateGradient(workspace);
+                }
+                return null;
+            });
+        }
+
+        invokeAll(tasks);
+        reduce(workers, 1.0 / samples.size());
+    }
+
+    /**
+     * Runs the given number of passes over the samples, batchSize samples per update.
+     */
+    public void train(IErrorFunction errorFunc, int epochs, int batchSize, List<Sample> samples) {
+        for (int epoch = 0; epoch < epochs; epoch++)
+            for (int start = 0; start < samples.size(); start += batchSize)
+                trainBatch(errorFunc, samples.subList(start, Math.min(start + batchSize, samples.size())));
+    }
+
+    // Sums the first `workers` gradients into the first workspace and
+    // applies the scaled sum through the optimizer. Each task owns a slice
+    // of every layer, so no two tasks write the same element.
+    private void reduce(int workers, double scale) {
+        var layers    = nn.getLayers();
+        var optimizer = nn.getOptimizer();
+        var total     = workspaces.get(0);
+        int slices    = workspaces.size();
+        var tasks     = new ArrayList<Callable<Void>>(slices);
+
+        for (int slice = 0; slice < slices; slice++) {
+            int sliceIdx = slice;
+            tasks.add(() -> {
+                for (int layer = 0; layer < layers.size(); layer++) {
+                    double[] weightData = layers.get(layer).weights.data;
+                    double[] weightSum  = total.gradient.get(layer).data;
+                    int start = shardStart(sliceIdx, slices, weightData.length);
+                    int end   = shardStart(sliceIdx + 1, slices, weightData.length);
+                    for (int worker = 1; worker < workers; worker++) {
+                        double[] gradient = workspaces.get(worker).gradient.get(layer).data;
+                        Kernels.INSTANCE.axpy(1.0, gradient, start, weightSum, start, end - start);
+                    }
+                    optimizer.update(NeuralNet.weightSlot(layer), weightData, weightSum, scale, start, end - start);
+
+                    var layerBias    = layers.get(layer).bias;
+                    double[] biasSum = total.biasGradient.get(layer).data;
+                    start = shardStart(sliceIdx, slices, layerBias.size);
+                    end   = shardStart(sliceIdx + 1, slices, layerBias.size);
+                    for (int worker = 1; worker < workers; worker++) {
+                        double[] gradient = workspaces.get(worker).biasGradient.get(layer).data;
+                        Kernels.INSTANCE.axpy(1.0, gradient, start, biasSum, start, end - start);
+                    }
+                    optimizer.update(NeuralNet.biasSlot(layer), layerBias.data, biasSum, scale, start, end - start);
+                }
+                return null;
+            });
+        }
+
+        optimizer.beginStep();
+        invokeAll(tasks);
+        nn.markWeightsChanged();
+    }
+
+    private void invokeAll(List<Callable<Void>> tasks) {
+        for (var future : pool.invokeAll(tasks)) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+    }
+
+    private static int shardStart(int shard, int shards, int length) {
+        return (int) ((long) shard * length / shards);
+    }
+
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+
+}
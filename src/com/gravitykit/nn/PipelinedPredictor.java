@@ -0,0 +1,367 @@
+package com.gravitykit.nn;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+
+    PipelinedPredictor runs a frozen network as a pipeline, for deep
+    networks whose batches are too small to keep every core busy with
+    data parallelism.
+
+    The layers are split into contiguous stages of about equal cost and
+    every stage gets a thread of its own. predictBatch cuts the batch into
+    micro-batches and streams them through the stages, so while stage 2
+    runs its layers on micro-batch 1, stage 1 already works on micro-batch
+    2:
+
+        caller -> [channel] -> stage 0 -> [channel] -> stage 1 -> ... -> [channel] -> caller
+
+    Each channel is a bounded ring with exactly one producer and one
+    consumer, so passing a micro-batch is a plain store and a volatile
+    index update, no lock. A thread that can't go on spins briefly and
+    then parks until the thread on the other end of the channel unparks
+    it. The micro-batches and their buffers are allocated up front and
+    recycled by the caller, so a steady stream of batches allocates
+    nothing.
+
+    A stage runs its layers with Predictor.predictLayers, the same code as
+    Predictor.predictBatch, and produces the same results.
+
+    One batch streams through at a time; concurrent predictBatch calls
+    wait for each other. close() stops the stage threads, and a
+    predictBatch still running throws IllegalStateException.
+
+ */
+
+public final class PipelinedPredictor implements AutoCloseable {
+
+    // Spinning only pays off when the thread waited for has a core of its own.
+    private static final int SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 1 << 12 : 0;
+
+    // Rows [offset, offset + samples) of the batch, with the buffers they
+    // pass through. `current` is the one holding the last stage's output.
+    private static final class MicroBatch {
+        final Predictor.BatchScratch scratch;
+        int offset;
+        int samples;
+        double[] current;
+
+        MicroBatch(Predictor.BatchScratch scratch) {
+            this.scratch = scratch;
+        }
+    }
+
+    // Bounded single-producer single-consumer ring. head is only written by
+    // the consumer and tail by the producer. Each side reads the other's
+    // parked thread after moving its index, and the parked side checks the
+    // index again after publishing itself, so a wakeup can't be lost.
+    private static final class Channel {
+        private final MicroBatch[] slots;
+        private final int mask;
+        private final AtomicLong head = new AtomicLong();
+        private final AtomicLong tail = new AtomicLong();
+
+        volatile Thread parkedProducer = null;
+        volatile Thread parkedConsumer = null;
+
+        Channel(int capacity) {
+            this.slots = new MicroBatch[capacity];
+            this.mask  = capacity - 1;
+        }
+
+        boolean isEmpty() {
+            return head.get() == tail.get();
+        }
+
+        boolean isFull() {
+            return tail.get() - head.get() == slots.length;
+        }
+
+        boolean offer(MicroBatch batch) {
+            long position = tail.get();
+            if (position - head.get() == slots.length)
+                return false;
+
+            slots[(int) position & mask] = batch;
+            tail.set(position + 1);
+            var consumer = parkedConsumer;
+            if (consumer != null)
+                LockSupport.unpark(consumer);
+            return true;
+        }
+
+        MicroBatch poll() {
+            long position = head.get();
+            if (position == tail.get())
+                return null;
+
+            var batch = slots[(int) position & mask];
+            slots[(int) position & mask] = null;
+            head.set(position + 1);
+            var producer = parkedProducer;
+            if (producer != null)
+                LockSupport.unpark(producer);
+            return batch;
+        }
+    }
+
+    private final Predictor predictor;
+    private final int microBatchSize;
+    private final int[] boundaries;
+    private final Channel[] channels;
+    private final Thread[] threads;
+    private final ArrayDeque<MicroBatch> free = new ArrayDeque<>();
+
+    private volatile boolean running          = true;
+    private volatile RuntimeException failure = null;
+    private volatile Thread caller            = null;
+
+    PipelinedPredictor(Predictor predictor, int stages, int microBatchSize) {
+        if (stages < 1 || microBatchSize < 1)
+            throw new IllegalArgumentException("Stages and micro-batch size must be positive");
+
+        this.predictor      = predictor;
+        this.microBatchSize = microBatchSize;
+        this.boundaries     = partition(predictor.layers, Math.min(stages, predictor.layers.size()));
+
+        // Two micro-batches per stage in flight, one being worked on and
+        // one waiting, and at most two waiting in front of any stage.
+        int stageCount = boundaries.length - 1;
+        this.channels  = new Channel[stageCount + 1];
+        for (int idx = 0; idx <= stageCount; idx++)
+            channels[idx] = new Channel(2);
+        for (int idx = 0; idx < 2 * stageCount; idx++)
+            free.push(new MicroBatch(predictor.newBatchScratch(microBatchSize)));
+
+        this.threads = new Thread[stageCount];
+        for (int stage = 0; stage < stageCount; stage++) {
+            int stageIdx   = stage;
+            threads[stage] = new Thread(() -> runStage(stageIdx), "pipeline-stage-" + stage);
+            threads[stage].setDaemon(true);
+            threads[stage].start();
+        }
+    }
+
+    /**
+     * Splits the layers into `stages` contiguous runs so that the most
+     * expensive run is as cheap as possible. A layer costs a multiply-add
+     * per input of every output plus the transfer function per output.
+     * Returns the first layer of every stage followed by the layer count.
+     */
+    static int[] partition(List<Layer> layers, int stages) {
+        int count     = layers.size();
+        long[] prefix = new long[count + 1];
+        for (int layer = 0; layer < count; layer++)
+            prefix[layer + 1] = prefix[layer]
+                    + (long) (layers.get(layer).getFanIn() + 1) * layers.get(layer).getOutputSize();
+
+        // best[stage][layer]: the cost of the most expensive stage when the
+        // first `layer` layers make up `stage` stages, cut[stage][layer]
+        // where the last of those stages starts.
+        long[][] best = new long[stages + 1][count + 1];
+        int[][] cut   = new int[stages + 1][count + 1];
+        for (var row : best)
+            Arrays.fill(row, Long.MAX_VALUE);
+        best[0][0] = 0;
+
+        for (int stage = 1; stage <= stages; stage++)
+            for (int end = stage; end <= count; end++)
+                for (int start = stage - 1; start < end; start++) {
+                    if (best[stage - 1][start] == Long.MAX_VALUE)
+                        continue;
+
+                    long cost = Math.max(best[stage - 1][start], prefix[end] - prefix[start]);
+                    if (cost < best[stage][end]) {
+                        best[stage][end] = cost;
+                        cut[stage][end]  = start;
+                    }
+                }
+
+        int[] boundaries = new int[stages + 1];
+        boundaries[stages] = count;
+        for (int stage = stages; stage > 0; stage--)
+            boundaries[stage - 1] = cut[stage][boundaries[stage]];
+        return boundaries;
+    }
+
+    public int getInputSize() {
+        return predictor.getInputSize();
+    }
+
+    public int getOutputSize() {
+        return predictor.getOutputSize();
+    }
+
+    public int getMicroBatchSize() {
+        return microBatchSize;
+    }
+
+    /**
+     * The first layer of every stage, followed by the number of layers.
+     */
+    public int[] getStageBoundaries() {
+        return boundaries.clone();
+    }
+
+    // The ids of the stage threads, for measuring what they allocate.
+    long[] getThreadIds() {
+        long[] ids = new long[threads.length];
+        for (int stage = 0; stage < threads.length; stage++)
+            ids[stage] = threads[stage].getId();
+        return ids;
+    }
+
+    public Matrix predictBatch(Matrix inputs) {
+        return predictBatch(inputs, new Matrix(inputs.getRows(), getOutputSize()));
+    }
+
+    /**
+     * Runs a batch through the pipeline, one sample per row of inputs, and
+     * writes one output per row of result, like Predictor.predictBatch.
+     */
+    public synchronized Matrix predictBatch(Matrix inputs, Matrix result) {
+        int samples    = inputs.getRows();
+        int inputSize  = getInputSize();
+        int outputSize = getOutputSize();
+        if (inputs.getCols() != inputSize || result.getRows() != samples || result.getCols() != outputSize)
+            throw new ArithmeticException("Matrix size mismatch");
+        if (!running)
+            throw new IllegalStateException("PipelinedPredictor is closed");
+
+        var input  = channels[0];
+        var output = channels[channels.length - 1];
+        int sent   = 0;
+        int done   = 0;
+        caller     = Thread.currentThread();
+
+        // Feed micro-batches while there are free ones and collect finished
+        // ones, parking when neither is possible.
+        for (int spins = 0; done < samples; spins++) {
+            var failed = failure;
+            if (failed != null)
+                throw failed;
+            if (!running)
+                throw new IllegalStateException("PipelinedPredictor is closed");
+
+            boolean progressed = false;
+            if (sent < samples && !free.isEmpty() && !input.isFull()) {
+                var batch     = free.pop();
+                batch.offset  = sent;
+                batch.samples = Math.min(microBatchSize, samples - sent);
+                batch.current = batch.scratch.front;
+                System.arraycopy(inputs.data, sent * inputSize, batch.current, 0, batch.samples * inputSize);
+                input.offer(batch);
+                sent      += batch.samples;
+                progressed = true;
+            }
+
+            var finished = output.poll();
+            if (finished != null) {
+                System.arraycopy(finished.current, 0, result.data, finished.offset * outputSize,
+                        finished.samples * outputSize);
+                done += finished.samples;
+                free.push(finished);
+                progressed = true;
+            }
+
+            if (progressed) {
+                spins = 0;
+            } else if (spins < SPINS) {
+                Thread.onSpinWait();
+            } else {
+                boolean canSend = sent < samples && !free.isEmpty();
+                if (canSend)
+                    input.parkedProducer = caller;
+                output.parkedConsumer = caller;
+                if ((!canSend || input.isFull()) && output.isEmpty() && failure == null && running)
+                    LockSupport.park(this);
+                input.parkedProducer  = null;
+                output.parkedConsumer = null;
+            }
+        }
+
+        return result;
+    }
+
+    private void runStage(int stage) {
+        var input      = channels[stage];
+        var output     = channels[stage + 1];
+        int firstLayer = boundaries[stage];
+        int endLayer   = boundaries[stage + 1];
+
+        try {
+            while (true) {
+                var batch = take(input);
+                if (batch == null)
+                    return;
+
+                batch.current = predictor.predictLayers(firstLayer, endLayer, batch.samples, batch.current,
+                        batch.scratch);
+                if (!put(output, batch))
+                    return;
+            }
+        } catch (RuntimeException e) {
+            failure = e;
+            running = false;
+            var waiting = caller;
+            if (waiting != null)
+                LockSupport.unpark(waiting);
+        }
+    }
+
+    // The next micro-batch of the channel, or null once closed.
+    private MicroBatch take(Channel channel) {
+        for (int spins = 0; running; spins++) {
+            var batch = channel.poll();
+            if (batch != null)
+                return batch;
+
+            if (spins < SPINS) {
+                Thread.onSpinWait();
+                continue;
+            }
+            channel.parkedConsumer = Thread.currentThread();
+            if (channel.isEmpty() && running)
+                LockSupport.park(this);
+            channel.parkedConsumer = null;
+        }
+
+        return null;
+    }
+
+    // Hands the micro-batch on, false once closed.
+    private boolean put(Channel channel, MicroBatch batch) {
+        for (int spins = 0; running; spins++) {
+            if (channel.offer(batch))
+                return true;
+
+            if (spins < SPINS) {
+                Thread.onSpinWait();
+                continue;
+            }
+            channel.parkedProducer = Thread.currentThread();
+            if (channel.isFull() && running)
+                LockSupport.park(this);
+            channel.parkedProducer = null;
+        }
+
+        return false;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        for (var thread : threads)
+            LockSupport.unpark(thread);
+
+        // A predictBatch waiting for the stages fails instead of waiting forever.
+        var waiting = caller;
+        if (waiting != null)
+            LockSupport.unpark(waiting);
+    }
+
+}
@@ -0,0 +1,143 @@
+package com.gravitykit.nn;
+
+import java.util.Arrays;
+
+/**
+ * Max or average pooling over size x size windows of every channel of a
+ * channels x height x width input, moved by stride. Windows that would
+ * run past the edge are dropped. The layer has no parameters and its
+ * transfer function is the identity.
+ *
+ * Max pooling sends each delta back to the input that won its window,
+ * found again from the input, so nothing but the activations has to be
+ * kept between the forward and backward pass.
+ */
+
+public class PoolingLayer extends Layer {
+
+    public enum Mode { MAX, AVERAGE }
+
+    private final Mode mode;
+    private final int channels;
+    private final int height;
+    private final int width;
+    private final int size;
+    private final int stride;
+    private final int outputHeight;
+    private final int outputWidth;
+
+    public PoolingLayer(Mode mode, int channels, int height, int width, int size, int stride) {
+        super(new Matrix(0, 0), new Vector(0), new IdentityTransfer());
+        if (channels < 1 || size < 1 || stride < 1 || height < size || width < size)
+            throw new IllegalArgumentException("Invalid pooling shape");
+
+        this.mode         = mode;
+        this.channels     = channels;
+        this.height       = height;
+        this.width        = width;
+        this.size         = size;
+        this.stride       = stride;
+        this.outputHeight = (height - size) / stride + 1;
+        this.outputWidth  = (width - size) / stride + 1;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getStride() {
+        return stride;
+    }
+
+    public int getOutputHeight() {
+        return outputHeight;
+    }
+
+    public int getOutputWidth() {
+        return outputWidth;
+    }
+
+    @Override
+    public int getInputSize() {
+        return channels * height * width;
+    }
+
+    @Override
+    public int getOutputSize() {
+        return channels * outputHeight * outputWidth;
+    }
+
+    @Override
+    public PoolingLayer copy() {
+        return new PoolingLayer(mode, channels, height, width, size, stride);
+    }
+
+    @Override
+    void forward(double[] input, double[] output, double[] scratch) {
+        int outputIdx = 0;
+        for (int channel = 0; channel < channels; channel++)
+            for (int outY = 0; outY < outputHeight; outY++)
+                for (int outX = 0; outX < outputWidth; outX++, outputIdx++) {
+                    int corner = (channel * height + outY * stride) * width + outX * stride;
+                    output[outputIdx] = mode == Mode.MAX
+                            ? input[winner(input, corner)]
+                            : windowSum(input, corner) / (size * size);
+                }
+    }
+
+    @Override
+    void backward(double[] input, double[] deltas, double[] inputDeltas, double[] scratch) {
+        Arrays.fill(inputDeltas, 0, getInputSize(), 0.0);
+
+        int outputIdx = 0;
+        for (int channel = 0; channel < channels; channel++)
+            for (int outY = 0; outY < outputHeight; outY++)
+                for (int outX = 0; outX < outputWidth; outX++, outputIdx++) {
+                    int corner = (channel * height + outY * stride) * width + outX * stride;
+                    if (mode == Mode.MAX) {
+                        inputDeltas[winner(input, corner)] += deltas[outputIdx];
+                        continue;
+                    }
+
+                    double share = deltas[outputIdx] / (size * size);
+                    for (int rowIdx = 0; rowIdx < size; rowIdx++)
+                        for (int colIdx = 0; colIdx < size; colIdx++)
+                            inputDeltas[corner + rowIdx * width + colIdx] += share;
+                }
+    }
+
+    @Override
+    void gradient(double[] input, double[] deltas, double[] weightGradient, double[] biasGradient,
+            boolean accumulate, double[] scratch) {}
+
+    // Index of the largest input in the window at corner, the first on ties.
+    private int winner(double[] input, int corner) {
+        int best = corner;
+        for (int rowIdx = 0; rowIdx < size; rowIdx++)
+            for (int colIdx = 0; colIdx < size; colIdx++) {
+                int idx = corner + rowIdx * width + colIdx;
+                if (input[idx] > input[best])
+                    best = idx;
+            }
+
+        return best;
+    }
+
+    private double windowSum(double[] input, int corner) {
+        double sum = 0;
+        for (int rowIdx = 0; rowIdx < size; rowIdx++)
+            for (int colIdx = 0; colIdx < size; colIdx++)
+                sum += input[corner + rowIdx * width + colIdx];
+
+        return sum;
+    }
+
+}
@@ -0,0 +1,233 @@
+package com.gravitykit.nn;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Predictor is an immutable inference view of a trained NeuralNet,
+ * created with NeuralNet.freeze(). It owns copies of the weights and
+ * biases taken at freeze time, so later training doesn't affect it,
+ * and predict() has no side effects on shared state. Any number of
+ * threads may call it concurrently without locking.
+ *
+ * Intermediate activations are kept in a Scratch. predict(Vector) uses a
+ * per-thread one; callers that run on many short-lived threads (virtual
+ * threads, for example) should hold their own Scratch and pass it in.
+ */
+
+public final class Predictor {
+
+    /**
+     * Ping-pong buffers wide enough for the widest layer, and the scratch
+     * the layers need. A Scratch must not be shared between threads that
+     * predict at the same time.
+     */
+    public static final class Scratch {
+        private final double[] front;
+        private final double[] back;
+        private final double[] layer;
+
+        private Scratch(int width, int layerScratch) {
+            this.front = new double[width];
+            this.back  = new double[width];
+            this.layer = new double[layerScratch];
+        }
+    }
+
+    /**
+     * Buffers for predictBatch, sized for up to `capacity` samples. Like a
+     * Scratch, a BatchScratch must not be used by two calls at once.
+     */
+    public static final class BatchScratch {
+        final double[] front;
+        final double[] back;
+        private final double[] row;
+        private final double[] rowOutput;
+        private final double[] layer;
+        private final int capacity;
+
+        private BatchScratch(int width, int layerScratch, int capacity) {
+            this.front     = new double[width * capacity];
+            this.back      = new double[width * capacity];
+            this.row       = new double[width];
+            this.rowOutput = new double[width];
+            this.layer     = new double[layerScratch];
+            this.capacity  = capacity;
+        }
+    }
+
+    final List<Layer> layers;
+    private final int maxWidth;
+    private final int maxScratch;
+    private final ThreadLocal<Scratch> threadScratch;
+
+    Predictor(List<Layer> layers) {
+        var copies  = new ArrayList<Layer>(layers.size());
+        int width   = layers.get(0).getInputSize();
+        int scratch = 0;
+
+        for (var layer : layers) {
+            copies.add(layer.copy());
+            width   = Math.max(width, layer.getOutputSize());
+            scratch = Math.max(scratch, layer.getScratchSize());
+        }
+
+        this.layers        = List.copyOf(copies);
+        this.maxWidth      = width;
+        this.maxScratch    = scratch;
+        this.threadScratch = ThreadLocal.withInitial(this::newScratch);
+    }
+
+    public Scratch newScratch() {
+        return new Scratch(maxWidth, maxScratch);
+    }
+
+    public BatchScratch newBatchScratch(int capacity) {
+        return new BatchScratch(maxWidth, maxScratch, capacity);
+    }
+
+    public int getInputSize() {
+        return layers.get(0).getInputSize();
+    }
+
+    public int getOutputSize() {
+        return layers.get(layers.size() - 1).getOutputSize();
+    }
+
+    public Vector predict(Vector input) {
+        return predict(input, new Vector(getOutputSize()), threadScratch.get());
+    }
+
+    /**
+     * Runs the input through the frozen network, writing the output into
+     * the given result vector. Neither input nor scratch outlive the call.
+     */
+    public Vector predict(Vector input, Vector result, Scratch scratch) {
+        if (input.size() != getInputSize() || result.size() != getOutputSize())
+            throw new ArithmeticException("Vector size mismatch");
+
+        System.arraycopy(input.data, 0, scratch.front, 0, input.size());
+        double[] output = predictLayers(0, scratch);
+        System.arraycopy(output, 0, result.data, 0, result.size());
+        return result;
+    }
+
+    public Vector predict(SparseVector input) {
+        return predict(input, new Vector(getOutputSize()), threadScratch.get());
+    }
+
+    /**
+     * Like predict(Vector, Vector, Scratch), but the first layer only
+     * reads the weight columns of the nonzero inputs.
+     */
+    public Vector predict(SparseVector input, Vector result, Scratch scratch) {
+        if (input.size() != getInputSize() || result.size() != getOutputSize())
+            throw new ArithmeticException("Vector size mismatch");
+        if (!(layers.get(0) instanceof DenseLayer))
+            throw new UnsupportedOperationException("Sparse inputs need a fully connected first layer");
+
+        var weightMatrix     = layers.get(0).weights;
+        var biasVector       = layers.get(0).bias;
+        int rows             = weightMatrix.getRows();
+        int columns          = weightMatrix.getCols();
+        double[] layerOutput = scratch.front;
+
+        for (int row = 0; row < rows; row++)
+            layerOutput[row] = Kernels.INSTANCE.dot(weightMatrix.data, row * columns, input.indices, input.values,
+                    input.nonZeros) + biasVector.data[row];
+        Kernels.INSTANCE.transfer(layers.get(0).transfer, layerOutput, layerOutput, rows);
+
+        double[] output = predictLayers(1, scratch);
+        System.arraycopy(output, 0, result.data, 0, result.size());
+        return result;
+    }
+
+    // Runs the layers from firstLayer on, with their input in scratch.front,
+    // and returns the buffer holding the output.
+    private double[] predictLayers(int firstLayer, Scratch scratch) {
+        double[] layerOutput = scratch.front;
+        double[] layerInput  = scratch.back;
+
+        for (int layerIdx = firstLayer; layerIdx < layers.size(); layerIdx++) {
+            var layer = layers.get(layerIdx);
+            int rows  = layer.getOutputSize();
+
+            layer.forward(layerOutput, layerInput, scratch.layer);
+            Kernels.INSTANCE.transfer(layer.transfer, layerInput, layerInput, rows);
+
+            // This layer's output is the next layer's input.
+            double[] swap = layerOutput;
+            layerOutput   = layerInput;
+            layerInput    = swap;
+        }
+
+        return layerOutput;
+    }
+
+    /**
+     * Runs a batch through the frozen network, one sample per row of
+     * inputs, and writes one output per row of result. Every layer is a
+     * single matrix-matrix product over the batch, so each weight row is
+     * loaded once per batch rather than once per sample. Other layer types
+     * run sample by sample.
+     */
+    public Matrix predictBatch(Matrix inputs, Matrix result, BatchScratch scratch) {
+        int samples = inputs.getRows();
+        if (inputs.getCols() != getInputSize() || result.getRows() != samples || result.getCols() != getOutputSize())
+            throw new ArithmeticException("Matrix size mismatch");
+        if (samples > scratch.capacity)
+            throw new IllegalArgumentException("Batch of " + samples + " exceeds the scratch capacity " + scratch.capacity);
+
+        System.arraycopy(inputs.data, 0, scratch.front, 0, samples * getInputSize());
+        double[] output = predictLayers(0, layers.size(), samples, scratch.front, scratch);
+        System.arraycopy(output, 0, result.data, 0, samples * getOutputSize());
+        return result;
+    }
+
+    // Runs layers [firstLayer, endLayer) over the samples rows of
+    // layerOutput, which is scratch.front or scratch.back, and returns the
+    // buffer holding their output. PipelinedPredictor runs each of its
+    // stages through here.
+    double[] predictLayers(int firstLayer, int endLayer, int samples, double[] layerOutput, BatchScratch scratch) {
+        double[] layerInput = layerOutput == scratch.front ? scratch.back : scratch.front;
+
+        for (int layerIdx = firstLayer; layerIdx < endLayer; layerIdx++) {
+            var layer   = layers.get(layerIdx);
+            var func    = layer.transfer;
+            int rows    = layer.getOutputSize();
+            int columns = layer.getInputSize();
+
+            if (layer instanceof DenseLayer) {
+                // (samples x cols) * transpose(rows x cols) = samples x rows
+                Matrix.multiplyTranspose(layerOutput, layer.weights.data, layerInput, samples, columns, rows, false);
+
+                for (int sampleIdx = 0; sampleIdx < samples; sampleIdx++)
+                    Kernels.INSTANCE.axpy(1.0, layer.bias.data, 0, layerInput, sampleIdx * rows, rows);
+            } else {
+                for (int sampleIdx = 0; sampleIdx < samples; sampleIdx++) {
+                    System.arraycopy(layerOutput, sampleIdx * columns, scratch.row, 0, columns);
+                    layer.forward(scratch.row, scratch.rowOutput, scratch.layer);
+                    System.arraycopy(scratch.rowOutput, 0, layerInput, sampleIdx * rows, rows);
+                }
+            }
+
+            if (func.isElementwise()) {
+                Kernels.INSTANCE.transfer(func, layerInput, layerInput, samples * rows);
+            } else {
+                for (int sampleIdx = 0; sampleIdx < samples; sampleIdx++) {
+                    System.arraycopy(layerInput, sampleIdx * rows, scratch.row, 0, rows);
+                    Kernels.INSTANCE.transfer(func, scratch.row, scratch.row, rows);
+                    System.arraycopy(scratch.row, 0, layerInput, sampleIdx * rows, rows);
+                }
+            }
+
+            // This layer's output is the next layer's input.
+            double[] swap = layerOutput;
+            layerOutput   = layerInput;
+            layerInput    = swap;
+        }
+
+        return layerOutput;
+    }
+
+}
@@ -0,0 +1,121 @@
+package com.gravitykit.nn;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * PrefetchingSampleSource reads ahead from another source on a background
+ * thread, so parsing and disk I/O overlap with training. At most capacity
+ * samples are buffered; the reader blocks when the buffer is full.
+ *
+ * reset() and close() stop the reader with a flag and by draining the
+ * buffer, never by interrupting it: an interrupt during a read from a
+ * FileChannel would close the channel under the source.
+ */
+
+public class PrefetchingSampleSource implements ISampleSource {
+
+    // Queued after the last sample, or with the failure that stopped the reader.
+    private static final class End {
+        final IOException failure;
+
+        End(IOException failure) {
+            this.failure = failure;
+        }
+    }
+
+    private final ISampleSource source;
+    private final int capacity;
+    private ArrayBlockingQueue<Object> queue;
+    private Thread reader;
+    private volatile boolean stopping;
+    private End end;
+
+    public PrefetchingSampleSource(ISampleSource source, int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive");
+
+        this.source   = source;
+        this.capacity = capacity;
+        start();
+    }
+
+    private void start() {
+        var queue     = new ArrayBlockingQueue<Object>(capacity);
+        this.queue    = queue;
+        this.end      = null;
+        this.stopping = false;
+
+        // Checking the flag before every put means at most one put follows
+        // stop(), and the queue has just been drained to make room for it.
+        reader = new Thread(() -> {
+            IOException failure = null;
+            try {
+                for (Sample sample = source.next(); sample != null && !stopping; sample = source.next())
+                    queue.put(sample);
+            } catch (IOException e) {
+                failure = e;
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            try {
+                if (!stopping)
+                    queue.put(new End(failure));
+            } catch (InterruptedException e) {
+                // Nobody reads the end marker of an interrupted reader.
+            }
+        }, "sample-prefetch");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void stop() throws IOException {
+        stopping = true;
+        queue.clear();
+        try {
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    @Override
+    public Sample next() throws IOException {
+        if (end != null)
+            return null;
+
+        Object item;
+        try {
+            item = queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+
+        if (item instanceof End) {
+            end = (End) item;
+            if (end.failure != null)
+                throw end.failure;
+            return null;
+        }
+
+        return (Sample) item;
+    }
+
+    @Override
+    public void reset() throws IOException {
+        stop();
+        source.reset();
+        start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        stop();
+        source.close();
+    }
+
+}
@@ -0,0 +1,220 @@
+package com.gravitykit.nn;
+
+import java.util.List;
+
+/**
+ * QuantizedPredictor is a post-training int8 inference engine for a
+ * trained NeuralNet, created with NeuralNet.freezeInt8().
+ *
+ * Each weight layer is quantized asymmetrically with its own scale and
+ * zero point, real = scale * (q - zeroPoint), over the range of that
+ * layer's weights. The activations feeding each layer are quantized the
+ * same way at prediction time from their own range, so no calibration
+ * data is needed. The GEMV multiplies int8 by int8 and accumulates in
+ * int32:
+ *
+ *     sum((qw - zw) * (qa - za)) = sum(qw * qa) - za * sum(qw)
+ *                                  - zw * sum(qa) + n * zw * za
+ *
+ * sum(qw) is precomputed per row, so the inner loop is the plain
+ * sum(qw * qa). The int32 arithmetic wraps, so only the total has to fit.
+ * Each of its terms can reach 255 * 255, which bounds layers to
+ * MAX_INPUTS = 33025 inputs; wider ones are rejected. Biases stay in
+ * float and the transfer functions run in double on the dequantized
+ * values.
+ *
+ * Like Predictor it is immutable and safe to share between threads.
+ */
+
+public final class QuantizedPredictor {
+
+    /**
+     * The widest layer input whose accumulator can't overflow int32.
+     */
+    public static final int MAX_INPUTS = Integer.MAX_VALUE / (255 * 255);
+
+    /**
+     * Buffers wide enough for the widest layer. A Scratch must not be
+     * shared between threads that predict at the same time.
+     */
+    public static final class Scratch {
+        private final byte[] quantized;
+        private final double[] values;
+
+        private Scratch(int width) {
+            this.quantized = new byte[width];
+            this.values    = new double[width];
+        }
+    }
+
+    private final byte[][] weights;
+    private final float[] weightScale;
+    private final int[] weightZeroPoint;
+    private final int[][] rowSums;
+    private final float[][] bias;
+    private final int[] layerSizes;
+    private final List<ITransferFunction> transferFunctions;
+    private final int maxWidth;
+    private final ThreadLocal<Scratch> threadScratch;
+
+    QuantizedPredictor(List<Matrix> weights, List<Vector> bias, List<ITransferFunction> transferFunctions) {
+        int layers           = weights.size();
+        this.weights         = new byte[layers][];
+        this.weightScale     = new float[layers];
+        this.weightZeroPoint = new int[layers];
+        this.rowSums         = new int[layers][];
+        this.bias            = new float[layers][];
+        this.layerSizes      = new int[layers + 1];
+
+        layerSizes[0] = weights.get(0).getCols();
+        int width     = layerSizes[0];
+        for (int layer = 0; layer < layers; layer++) {
+            var weightMatrix = weights.get(layer);
+            int rows         = weightMatrix.getRows();
+            int cols         = weightMatrix.getCols();
+            double[] data    = weightMatrix.data;
+            if (cols > MAX_INPUTS)
+                throw new UnsupportedOperationException("int8 layers take at most " + MAX_INPUTS + " inputs, layer "
+                        + layer + " has " + cols);
+
+            double scale  = scale(data, data.length);
+            int zeroPoint = zeroPoint(data, data.length, scale);
+            byte[] quantized = new byte[data.length];
+            quantize(data, quantized, data.length, scale, zeroPoint);
+
+            int[] sums = new int[rows];
+            for (int row = 0; row < rows; row++)
+                for (int col = 0; col < cols; col++)
+                    sums[row] += quantized[row * cols + col];
+
+            float[] biasData = new float[rows];
+            for (int row = 0; row < rows; row++)
+                biasData[row] = (float) bias.get(layer).data[row];
+
+            this.weights[layer]         = quantized;
+            this.weightScale[layer]     = (float) scale;
+            this.weightZeroPoint[layer] = zeroPoint;
+            this.rowSums[layer]         = sums;
+            this.bias[layer]            = biasData;
+            layerSizes[layer + 1]       = rows;
+            width = Math.max(width, rows);
+        }
+
+        this.transferFunctions = List.copyOf(transferFunctions);
+        this.maxWidth          = width;
+        this.threadScratch     = ThreadLocal.withInitial(this::newScratch);
+    }
+
+    // The quantized range always covers 0 so that zero is exact.
+    private static double scale(double[] values, int length) {
+        double min = 0, max = 0;
+        for (int idx = 0; idx < length; idx++) {
+            min = Math.min(min, values[idx]);
+            max = Math.max(max, values[idx]);
+        }
+
+        return max > min ? (max - min) / 255.0 : 1.0;
+    }
+
+    private static int zeroPoint(double[] values, int length, double scale) {
+        double min = 0;
+        for (int idx = 0; idx < length; idx++)
+            min = Math.min(min, values[idx]);
+
+        return (int) Math.max(-128, Math.min(127, Math.round(-128 - min / scale)));
+    }
+
+    private static void quantize(double[] values, byte[] quantized, int length, double scale, int zeroPoint) {
+        double inverse = 1.0 / scale;
+        for (int idx = 0; idx < length; idx++) {
+            long value = Math.round(values[idx] * inverse) + zeroPoint;
+            quantized[idx] = (byte) Math.max(-128, Math.min(127, value));
+        }
+    }
+
+    public Scratch newScratch() {
+        return new Scratch(maxWidth);
+    }
+
+    public int getInputSize() {
+        return layerSizes[0];
+    }
+
+    public int getOutputSize() {
+        return layerSizes[layerSizes.length - 1];
+    }
+
+    /**
+     * Bytes held by the quantized weights, row sums and biases.
+     */
+    public long getModelBytes() {
+        long bytes = 0;
+        for (int layer = 0; layer < weights.length; layer++)
+            bytes += weights[layer].length + (long) Integer.BYTES * rowSums[layer].length
+                    + (long) Float.BYTES * bias[layer].length;
+        return bytes;
+    }
+
+    public Vector predict(Vector input) {
+        if (input.size() != getInputSize())
+            throw new ArithmeticException("Vector size mismatch");
+
+        var scratch = threadScratch.get();
+        System.arraycopy(input.data, 0, scratch.values, 0, input.size());
+        predict(scratch);
+
+        var result = new Vector(getOutputSize());
+        System.arraycopy(scratch.values, 0, result.data, 0, result.size());
+        return result;
+    }
+
+    /**
+     * Runs the input through the network and writes the output into result.
+     */
+    public void predict(float[] input, float[] result, Scratch scratch) {
+        if (input.length < getInputSize() || result.length < getOutputSize())
+            throw new ArithmeticException("Vector size mismatch");
+
+        for (int idx = 0; idx < getInputSize(); idx++)
+            scratch.values[idx] = input[idx];
+        predict(scratch);
+        for (int idx = 0; idx < getOutputSize(); idx++)
+            result[idx] = (float) scratch.values[idx];
+    }
+
+    // Runs the network on scratch.values in place.
+    private void predict(Scratch scratch) {
+        var kernels        = Kernels.INSTANCE;
+        byte[] activations = scratch.quantized;
+        double[] values    = scratch.values;
+
+        for (int layer = 0; layer < weights.length; layer++) {
+            int rows = layerSizes[layer + 1];
+            int cols = layerSizes[layer];
+
+            // Quantize this layer's input from its own range.
+            double inputScale  = scale(values, cols);
+            int inputZeroPoint = zeroPoint(values, cols, inputScale);
+            quantize(values, activations, cols, inputScale, inputZeroPoint);
+
+            int activationSum = 0;
+            for (int col = 0; col < cols; col++)
+                activationSum += activations[col];
+
+            byte[] weightData = weights[layer];
+            int[] sums        = rowSums[layer];
+            float[] biasData  = bias[layer];
+            int zeroPoint     = weightZeroPoint[layer];
+            int offset        = cols * zeroPoint * inputZeroPoint - zeroPoint * activationSum;
+            double scale      = weightScale[layer] * inputScale;
+
+            for (int row = 0; row < rows; row++) {
+                int accumulator = kernels.dot(weightData, row * cols, activations, 0, cols);
+                accumulator    += offset - inputZeroPoint * sums[row];
+                values[row]     = scale * accumulator + biasData[row];
+            }
+            kernels.transfer(transferFunctions.get(layer), values, values, rows);
+        }
+    }
+
+}
@@ -0,0 +1,77 @@
+package com.gravitykit.nn;
+
+import java.util.List;
+
+/**
+ * RMSProp divides each step by a running average of the squared
+ * gradient, so every parameter gets its own step size:
+ *
+ *     s = decay * s + (1 - decay) * g^2
+ *     p -= rate * g / (sqrt(s) + epsilon)
+ *
+ * With weight decay, g includes weightDecay * p for the weights.
+ */
+
+public class RMSPropOptimizer implements IOptimizer {
+
+    private double rate;
+    private final double decay;
+    private final double epsilon;
+    private double[][] meanSquare;
+    private double weightDecay = 0.0;
+
+    public RMSPropOptimizer(double rate, double decay, double epsilon) {
+        this.rate    = rate;
+        this.decay   = decay;
+        this.epsilon = epsilon;
+    }
+
+    public RMSPropOptimizer(double rate) {
+        this(rate, 0.9, 1e-8);
+    }
+
+    @Override
+    public double getRate() {
+        return rate;
+    }
+
+    @Override
+    public void setRate(double rate) {
+        this.rate = rate;
+    }
+
+    @Override
+    public double getWeightDecay() {
+        return weightDecay;
+    }
+
+    @Override
+    public void setWeightDecay(double weightDecay) {
+        if (weightDecay < 0)
+            throw new IllegalArgumentException("Weight decay must not be negative");
+        this.weightDecay = weightDecay;
+    }
+
+    @Override
+    public void allocate(int[] slotSizes) {
+        meanSquare = new double[slotSizes.length][];
+        for (int slot = 0; slot < slotSizes.length; slot++)
+            meanSquare[slot] = new double[slotSizes[slot]];
+    }
+
+    @Override
+    public List<double[]> getState() {
+        return List.of(meanSquare);
+    }
+
+    @Override
+    public void update(int slot, double[] parameters, double[] gradient, double scale, int offset, int length) {
+        double[] s = meanSquare[slot];
+        double l2  = NeuralNet.isWeightSlot(slot) ? weightDecay : 0.0;
+        for (int idx = offset; idx < offset + length; idx++) {
+            double g = scale * gradient[idx] + l2 * parameters[idx];
+            s[idx] = decay * s[idx] + (1 - decay) * g * g;
+            parameters[idx] -= rate * g / (Math.sqrt(s[idx]) + epsilon);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.gravitykit.nn;
+
+public class ReLUTransfer implements ITransferFunction {
+
+    @Override
+    public double calculate(double input) {
+        return Math.max(0.0, input);
+    }
+
+    @Override
+    public double derivative(double atValue) {
+        return atValue > 0 ? 1.0 : 0.0;
+    }
+
+    @Override
+    public void calculate(double[] in, double[] out, int length) {
+        for (int idx = 0; idx < length; idx++)
+            out[idx] = Math.max(0.0, in[idx]);
+    }
+
+    @Override
+    public void derivative(double[] in, double[] out, double[] gradient, int length) {
+        for (int idx = 0; idx < length; idx++)
+            if (out[idx] <= 0)
+                gradient[idx] = 0;
+    }
+
+    @Override
+    public void derivative(double[] in, double[] out, double[] gradient, int length, long[] mask, double keep) {
+        double scale = 1.0 / keep;
+        for (int idx = 0; idx < length; idx++)
+            gradient[idx] = Dropout.isKept(mask, idx) && out[idx] > 0 ? gradient[idx] * scale : 0.0;
+    }
+}
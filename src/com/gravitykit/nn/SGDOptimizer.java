@@ -0,0 +1,70 @@
+package com.gravitykit.nn;
+
+/**
+ * Plain stochastic gradient descent: p -= rate * g. With weight decay, g
+ * includes weightDecay * p for the weights, which shrinks them by
+ * 1 - rate * weightDecay in the same pass.
+ */
+
+public class SGDOptimizer implements IOptimizer {
+
+    private double rate;
+    private double weightDecay = 0.0;
+
+    public SGDOptimizer(double rate) {
+        this.rate = rate;
+    }
+
+    @Override
+    public double getRate() {
+        return rate;
+    }
+
+    @Override
+    public void setRate(double rate) {
+        this.rate = rate;
+    }
+
+    @Override
+    public double getWeightDecay() {
+        return weightDecay;
+    }
+
+    @Override
+    public void setWeightDecay(double weightDecay) {
+        if (weightDecay < 0)
+            throw new IllegalArgumentException("Weight decay must not be negative");
+        this.weightDecay = weightDecay;
+    }
+
+    @Override
+    public void allocate(int[] slotSizes) {}
+
+    @Override
+    public void update(int slot, double[] parameters, double[] gradient, double scale, int offset, int length) {
+        double decay = NeuralNet.isWeightSlot(slot) ? weightDecay : 0.0;
+        if (decay == 0.0) {
+            Kernels.INSTANCE.axpy(-rate * scale, gradient, offset, parameters, offset, length);
+            return;
+        }
+
+        double shrink = 1.0 - rate * decay;
+        double alpha  = -rate * scale;
+        for (int idx = offset; idx < offset + length; idx++)
+            parameters[idx] = shrink * parameters[idx] + alpha * gradient[idx];
+    }
+
+    @Override
+    public void updateColumns(int slot, double[] parameters, double[] gradient, double scale, int rows, int columns,
+            int[] columnIndices, int count) {
+        double shrink = 1.0 - rate * (NeuralNet.isWeightSlot(slot) ? weightDecay : 0.0);
+        double alpha  = -rate * scale;
+        for (int row = 0; row < rows; row++) {
+            int offset = row * columns;
+            for (int idx = 0; idx < count; idx++) {
+                int col = offset + columnIndices[idx];
+                parameters[col] = shrink * parameters[col] + alpha * gradient[col];
+            }
+        }
+    }
+}
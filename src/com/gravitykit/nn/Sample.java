@@ -2,12 +2,14 @@ package com.gravitykit.nn;
 
 /**
  * Sample implements a pair which combines sample input to the
- * network along with its solution.
+ * network along with its solution. The input is either a dense Vector
+ * or a SparseVector.
  */
 
 public class Sample {
 
     private Vector input;
+    private SparseVector sparseInput;
     private Vector desired;
 
     public Sample(Vector input, Vector desired) {
@@ -20,8 +22,29 @@ public class Sample {
         this.desired = new Vector(desired);
     }
 
+    public Sample(SparseVector input, Vector desired) {
+        this.sparseInput = input;
+        this.desired     = desired;
+    }
+
+    /**
+     * The input as a dense vector. For a sparse sample this allocates a
+     * dense copy on every call; training and simulation use the sparse
+     * input directly.
+     */
     public Vector getInput() {
-        return this.input;
+        return this.sparseInput != null ? this.sparseInput.toDense() : this.input;
+    }
+
+    public boolean isSparse() {
+        return this.sparseInput != null;
+    }
+
+    /**
+     * The sparse input, or null for a dense sample.
+     */
+    public SparseVector getSparseInput() {
+        return this.sparseInput;
     }
 
     public Vector getDesired() {
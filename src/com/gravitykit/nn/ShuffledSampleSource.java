@@ -0,0 +1,79 @@
+package com.gravitykit.nn;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * ShuffledSampleSource shuffles another source within a sliding window.
+ * It keeps window samples buffered and returns a random one of them,
+ * refilling its slot from the source. Larger windows give an order closer
+ * to a full shuffle at the cost of memory; no more than window samples
+ * are ever held.
+ */
+
+public class ShuffledSampleSource implements ISampleSource {
+
+    private final ISampleSource source;
+    private final Sample[] window;
+    private SplittableRandom random;
+    private int buffered;
+    private boolean exhausted;
+
+    public ShuffledSampleSource(ISampleSource source, int window, long seed) {
+        if (window < 1)
+            throw new IllegalArgumentException("window must be positive");
+
+        this.source = source;
+        this.window = new Sample[window];
+        this.random = new SplittableRandom(seed);
+    }
+
+    @Override
+    public Sample next() throws IOException {
+        // Fill the window on first use after construction or reset.
+        while (!exhausted && buffered < window.length) {
+            var sample = source.next();
+            if (sample == null)
+                exhausted = true;
+            else
+                window[buffered++] = sample;
+        }
+
+        if (buffered == 0)
+            return null;
+
+        int idx    = random.nextInt(buffered);
+        var sample = window[idx];
+        var refill = exhausted ? null : source.next();
+
+        if (refill != null) {
+            window[idx] = refill;
+        } else {
+            // Source exhausted: drain the window by moving the last sample into the gap.
+            exhausted   = true;
+            window[idx] = window[--buffered];
+            window[buffered] = null;
+        }
+
+        return sample;
+    }
+
+    /**
+     * Rewinds the source. Each epoch uses a different order, derived from the seed.
+     */
+    @Override
+    public void reset() throws IOException {
+        source.reset();
+        Arrays.fill(window, null);
+        buffered  = 0;
+        exhausted = false;
+        random    = random.split();
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+
+}
@@ -9,6 +9,22 @@ public class SigmoidTransfer implements ITransferFunction {
 
     @Override
     public double derivative(double atValue) {
-        return calculate(atValue) * (1 - calculate(atValue));
+        double value = calculate(atValue);
+        return value * (1 - value);
+    }
+
+    @Override
+    public void derivative(double[] in, double[] out, double[] gradient, int length) {
+        for (int idx = 0; idx < length; idx++)
+            gradient[idx] *= out[idx] * (1 - out[idx]);
+    }
+
+    @Override
+    public void derivative(double[] in, double[] out, double[] gradient, int length, long[] mask, double keep) {
+        double scale = 1.0 / keep;
+        for (int idx = 0; idx < length; idx++) {
+            double value  = out[idx] * keep;
+            gradient[idx] = Dropout.isKept(mask, idx) ? gradient[idx] * scale * (value * (1 - value)) : 0.0;
+        }
     }
 }
@@ -0,0 +1,49 @@
+package com.gravitykit.nn;
+
+/**
+ * Softmax over a whole layer: out[i] = exp(in[i]) / sum(exp(in[j])).
+ * The outputs sum to 1, so it is meant for the output layer of a
+ * classifier. It has no per-element form; only the array methods work.
+ */
+
+public class SoftmaxTransfer implements ITransferFunction {
+
+    @Override
+    public double calculate(double input) {
+        throw new UnsupportedOperationException("Softmax is only defined over a whole layer");
+    }
+
+    @Override
+    public double derivative(double atValue) {
+        throw new UnsupportedOperationException("Softmax is only defined over a whole layer");
+    }
+
+    @Override
+    public void calculate(double[] in, double[] out, int length) {
+        // Subtracting the maximum keeps exp() from overflowing.
+        double max = Double.NEGATIVE_INFINITY;
+        for (int idx = 0; idx < length; idx++)
+            max = Math.max(max, in[idx]);
+
+        double sum = 0;
+        for (int idx = 0; idx < length; idx++) {
+            out[idx] = Math.exp(in[idx] - max);
+            sum += out[idx];
+        }
+
+        Kernels.INSTANCE.scale(1.0 / sum, out, 0, out, 0, length);
+    }
+
+    @Override
+    public void derivative(double[] in, double[] out, double[] gradient, int length) {
+        // Jacobian-vector product: g[i] = y[i] * (g[i] - sum(y[j] * g[j])).
+        double weighted = Kernels.INSTANCE.dot(out, 0, gradient, 0, length);
+        for (int idx = 0; idx < length; idx++)
+            gradient[idx] = out[idx] * (gradient[idx] - weighted);
+    }
+
+    @Override
+    public boolean isElementwise() {
+        return false;
+    }
+}
@@ -0,0 +1,127 @@
+package com.gravitykit.nn;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/*
+
+    SparseVector stores only the nonzero elements of a vector, as two
+    parallel arrays: strictly increasing indices and their values. It is
+    meant for wide, mostly-zero network inputs such as one-hot and
+    bag-of-features encodings.
+
+    Example:
+
+        // 100 000 wide, nonzero at 3 and 70 001
+        SparseVector features = new SparseVector(100_000,
+                new int[] {3, 70_001}, new double[] {1.0, 0.5});
+
+        nn.simulate(features);
+
+    Fed to a network, only the first-layer weight columns of the nonzero
+    indices are read by the forward pass and written by train(), so the
+    cost of the first layer scales with the nonzeros, not the width.
+
+    A SparseVector is immutable.
+
+ */
+
+public final class SparseVector {
+
+    final int size;
+    final int[] indices;
+    final double[] values;
+    final int nonZeros;
+
+    /**
+     * Copies the given nonzeros. The indices must be strictly increasing
+     * and smaller than size.
+     */
+    public SparseVector(int size, int[] indices, double[] values) {
+        if (indices.length != values.length)
+            throw new ArithmeticException("Index and value counts differ");
+
+        for (int idx = 0; idx < indices.length; idx++) {
+            Objects.checkIndex(indices[idx], size);
+            if (idx > 0 && indices[idx] <= indices[idx - 1])
+                throw new IllegalArgumentException("Indices must be strictly increasing");
+        }
+
+        this.size     = size;
+        this.indices  = indices.clone();
+        this.values   = values.clone();
+        this.nonZeros = indices.length;
+    }
+
+    /**
+     * Keeps the nonzero elements of a dense vector.
+     */
+    public static SparseVector fromDense(Vector dense) {
+        int count = 0;
+        for (int idx = 0; idx < dense.size; idx++)
+            if (dense.data[idx] != 0.0)
+                count++;
+
+        int[] indices   = new int[count];
+        double[] values = new double[count];
+        count = 0;
+        for (int idx = 0; idx < dense.size; idx++)
+            if (dense.data[idx] != 0.0) {
+                indices[count] = idx;
+                values[count]  = dense.data[idx];
+                count++;
+            }
+
+        return new SparseVector(dense.size, indices, values);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getNonZeros() {
+        return nonZeros;
+    }
+
+    public int getIndex(int nonZero) {
+        Objects.checkIndex(nonZero, nonZeros);
+        return indices[nonZero];
+    }
+
+    public double getValue(int nonZero) {
+        Objects.checkIndex(nonZero, nonZeros);
+        return values[nonZero];
+    }
+
+    public double get(int index) {
+        Objects.checkIndex(index, size);
+        int position = Arrays.binarySearch(indices, 0, nonZeros, index);
+        return position >= 0 ? values[position] : 0.0;
+    }
+
+    public Vector toDense() {
+        var dense = new Vector(size);
+        for (int idx = 0; idx < nonZeros; idx++)
+            dense.data[indices[idx]] = values[idx];
+        return dense;
+    }
+
+    /**
+     * Euclidean norm of the nonzeros.
+     */
+    public double norm() {
+        return Math.sqrt(Kernels.INSTANCE.dot(values, 0, values, 0, nonZeros));
+    }
+
+    @Override
+    public String toString() {
+        var builder = new StringBuilder("[");
+        for (int idx = 0; idx < nonZeros; idx++) {
+            if (idx > 0)
+                builder.append(", ");
+            builder.append(indices[idx]).append(": ").append(values[idx]);
+        }
+        return builder.append("] of ").append(size).toString();
+    }
+
+}
@@ -0,0 +1,24 @@
+package com.gravitykit.nn;
+
+/**
+ * Multiplies the rate by factor every stepEpochs epochs.
+ */
+
+public class StepDecaySchedule implements ILearningRateSchedule {
+
+    private final int stepEpochs;
+    private final double factor;
+
+    public StepDecaySchedule(int stepEpochs, double factor) {
+        if (stepEpochs < 1)
+            throw new IllegalArgumentException("stepEpochs must be positive");
+
+        this.stepEpochs = stepEpochs;
+        this.factor     = factor;
+    }
+
+    @Override
+    public double getRate(int epoch, double baseRate) {
+        return baseRate * Math.pow(factor, epoch / stepEpochs);
+    }
+}
@@ -10,6 +10,22 @@ public class TanHTransfer implements ITransferFunction {
 
     @Override
     public double derivative(double atValue) {
-        return 1 - Math.pow(Math.tanh(atValue), 2);
+        double value = Math.tanh(atValue);
+        return 1 - value * value;
+    }
+
+    @Override
+    public void derivative(double[] in, double[] out, double[] gradient, int length) {
+        for (int idx = 0; idx < length; idx++)
+            gradient[idx] *= 1 - out[idx] * out[idx];
+    }
+
+    @Override
+    public void derivative(double[] in, double[] out, double[] gradient, int length, long[] mask, double keep) {
+        double scale = 1.0 / keep;
+        for (int idx = 0; idx < length; idx++) {
+            double value  = out[idx] * keep;
+            gradient[idx] = Dropout.isKept(mask, idx) ? gradient[idx] * scale * (1 - value * value) : 0.0;
+        }
     }
 }
@@ -0,0 +1,348 @@
+package com.gravitykit.nn;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Trainer runs epoch-based training on a NeuralNet.
+ *
+ * Every epoch visits the samples once, in a fresh random order unless
+ * shuffling is turned off, batchSize samples per update (single-sample
+ * train() for a batch size of 1, trainBatch() otherwise). After each
+ * epoch it records the training loss and, if a validation set is given,
+ * the validation loss through findError.
+ *
+ * Training stops at the epoch limit, as soon as the monitored loss
+ * (validation if present, training otherwise) reaches the target loss,
+ * or when it has not improved by minDelta for `patience` epochs. In the
+ * last case the weights of the best epoch are restored.
+ *
+ * A learning-rate schedule adjusts the optimizer rate at the start of
+ * each epoch; the original rate is put back when train() returns.
+ *
+ * With a Checkpointer, the network, optimizer and position in the sample
+ * order are snapshotted every `interval` updates. resume(...) restores
+ * such a checkpoint, and the next train() continues with the sample that
+ * followed it. Each epoch's shuffle is derived from the seed and the
+ * epoch number, so a resumed run trains on the same sequence as an
+ * uninterrupted one.
+ *
+ *     var result = new Trainer(nn, new DiffSquareError())
+ *             .setEpochs(1000)
+ *             .setBatchSize(32)
+ *             .setValidationSet(validation)
+ *             .setEarlyStopping(10, 1e-4)
+ *             .train(samples);
+ */
+
+public class Trainer {
+
+    private final NeuralNet nn;
+    private final IErrorFunction errorFunc;
+
+    private int epochs                     = 100;
+    private int batchSize                  = 1;
+    private boolean shuffle                = true;
+    private long seed                      = new SplittableRandom().nextLong();
+    private List<Sample> validation        = null;
+    private ILearningRateSchedule schedule = null;
+    private int patience                   = 0;
+    private double minDelta                = 0;
+    private double targetLoss              = 0;
+    private Checkpointer checkpointer      = null;
+    private int checkpointInterval         = 0;
+    private Checkpoint resumeFrom          = null;
+
+    // The output of the single-sample steps, sized on the first one.
+    private Vector actual = null;
+
+    public Trainer(NeuralNet nn, IErrorFunction errorFunc) {
+        this.nn        = nn;
+        this.errorFunc = errorFunc;
+    }
+
+    /**
+     * The maximum number of epochs to run.
+     */
+    public Trainer setEpochs(int epochs) {
+        if (epochs < 1)
+            throw new IllegalArgumentException("epochs must be positive");
+        this.epochs = epochs;
+        return this;
+    }
+
+    public Trainer setBatchSize(int batchSize) {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("batchSize must be positive");
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    public Trainer setShuffle(boolean shuffle) {
+        this.shuffle = shuffle;
+        return this;
+    }
+
+    /**
+     * Seeds the shuffling so runs are repeatable.
+     */
+    public Trainer setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    public Trainer setValidationSet(List<Sample> validation) {
+        this.validation = validation;
+        return this;
+    }
+
+    public Trainer setSchedule(ILearningRateSchedule schedule) {
+        this.schedule = schedule;
+        return this;
+    }
+
+    /**
+     * Stops once the monitored loss has not dropped by more than minDelta
+     * for `patience` epochs in a row. A patience of 0 disables it.
+     */
+    public Trainer setEarlyStopping(int patience, double minDelta) {
+        if (patience < 0)
+            throw new IllegalArgumentException("patience must not be negative");
+        this.patience = patience;
+        this.minDelta = minDelta;
+        return this;
+    }
+
+    /**
+     * Stops as soon as the monitored loss is at or below targetLoss.
+     */
+    public Trainer setTargetLoss(double targetLoss) {
+        this.targetLoss = targetLoss;
+        return this;
+    }
+
+    /**
+     * Offers a checkpoint to checkpointer after every `interval` updates.
+     * Checkpoints the checkpointer is still busy with are skipped.
+     */
+    public Trainer setCheckpointing(Checkpointer checkpointer, int interval) {
+        if (interval < 1)
+            throw new IllegalArgumentException("interval must be positive");
+        this.checkpointer       = checkpointer;
+        this.checkpointInterval = interval;
+        return this;
+    }
+
+    /**
+     * Makes the next train() restore the checkpoint into the network and
+     * continue from its position. The samples, batch size and other
+     * settings must be those of the run that wrote it; the seed is taken
+     * from the checkpoint.
+     */
+    public Trainer resume(Checkpoint checkpoint) {
+        this.resumeFrom = checkpoint;
+        return this;
+    }
+
+    public TrainingResult train(List<Sample> samples) {
+        if (samples.isEmpty())
+            throw new IllegalArgumentException("No samples to train on");
+
+        double[] trainingLoss   = new double[epochs];
+        double[] validationLoss = new double[epochs];
+        double[] rates          = new double[epochs];
+        double[][] history      = {trainingLoss, validationLoss, rates};
+
+        var optimizer   = nn.getOptimizer();
+        double baseRate = optimizer.getRate();
+        var batch       = new ArrayList<Sample>(batchSize);
+        int[] order     = new int[samples.size()];
+        for (int idx = 0; idx < order.length; idx++)
+            order[idx] = idx;
+
+        var bestWeights    = new ArrayList<double[]>();
+        double best        = Double.POSITIVE_INFINITY;
+        int bestEpoch      = 0;
+        int sinceBest      = 0;
+        int epoch          = 0;
+        int firstSample    = 0;
+        double resumedLoss = 0;
+        long updates       = 0;
+        boolean reached    = false;
+        boolean stopped    = false;
+        long started       = System.nanoTime();
+
+        if (resumeFrom != null) {
+            var checkpoint = resumeFrom;
+            resumeFrom     = null;
+            if (checkpoint.order.length != order.length || checkpoint.epoch >= epochs)
+                throw new IllegalArgumentException("Checkpoint at epoch " + checkpoint.epoch + " over "
+                        + checkpoint.order.length + " samples doesn't fit this run");
+
+            checkpoint.restore(nn);
+            seed        = checkpoint.seed;
+            epoch       = (int) checkpoint.epoch;
+            firstSample = (int) checkpoint.nextSample;
+            resumedLoss = checkpoint.lossSum;
+            best        = checkpoint.best;
+            bestEpoch   = (int) checkpoint.bestEpoch;
+            sinceBest   = (int) checkpoint.sinceBest;
+            System.arraycopy(checkpoint.order, 0, order, 0, order.length);
+            for (int idx = 0; idx < history.length; idx++)
+                System.arraycopy(checkpoint.history.get(idx), 0, history[idx], 0, epoch);
+            bestWeights.addAll(checkpoint.bestParameters);
+        }
+
+        try {
+            while (epoch < epochs && !reached && !stopped) {
+                if (schedule != null)
+                    optimizer.setRate(schedule.getRate(epoch, baseRate));
+                rates[epoch] = optimizer.getRate();
+
+                // A resumed epoch keeps the order it was checkpointed with.
+                if (shuffle && firstSample == 0)
+                    shuffle(order, epoch);
+
+                double lossSum = firstSample == 0 ? 0 : resumedLoss;
+                for (int start = firstSample; start < order.length; start += batchSize) {
+                    int end = Math.min(start + batchSize, order.length);
+                    if (batchSize == 1) {
+                        lossSum += trainSample(samples.get(order[start]));
+                    } else {
+                        batch.clear();
+                        for (int idx = start; idx < end; idx++)
+                            batch.add(samples.get(order[idx]));
+                        lossSum += nn.trainBatch(errorFunc, batch) * batch.size();
+                    }
+
+                    if (checkpointer != null && ++updates % checkpointInterval == 0)
+                        checkpoint(epoch, end, lossSum, best, bestEpoch, sinceBest, order, bestWeights, history);
+                }
+                firstSample = 0;
+
+                trainingLoss[epoch]   = lossSum / order.length;
+                validationLoss[epoch] = validation != null ? nn.findError(errorFunc, validation) : Double.NaN;
+
+                var listener = nn.getListener();
+                if (listener != null)
+                    listener.onEpoch(epoch, trainingLoss[epoch], validationLoss[epoch], rates[epoch]);
+
+                double monitored = validation != null ? validationLoss[epoch] : trainingLoss[epoch];
+                if (monitored < best - minDelta) {
+                    best      = monitored;
+                    bestEpoch = epoch;
+                    sinceBest = 0;
+                    if (patience > 0)
+                        saveWeights(bestWeights);
+                } else {
+                    sinceBest++;
+                }
+
+                epoch++;
+                if (monitored <= targetLoss) {
+                    reached = true;
+                } else if (patience > 0 && sinceBest >= patience) {
+                    stopped = true;
+                    restoreWeights(bestWeights);
+                }
+            }
+        } finally {
+            optimizer.setRate(baseRate);
+        }
+
+        return new TrainingResult(trainingLoss, validationLoss, rates, epoch, bestEpoch, reached, stopped,
+                System.nanoTime() - started);
+    }
+
+    // Runs one single-sample step and returns the error before the update.
+    private double trainSample(Sample sample) {
+        var desired = sample.getDesired();
+        if (actual == null)
+            actual = new Vector(desired.size);
+        nn.simulate(sample, actual);
+
+        double error = 0;
+        for (int idx = 0; idx < actual.size; idx++)
+            error += errorFunc.findError(desired.data[idx], actual.data[idx]);
+
+        nn.train(errorFunc, desired);
+        return error;
+    }
+
+    // Hands the training state to the checkpointer, unless it is still
+    // writing the previous checkpoint.
+    private void checkpoint(int epoch, int nextSample, double lossSum, double best, int bestEpoch, int sinceBest,
+            int[] order, ArrayList<double[]> bestWeights, double[][] history) {
+        try {
+            var snapshot = checkpointer.begin(nn);
+            if (snapshot == null)
+                return;
+
+            snapshot.epoch      = epoch;
+            snapshot.nextSample = nextSample;
+            snapshot.seed       = seed;
+            snapshot.lossSum    = lossSum;
+            snapshot.best       = best;
+            snapshot.bestEpoch  = bestEpoch;
+            snapshot.sinceBest  = sinceBest;
+            if (snapshot.order.length != order.length)
+                snapshot.order = new int[order.length];
+            System.arraycopy(order, 0, snapshot.order, 0, order.length);
+
+            for (int idx = 0; idx < history.length; idx++)
+                Checkpoint.copy(snapshot.history, idx, history[idx], epoch);
+            Checkpoint.trim(snapshot.history, history.length);
+            for (int idx = 0; idx < bestWeights.size(); idx++)
+                Checkpoint.copy(snapshot.bestParameters, idx, bestWeights.get(idx), bestWeights.get(idx).length);
+            Checkpoint.trim(snapshot.bestParameters, bestWeights.size());
+
+            checkpointer.commit();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Fisher-Yates shuffle, seeded per epoch.
+    private void shuffle(int[] order, int epoch) {
+        var random = new SplittableRandom(seed + epoch);
+        for (int idx = order.length - 1; idx > 0; idx--) {
+            int other    = random.nextInt(idx + 1);
+            int swap     = order[idx];
+            order[idx]   = order[other];
+            order[other] = swap;
+        }
+    }
+
+    // Weights and biases of every layer, in that order, copied into
+    // arrays that are allocated on the first save and reused after that.
+    private void saveWeights(ArrayList<double[]> saved) {
+        int slot = 0;
+        for (var layer : nn.getLayers()) {
+            slot = save(saved, slot, layer.weights.data, layer.weights.data.length);
+            slot = save(saved, slot, layer.bias.data, layer.bias.size);
+        }
+    }
+
+    private static int save(ArrayList<double[]> saved, int slot, double[] values, int length) {
+        if (saved.size() == slot)
+            saved.add(new double[length]);
+        System.arraycopy(values, 0, saved.get(slot), 0, length);
+        return slot + 1;
+    }
+
+    private void restoreWeights(ArrayList<double[]> saved) {
+        if (saved.isEmpty())
+            return;
+
+        int slot = 0;
+        for (var layer : nn.getLayers()) {
+            System.arraycopy(saved.get(slot++), 0, layer.weights.data, 0, layer.weights.data.length);
+            System.arraycopy(saved.get(slot++), 0, layer.bias.data, 0, layer.bias.size);
+        }
+        nn.markWeightsChanged();
+    }
+
+}
@@ -0,0 +1,102 @@
+package com.gravitykit.nn;
+
+/**
+ * TrainingResult records what Trainer.train(...) did, one entry per
+ * epoch that ran: the training loss (mean over the epoch's batches,
+ * each measured before its update), the validation loss (NaN without a
+ * validation set) and the rate the optimizer used.
+ */
+
+public final class TrainingResult {
+
+    private final double[] trainingLoss;
+    private final double[] validationLoss;
+    private final double[] rates;
+    private final int epochs;
+    private final int bestEpoch;
+    private final boolean targetReached;
+    private final boolean stoppedEarly;
+    private final long elapsedNanos;
+
+    TrainingResult(double[] trainingLoss, double[] validationLoss, double[] rates, int epochs, int bestEpoch,
+                   boolean targetReached, boolean stoppedEarly, long elapsedNanos) {
+        this.trainingLoss   = trainingLoss;
+        this.validationLoss = validationLoss;
+        this.rates          = rates;
+        this.epochs         = epochs;
+        this.bestEpoch      = bestEpoch;
+        this.targetReached  = targetReached;
+        this.stoppedEarly   = stoppedEarly;
+        this.elapsedNanos   = elapsedNanos;
+    }
+
+    /**
+     * Number of epochs that ran.
+     */
+    public int getEpochs() {
+        return epochs;
+    }
+
+    /**
+     * The epoch with the lowest monitored loss (validation loss if there
+     * is a validation set, training loss otherwise).
+     */
+    public int getBestEpoch() {
+        return bestEpoch;
+    }
+
+    /**
+     * True if the monitored loss reached the target loss, which ends
+     * training, on the last epoch as well as before it.
+     */
+    public boolean isTargetReached() {
+        return targetReached;
+    }
+
+    /**
+     * True if early stopping ended training because the monitored loss
+     * stopped improving, with the best weights restored.
+     */
+    public boolean isStoppedEarly() {
+        return stoppedEarly;
+    }
+
+    public double getTrainingLoss(int epoch) {
+        checkEpoch(epoch);
+        return trainingLoss[epoch];
+    }
+
+    public double getValidationLoss(int epoch) {
+        checkEpoch(epoch);
+        return validationLoss[epoch];
+    }
+
+    public double getRate(int epoch) {
+        checkEpoch(epoch);
+        return rates[epoch];
+    }
+
+    public double getFinalTrainingLoss() {
+        return trainingLoss[epochs - 1];
+    }
+
+    public double getFinalValidationLoss() {
+        return validationLoss[epochs - 1];
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    private void checkEpoch(int epoch) {
+        if (epoch < 0 || epoch >= epochs)
+            throw new IndexOutOfBoundsException("epoch " + epoch + " of " + epochs);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d epochs%s, training loss %.6f, validation loss %.6f, best epoch %d, %.1f ms",
+                epochs, targetReached ? " (target reached)" : stoppedEarly ? " (stopped early)" : "",
+                getFinalTrainingLoss(), getFinalValidationLoss(), bestEpoch, elapsedNanos / 1e6);
+    }
+}
@@ -0,0 +1,37 @@
+package com.gravitykit.nn;
+
+import java.util.SplittableRandom;
+
+/**
+ * Draws weights and biases uniformly from [min, max), [0, 1) by default,
+ * whatever the layer size. This is what NeuralNetBuilder uses unless told
+ * otherwise; it suits the small sigmoid networks the library started
+ * with, while deeper networks train faster from XavierInitializer or
+ * HeInitializer.
+ */
+
+public class UniformInitializer implements IWeightInitializer {
+
+    private final double min;
+    private final double max;
+
+    public UniformInitializer() {
+        this(0.0, 1.0);
+    }
+
+    public UniformInitializer(double min, double max) {
+        this.min = min;
+        this.max = max;
+    }
+
+    @Override
+    public void initialize(double[] weights, int offset, int length, int fanIn, int fanOut, SplittableRandom random) {
+        for (int idx = offset; idx < offset + length; idx++)
+            weights[idx] = random.nextDouble(min, max);
+    }
+
+    @Override
+    public void initializeBias(double[] bias, int length, SplittableRandom random) {
+        initialize(bias, 0, length, 0, 0, random);
+    }
+}
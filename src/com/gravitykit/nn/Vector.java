@@ -1,14 +1,15 @@
 package com.gravitykit.nn;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.Objects;
 import java.util.function.*;
 
 /*
 
-    Vector is a glorified wrapper for ArrayList<Double>.
+    Vector is a glorified wrapper for a primitive double[].
     The wrapping provides a clean way to perform arithmetic
-    on each element.
+    on each element without boxing every value.
 
     Example:
 
@@ -29,6 +30,11 @@ import java.util.function.*;
 
     Vector added = vec1.copy().add(vec2); // vec1 doesn't change
 
+    Vectors created with a size are allocated once and never grow.
+    The empty constructor together with addDouble(...) is kept for
+    building vectors incrementally; the backing array then grows
+    geometrically like an ArrayList would.
+
  */
 
 public class Vector {
@@ -36,109 +42,151 @@ public class Vector {
     private static final String ERR_SIZE_MISMATCH = "Vector size mismatch";
 
     public static double dot(double[] left, Vector vecRight) {
-        var right  = vecRight.vector;
-        double sum = 0;
-
-        if (left.length != right.size())
+        if (left.length != vecRight.size)
             throw new ArithmeticException(ERR_SIZE_MISMATCH);
 
-        for (int idx = 0; idx < left.length; idx++)
-            sum += left[idx] * right.get(idx);
-
-        return sum;
+        return dot(left, 0, vecRight.data, 0, left.length);
     }
 
     public static double dot(Vector vecLeft, Vector vecRight) {
-        var left   = vecLeft.vector;
-        var right  = vecRight.vector;
-        double sum = 0;
-
-        if (left.size() != right.size())
+        if (vecLeft.size != vecRight.size)
             throw new ArithmeticException(ERR_SIZE_MISMATCH);
 
-        for (int idx = 0; idx < left.size(); idx++)
-            sum += left.get(idx) * right.get(idx);
+        return dot(vecLeft.data, 0, vecRight.data, 0, vecLeft.size);
+    }
 
-        return sum;
+    static double dot(double[] left, int leftOffset, double[] right, int rightOffset, int length) {
+        return Kernels.INSTANCE.dot(left, leftOffset, right, rightOffset, length);
     }
 
-    public static Vector apply(UnaryOperator<Double> operator, Vector vec) {
+    public static Vector apply(DoubleUnaryOperator operator, Vector vec) {
         return vec.copy().map(operator);
     }
 
+    // Backing storage. Only the first `size` elements are meaningful,
+    // the array may be longer when the vector was grown with addDouble.
+    double[] data;
+    int size;
+
     public int size() {
-        return vector.size();
+        return size;
     }
 
     public Vector sub(Vector other) {
-        return this.map((a, b) -> a - b, other);
+        checkSize(other);
+        Kernels.INSTANCE.axpy(-1.0, other.data, 0, data, 0, size);
+        return this;
     }
 
     public Vector mul(Vector other) {
-        return this.map((a, b) -> a * b, other);
+        checkSize(other);
+        for (int idx = 0; idx < size; idx++)
+            data[idx] *= other.data[idx];
+        return this;
+    }
+
+    public Vector() {
+        this.data = new double[0];
     }
 
-    public Vector() {}
+    public Vector(int size) {
+        this.data = new double[size];
+        this.size = size;
+    }
+
+    public Vector(double[] values) {
+        this.data = values.clone();
+        this.size = values.length;
+    }
 
     public Vector(Double[] values) {
-        Collections.addAll(vector, values);
+        this(values.length);
+        for (int idx = 0; idx < size; idx++)
+            data[idx] = values[idx];
     }
 
-    public Vector(int size, Supplier<Double> supplier) {
+    public Vector(int size, DoubleSupplier supplier) {
+        this(size);
         for (int idx = 0; idx < size; idx++)
-            vector.add(supplier.get());
+            data[idx] = supplier.getAsDouble();
     }
 
     public static Vector applyTransfer(ITransferFunction func, Vector vec) {
-        var newVec = new Vector();
-        for (var element : vec.vector)
-            newVec.addDouble(func.calculate(element));
+        var newVec = new Vector(vec.size);
+        for (int idx = 0; idx < vec.size; idx++)
+            newVec.data[idx] = func.calculate(vec.data[idx]);
         return newVec;
     }
 
     public double get(int index) {
-        return vector.get(index);
+        Objects.checkIndex(index, size);
+        return data[index];
     }
 
-    public Vector map(UnaryOperator<Double> operator) {
-        this.vector.replaceAll(operator);
-        return this;
+    public void set(int index, double value) {
+        Objects.checkIndex(index, size);
+        data[index] = value;
     }
 
-    public Vector map(BinaryOperator<Double> operator, Vector other) {
-        if (this.vector.size() != other.size())
-            throw new ArithmeticException(ERR_SIZE_MISMATCH);
+    public Vector map(DoubleUnaryOperator operator) {
+        for (int idx = 0; idx < size; idx++)
+            data[idx] = operator.applyAsDouble(data[idx]);
+        return this;
+    }
 
-        for (int idx = 0; idx < vector.size(); idx++)
-            vector.set(idx, operator.apply(vector.get(idx), other.get(idx)));
+    public Vector map(DoubleBinaryOperator operator, Vector other) {
+        checkSize(other);
+        for (int idx = 0; idx < size; idx++)
+            data[idx] = operator.applyAsDouble(data[idx], other.data[idx]);
         return this;
     }
 
     public Vector add(Vector other) {
-        if (this.vector.size() != other.size())
-            throw new ArithmeticException(ERR_SIZE_MISMATCH);
-        return this.map((a, b) -> a + b, other);
+        checkSize(other);
+        Kernels.INSTANCE.axpy(1.0, other.data, 0, data, 0, size);
+        return this;
     }
 
-    private ArrayList<Double> vector = new ArrayList<>();
-
     public void addDouble(double d) {
-        this.vector.add(d);
+        if (size == data.length)
+            data = Arrays.copyOf(data, Math.max(8, size * 2));
+        data[size++] = d;
     }
 
+    /**
+     * Returns a boxed snapshot of the contents. Changes to the returned
+     * list are not reflected in this vector.
+     */
     public ArrayList<Double> getVector() {
-        return vector;
+        var list = new ArrayList<Double>(size);
+        for (int idx = 0; idx < size; idx++)
+            list.add(data[idx]);
+        return list;
+    }
+
+    public double[] toArray() {
+        return Arrays.copyOf(data, size);
     }
 
     @Override
     public String toString() {
-        return vector.toString();
+        var builder = new StringBuilder("[");
+        for (int idx = 0; idx < size; idx++) {
+            if (idx > 0)
+                builder.append(", ");
+            builder.append(data[idx]);
+        }
+        return builder.append(']').toString();
     }
 
     public Vector copy() {
-        Vector cloned = new Vector();
-        for (Double d : this.vector)
-            cloned.addDouble(d);
+        Vector cloned = new Vector(size);
+        System.arraycopy(data, 0, cloned.data, 0, size);
         return cloned;
     }
+
+    private void checkSize(Vector other) {
+        if (this.size != other.size)
+            throw new ArithmeticException(ERR_SIZE_MISMATCH);
+    }
 }
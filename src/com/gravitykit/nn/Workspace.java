@@ -0,0 +1,61 @@
+package com.gravitykit.nn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Workspace holds the per-layer buffers one thread needs to run a
+ * forward and backward pass: pre-activations (layerInputs), activations
+ * (layerOutputs, index 0 is the network input), deltas, the weight and
+ * bias gradients, the scratch buffer and the dropout mask of every layer.
+ * They are sized once from the layers and reused for every sample.
+ */
+
+class Workspace {
+
+    final ArrayList<Vector> layerInputs  = new ArrayList<>();
+    final ArrayList<Vector> layerOutputs = new ArrayList<>();
+    final ArrayList<Vector> layerDeltas  = new ArrayList<>();
+    final ArrayList<Matrix> gradient     = new ArrayList<>();
+    final ArrayList<Vector> biasGradient = new ArrayList<>();
+    final ArrayList<double[]> scratch    = new ArrayList<>();
+    final ArrayList<long[]> dropoutMasks = new ArrayList<>();
+    final Vector output;
+
+    // The input of the last forward pass when it was sparse, null
+    // otherwise. layerOutputs[0] is not filled in for sparse inputs.
+    SparseVector sparseInput = null;
+
+    // Whether the last forward pass was a training one, with dropout, and
+    // the SplitMix64 state the dropout masks are drawn from.
+    boolean dropout = false;
+    long random     = 0;
+
+    Workspace(List<Layer> layers) {
+        layerOutputs.add(new Vector(layers.get(0).getInputSize()));
+
+        for (var layer : layers) {
+            int N = layer.getOutputSize();
+            layerInputs.add(new Vector(N));
+            layerOutputs.add(new Vector(N));
+            layerDeltas.add(new Vector(N));
+            gradient.add(new Matrix(layer.weights.getRows(), layer.weights.getCols()));
+            biasGradient.add(new Vector(layer.bias.size));
+            scratch.add(new double[layer.getScratchSize()]);
+            dropoutMasks.add(new long[Dropout.maskLength(N)]);
+        }
+
+        output = new Vector(layers.get(layers.size() - 1).getOutputSize());
+    }
+
+    void clearGradient() {
+        for (int layer = 0; layer < gradient.size(); layer++) {
+            var weightGradient = gradient.get(layer);
+            var bias           = biasGradient.get(layer);
+            Arrays.fill(weightGradient.data, 0.0);
+            Arrays.fill(bias.data, 0, bias.size, 0.0);
+        }
+    }
+
+}
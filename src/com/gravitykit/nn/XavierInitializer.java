@@ -0,0 +1,20 @@
+package com.gravitykit.nn;
+
+import java.util.SplittableRandom;
+
+/**
+ * Xavier (Glorot) initialization for tanh and sigmoid layers: weights
+ * uniform in +-sqrt(6 / (fanIn + fanOut)), a variance of
+ * 2 / (fanIn + fanOut), which keeps the activation and gradient variance
+ * roughly constant from layer to layer. Biases start at zero.
+ */
+
+public class XavierInitializer implements IWeightInitializer {
+
+    @Override
+    public void initialize(double[] weights, int offset, int length, int fanIn, int fanOut, SplittableRandom random) {
+        double limit = Math.sqrt(6.0 / (fanIn + fanOut));
+        for (int idx = offset; idx < offset + length; idx++)
+            weights[idx] = random.nextDouble(-limit, limit);
+    }
+}